@@ -0,0 +1,132 @@
+package server;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import service.Op;
+
+// SimpleServer.broadcast przy 10, 1000 i 10000 zalogowanych. Odbiorcy to
+// połączenia bez gniazda: biorą bufor ramki w swoim trybie (połowa tekstowych,
+// połowa binarnych), tak jak pętla NIO przed zapisem. Mierzy kodowanie ramki
+// i przejście po rejestrze klientów, bez kosztu samych zapisów do gniazd.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BroadcastBenchmark {
+    @Param({"10", "1000", "10000"})
+    public int recipients;
+
+    @Setup
+    public void setup() {
+        SimpleServer.clients.clear();
+        for (int i = 0; i < recipients; i++) {
+            SimpleServer.clients.put("u" + i, new SinkConnection("u" + i, i % 2 == 1));
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        SimpleServer.clients.clear();
+    }
+
+    @Benchmark
+    public void chat() {
+        SimpleServer.broadcast("u0", Op.CHAT, "u0", "wiadomość do wszystkich o typowej długości");
+    }
+
+    @Benchmark
+    public void presence() {
+        SimpleServer.broadcast("u0", Op.USER_ONLINE, "u0");
+    }
+
+    // Połączenie, które tylko odbiera ramki
+    static final class SinkConnection implements ClientConnection {
+        private final String username;
+        private final boolean binary;
+        long bytes;
+
+        SinkConnection(String username, boolean binary) {
+            this.username = username;
+            this.binary = binary;
+        }
+
+        @Override
+        public String getUsername() {
+            return username;
+        }
+
+        @Override
+        public void send(Frame frame) {
+            bytes += frame.buffer(binary).remaining();
+        }
+
+        @Override
+        public OutboundQueue getOutboundQueue() {
+            return null;
+        }
+
+        @Override
+        public boolean acknowledges() {
+            return false;
+        }
+
+        @Override
+        public void setAcknowledges(boolean acknowledges) {
+        }
+
+        @Override
+        public boolean presenceDeltas() {
+            return false;
+        }
+
+        @Override
+        public void setPresenceDeltas(boolean presenceDeltas) {
+        }
+
+        @Override
+        public boolean heartbeats() {
+            return false;
+        }
+
+        @Override
+        public void setHeartbeats(boolean heartbeats) {
+        }
+
+        @Override
+        public PeerCache getPeers() {
+            return null;
+        }
+
+        @Override
+        public RateLimits.Limiter getRateLimiter() {
+            return null;
+        }
+
+        @Override
+        public long getLastActivity() {
+            return 0;
+        }
+
+        @Override
+        public boolean isClosed() {
+            return false;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
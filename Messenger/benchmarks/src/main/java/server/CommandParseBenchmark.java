@@ -0,0 +1,98 @@
+package server;
+
+import java.io.ByteArrayOutputStream;
+import java.net.ProtocolException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import service.Op;
+import service.Packet;
+
+// Ścieżka odczytu ClientHandler i NioConnection: bajty z gniazda do InboundBuffer,
+// wycinanie wiadomości do Command i - dla rzadkich poleceń - zamiana na Packet.
+// Paczka to typowa mieszanka: głównie PRIVATE, do tego PING, czat i GET_HISTORY.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CommandParseBenchmark {
+    private static final int MESSAGES = 64;
+
+    @Param({"text", "binary"})
+    public String framing;
+
+    private boolean binary;
+    private byte[] chunk;
+    private InboundBuffer inbound;
+    private Command command;
+
+    @Setup
+    public void setup() {
+        binary = framing.equals("binary");
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        for (int i = 0; i < MESSAGES; i++) {
+            Packet packet;
+            switch (i % 8) {
+                case 0:
+                    packet = new Packet(Op.PING);
+                    break;
+                case 1:
+                    packet = new Packet(Op.SAY, "wiadomość do wszystkich numer " + i);
+                    break;
+                case 2:
+                    packet = new Packet(Op.GET_HISTORY, "bob", String.valueOf(i * 100), "50");
+                    break;
+                default:
+                    packet = new Packet(Op.PRIVATE, "użytkownik" + (i % 5), "wiadomość testowa o typowej długości: " + i);
+            }
+            bytes.writeBytes(packet.encode(binary));
+        }
+        chunk = bytes.toByteArray();
+        inbound = new InboundBuffer();
+        command = new Command();
+    }
+
+    // Samo wycinanie - tyle robi pętla odczytu dla PING i PRIVATE. Po całej
+    // paczce bufor jest pusty, więc następne put zaczyna od jego początku.
+    @Benchmark
+    @OperationsPerInvocation(MESSAGES)
+    public void parse(Blackhole blackhole) throws ProtocolException {
+        inbound.readable().put(chunk);
+        while (inbound.next(command, binary)) {
+            blackhole.consume(command.op);
+            blackhole.consume(command.fieldCount);
+        }
+    }
+
+    // Jak handleMessage: PING i PRIVATE z bufora, reszta przez Packet
+    @Benchmark
+    @OperationsPerInvocation(MESSAGES)
+    public void parseAndDispatch(Blackhole blackhole) throws ProtocolException {
+        inbound.readable().put(chunk);
+        while (inbound.next(command, binary)) {
+            switch (command.op) {
+                case PING:
+                    blackhole.consume(command.op);
+                    break;
+                case PRIVATE:
+                    blackhole.consume(command.length(0) + command.length(1));
+                    break;
+                default:
+                    blackhole.consume(command.toPacket());
+            }
+        }
+    }
+}
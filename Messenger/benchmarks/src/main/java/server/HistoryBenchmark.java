@@ -0,0 +1,88 @@
+package server;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Historia użytkownika (getMessagesForUser, czyli MessageLog.historyFor, i strona
+// GET_HISTORY) przy rosnącym dzienniku. alice ma zawsze HISTORY wiadomości,
+// reszta dziennika to ruch innych użytkowników - czas nie powinien rosnąć
+// z jego rozmiarem, bo odczyt idzie przez indeks.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HistoryBenchmark {
+    private static final int HISTORY = 200;
+    private static final int PAGE = 50;
+
+    @Param({"10000", "100000", "1000000"})
+    public int logSize;
+
+    private Path dir;
+    private MessageLog log;
+
+    @Setup
+    public void setup() throws IOException, InterruptedException {
+        dir = Files.createTempDirectory("history-bench");
+        log = new MessageLog(dir.toFile(), new MessageIndex(), MessageLog.Durability.NONE, 100, 64L * 1024 * 1024);
+
+        byte[] message = "wiadomość testowa o typowej długości".getBytes(StandardCharsets.UTF_8);
+        int every = logSize / HISTORY;
+        CountDownLatch written = new CountDownLatch(1);
+        for (int i = 0; i < logSize; i++) {
+            Runnable onDurable = i == logSize - 1 ? written::countDown : null;
+            if (i % every == 0) {
+                log.append(i % 2 == 0 ? "alice" : "bob", i % 2 == 0 ? "bob" : "alice", message, onDurable);
+            } else {
+                log.append("u" + i % 1000, "u" + (i + 1) % 1000, message, onDurable);
+            }
+        }
+        // Zapis idzie wątkiem dziennika - mierzymy dopiero na całym
+        written.await();
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        // Najpierw wątek dziennika i jego pliki - inaczej zostają na następną próbę
+        log.close();
+        try (Stream<Path> files = Files.walk(dir)) {
+            files.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+
+    @Benchmark
+    public Object historyFor() {
+        return log.historyFor("alice");
+    }
+
+    @Benchmark
+    public Object firstPage() {
+        return log.page("alice", null, -1, -1, PAGE);
+    }
+
+    @Benchmark
+    public Object conversationPage() {
+        return log.page("alice", "bob", -1, -1, PAGE);
+    }
+}
@@ -0,0 +1,54 @@
+package service;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+// LoggerService.write z jednego wątku i z kilku naraz. Każdy zapis otwiera
+// i zamyka plik raportu, więc przy współbieżności widać koszt systemu plików,
+// a nie samego formatowania. Raport idzie do pliku tymczasowego.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LoggerServiceBenchmark {
+    private Path file;
+
+    @Setup
+    public void setup() throws IOException {
+        file = Files.createTempFile("raport-bench", ".txt");
+        LoggerService.setReportFile(file.toString());
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(file);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void write() {
+        LoggerService.write("alice -> bob: wiadomość testowa o typowej długości");
+    }
+
+    @Benchmark
+    @Threads(8)
+    public void writeContended() {
+        LoggerService.write("alice -> bob: wiadomość testowa o typowej długości");
+    }
+}
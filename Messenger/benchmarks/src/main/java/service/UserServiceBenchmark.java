@@ -0,0 +1,88 @@
+package service;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import model.User;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+// UserService.login przy dużych plikach użytkowników (co dziesiąta linia to
+// grupa, jak w prawdziwym pliku). Najgorszy przypadek to ostatni użytkownik
+// z pliku i nazwa, której nie ma. Osobno koszt wczytania pliku w konstruktorze.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class UserServiceBenchmark {
+    @Param({"1000", "10000", "100000"})
+    public int users;
+
+    private Path file;
+    private UserService service;
+    private String firstName;
+    private String firstPassword;
+    private String lastName;
+    private String lastPassword;
+
+    @Setup
+    public void setup() throws IOException {
+        file = Files.createTempFile("users-bench", ".txt");
+        try (BufferedWriter writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+            for (int i = 0; i < users; i++) {
+                writer.write("user" + i + ";haslo" + i);
+                writer.newLine();
+                if (i % 10 == 9) {
+                    writer.write("group:grupa" + i + ";user" + i + ",user" + (i - 1));
+                    writer.newLine();
+                }
+            }
+        }
+        service = new UserService(file.toString());
+        firstName = "user0";
+        firstPassword = "haslo0";
+        lastName = "user" + (users - 1);
+        lastPassword = "haslo" + (users - 1);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(file);
+    }
+
+    @Benchmark
+    public User loginFirst() {
+        return service.login(firstName, firstPassword);
+    }
+
+    @Benchmark
+    public User loginLast() {
+        return service.login(lastName, lastPassword);
+    }
+
+    @Benchmark
+    public User loginUnknown() {
+        return service.login("nieznany", "haslo");
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public UserService load() {
+        return new UserService(file.toString());
+    }
+}
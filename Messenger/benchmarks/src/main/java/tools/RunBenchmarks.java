@@ -0,0 +1,31 @@
+package tools;
+
+import java.io.File;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.openjdk.jmh.results.format.ResultFormatType;
+
+// Uruchamia benchmarki JMH z wynikiem w JSON (results/jmh-<czas>.json), żeby
+// dało się porównywać kolejne wersje skryptem. Argumenty jak w JMH - jawne
+// -rf/-rff mają pierwszeństwo przed tym domyślnym zapisem.
+public class RunBenchmarks {
+    public static void main(String[] args) throws RunnerException, CommandLineOptionException {
+        CommandLineOptions cli = new CommandLineOptions(args);
+
+        File results = new File("results");
+        results.mkdirs();
+        String name = "jmh-" + LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss")) + ".json";
+        Options options = new OptionsBuilder()
+                .parent(cli)
+                .resultFormat(cli.getResultFormat().orElse(ResultFormatType.JSON))
+                .result(cli.getResult().orElse(new File(results, name).getPath()))
+                .build();
+        new Runner(options).run();
+    }
+}
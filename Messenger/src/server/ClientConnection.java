@@ -0,0 +1,45 @@
+package server;
+
+import service.Op;
+
+// Wspólny interfejs połączenia klienta - wątek na połączenie albo pętla NIO
+interface ClientConnection {
+    String getUsername();
+
+    // Ta sama ramka może być wysłana do wielu klientów - koduje się raz na tryb
+    void send(Frame frame);
+
+    default void send(Op op, String... fields) {
+        send(Frame.of(op, fields));
+    }
+
+    OutboundQueue getOutboundQueue();
+
+    // Klient potwierdza wiadomości (UPGRADE:...,ACK) - dostaje MSG z id zamiast PRIVATE_MSG
+    boolean acknowledges();
+
+    void setAcknowledges(boolean acknowledges);
+
+    // Klient przyjmuje zmiany obecności jako PRESENCE_DELTA (UPGRADE:...,DELTA)
+    boolean presenceDeltas();
+
+    void setPresenceDeltas(boolean presenceDeltas);
+
+    // Klient bierze odstęp heartbeatu od serwera (UPGRADE:...,HEARTBEAT)
+    boolean heartbeats();
+
+    void setHeartbeats(boolean heartbeats);
+
+    // Ostatni rozmówcy - do przekazywania wiadomości bez tworzenia Stringów
+    PeerCache getPeers();
+
+    // Limity tego połączenia - używa ich tylko wątek czytający
+    RateLimits.Limiter getRateLimiter();
+
+    // Czas ostatniej odebranej wiadomości - czyta go koło czasowe bezczynności
+    long getLastActivity();
+
+    boolean isClosed();
+
+    void close();
+}
@@ -0,0 +1,256 @@
+package server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+import service.BinaryCodec;
+import service.Op;
+import service.Packet;
+
+// Węzeł klastra serwerów. Każdy węzeł ma swoich użytkowników (tych, którzy
+// się do niego zalogowali) i trwałe łącza TCP do pozostałych: wychodzące
+// tylko do wysyłania, przychodzące tylko do odbioru, w ramkach binarnych
+// protokołu. Przez łącza idzie obecność (NODE_PRESENCE) i wiadomości
+// prywatne do użytkowników innych węzłów (NODE_PRIVATE).
+//
+// --node-id=a --cluster-port=13000 --peers=b@127.0.0.1:13001,c@127.0.0.1:13002
+class ClusterNode {
+    private static final int LINK_QUEUE = 10_000;
+    private static final int CONNECT_TIMEOUT_MS = 2000;
+    private static final long MAX_BACKOFF_MS = 5000;
+
+    private final String nodeId;
+    private final int port;
+    private final Map<String, Link> links = new LinkedHashMap<>();
+    // Użytkownik innego węzła -> łącze przychodzące, które go ogłosiło.
+    // Po zerwaniu łącza znikają tylko jego wpisy, nawet gdy węzeł już połączył się ponownie.
+    private final Map<String, Inbound> remoteUsers = new ConcurrentHashMap<>();
+    private final Supplier<List<String>> localUsers;
+
+    ClusterNode(String nodeId, int port, String peers, Supplier<List<String>> localUsers) {
+        this.nodeId = nodeId;
+        this.port = port;
+        this.localUsers = localUsers;
+        for (String peer : peers.split(",")) {
+            peer = peer.trim();
+            if (peer.isEmpty()) {
+                continue;
+            }
+            // id@host:port
+            int at = peer.indexOf('@');
+            int colon = peer.lastIndexOf(':');
+            if (at <= 0 || colon < at) {
+                System.err.println("Niepoprawny węzeł w --peers: " + peer);
+                continue;
+            }
+            try {
+                String id = peer.substring(0, at);
+                links.put(id, new Link(id, peer.substring(at + 1, colon), Integer.parseInt(peer.substring(colon + 1))));
+            } catch (NumberFormatException e) {
+                System.err.println("Niepoprawny port w --peers: " + peer);
+            }
+        }
+    }
+
+    void start() throws IOException {
+        ServerSocket serverSocket = new ServerSocket(port);
+        daemon("cluster-accept", () -> {
+            while (true) {
+                try {
+                    Socket socket = serverSocket.accept();
+                    socket.setTcpNoDelay(true);
+                    Inbound inbound = new Inbound(socket);
+                    daemon("cluster-in-" + socket.getPort(), inbound::run);
+                } catch (IOException e) {
+                    System.err.println("Błąd łącza klastra: " + e.getMessage());
+                }
+            }
+        });
+        for (Link link : links.values()) {
+            daemon("cluster-link-" + link.id, link::run);
+        }
+        System.out.println("Węzeł klastra " + nodeId + " na porcie " + port + ", sąsiedzi: " + links.keySet());
+    }
+
+    private static void daemon(String name, Runnable task) {
+        Thread thread = new Thread(task, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    // Zmiana obecności lokalnego użytkownika - do wszystkich sąsiadów
+    void publishPresence(String username, boolean online) {
+        Packet packet = new Packet(Op.NODE_PRESENCE, username, online ? "1" : "0");
+        for (Link link : links.values()) {
+            link.send(packet);
+        }
+    }
+
+    // false, gdy odbiorca nie jest zalogowany na żadnym znanym węźle albo kolejka
+    // do jego węzła jest pełna - wtedy wiadomość zostaje w skrzynce tego węzła
+    boolean forward(String from, String to, String message) {
+        Inbound owner = remoteUsers.get(to);
+        Link link = owner == null ? null : links.get(owner.peerId);
+        if (link == null) {
+            return false;
+        }
+        return link.send(new Packet(Op.NODE_PRIVATE, from, to, message));
+    }
+
+    List<String> remoteUsers() {
+        return new ArrayList<>(remoteUsers.keySet());
+    }
+
+    boolean isRemote(String username) {
+        return remoteUsers.containsKey(username);
+    }
+
+    // Łącze wychodzące: łączy się ponownie z rosnącą przerwą, a po połączeniu
+    // najpierw wysyła NODE_HELLO i listę lokalnych użytkowników. Zmiany obecności
+    // czekające w kolejce idą po tej liście, więc stan u sąsiada i tak się zgadza.
+    // Ramki wysłane od ostatniego udanego flush idą ponownie po zerwaniu łącza -
+    // sąsiad może dostać wiadomość dwa razy, ale żadna nie ginie po drodze.
+    private final class Link {
+        final String id;
+        final String host;
+        final int port;
+        final BlockingQueue<byte[]> queue = new ArrayBlockingQueue<>(LINK_QUEUE);
+        private long dropped = 0;
+
+        Link(String id, String host, int port) {
+            this.id = id;
+            this.host = host;
+            this.port = port;
+        }
+
+        // false, gdy kolejka jest pełna i ramka przepadła
+        boolean send(Packet packet) {
+            if (queue.offer(BinaryCodec.encode(packet))) {
+                return true;
+            }
+            synchronized (this) {
+                if (dropped++ % 1000 == 0) {
+                    System.err.println("Kolejka do węzła " + id + " pełna, odrzucono: " + dropped);
+                }
+            }
+            return false;
+        }
+
+        void run() {
+            long backoff = 250;
+            boolean reported = false;
+            // Zabrane z kolejki, ale niepotwierdzone udanym flush
+            List<byte[]> unsent = new ArrayList<>();
+            while (true) {
+                try (Socket socket = new Socket()) {
+                    socket.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT_MS);
+                    socket.setTcpNoDelay(true);
+                    OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+                    out.write(BinaryCodec.encode(new Packet(Op.NODE_HELLO, nodeId)));
+                    for (String username : localUsers.get()) {
+                        out.write(BinaryCodec.encode(new Packet(Op.NODE_PRESENCE, username, "1")));
+                    }
+                    for (byte[] frame : unsent) {
+                        out.write(frame);
+                    }
+                    out.flush();
+                    unsent.clear();
+                    System.out.println("Połączono z węzłem " + id + " (" + host + ":" + port + ")");
+                    backoff = 250;
+                    reported = false;
+
+                    while (true) {
+                        byte[] next = queue.take();
+                        do {
+                            unsent.add(next);
+                            out.write(next);
+                        } while ((next = queue.poll()) != null);
+                        out.flush();
+                        unsent.clear();
+                    }
+                } catch (IOException e) {
+                    if (!reported) {
+                        System.out.println("Brak połączenia z węzłem " + id + ": " + e.getMessage());
+                        reported = true;
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                }
+                try {
+                    Thread.sleep(backoff);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                backoff = Math.min(MAX_BACKOFF_MS, backoff * 2);
+            }
+        }
+    }
+
+    // Łącze przychodzące od sąsiada - tylko odbiór
+    private final class Inbound {
+        private final Socket socket;
+        private volatile String peerId = "?";
+
+        Inbound(Socket socket) {
+            this.socket = socket;
+        }
+
+        void run() {
+            try (Socket socket = this.socket) {
+                InputStream in = new BufferedInputStream(socket.getInputStream());
+                Packet hello = BinaryCodec.read(in);
+                if (hello == null || hello.op != Op.NODE_HELLO) {
+                    return;
+                }
+                peerId = hello.field(0);
+                Packet packet;
+                while ((packet = BinaryCodec.read(in)) != null) {
+                    handle(packet);
+                }
+                System.out.println("Węzeł " + peerId + " zamknął łącze");
+            } catch (IOException e) {
+                System.out.println("Zerwane łącze od węzła " + peerId + ": " + e.getMessage());
+            } finally {
+                // Użytkownicy tego łącza są offline, chyba że ogłosiło ich już nowe łącze
+                for (Map.Entry<String, Inbound> entry : remoteUsers.entrySet()) {
+                    if (entry.getValue() == this && remoteUsers.remove(entry.getKey(), this)) {
+                        SimpleServer.remotePresence(entry.getKey(), false);
+                    }
+                }
+            }
+        }
+
+        private void handle(Packet packet) {
+            switch (packet.op) {
+                case NODE_PRESENCE:
+                    String username = packet.field(0);
+                    if (packet.field(1).equals("1")) {
+                        if (remoteUsers.put(username, this) == null) {
+                            SimpleServer.remotePresence(username, true);
+                        }
+                    } else if (remoteUsers.remove(username, this)) {
+                        SimpleServer.remotePresence(username, false);
+                    }
+                    break;
+                case NODE_PRIVATE:
+                    SimpleServer.deliverRemote(packet.field(0), packet.field(1), packet.field(2));
+                    break;
+                default:
+                    System.err.println("Nieznana ramka od węzła " + peerId + ": " + packet.op);
+            }
+        }
+    }
+}
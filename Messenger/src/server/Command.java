@@ -0,0 +1,172 @@
+package server;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import service.BinaryCodec;
+import service.Op;
+import service.Packet;
+
+// Wiadomość odczytana w miejscu: rodzaj i granice pól w buforze odczytu
+// połączenia, bez pośrednich Stringów i tablic. Jeden obiekt na połączenie,
+// nadpisywany przy każdej wiadomości - ważny tylko do końca jej obsługi.
+// Rzadkie polecenia zamieniają go na Packet przez toPacket().
+final class Command {
+    private static final int MAX_FIELDS = 8;
+    // Op.values() kopiuje tablicę przy każdym wywołaniu
+    private static final Op[] OPS = Op.values();
+    private static final byte[][] NAMES = new byte[OPS.length][];
+
+    static {
+        for (Op op : OPS) {
+            NAMES[op.ordinal()] = op.name().getBytes(StandardCharsets.US_ASCII);
+        }
+    }
+
+    Op op;
+    byte[] data;
+    int fieldCount;
+    final int[] start = new int[MAX_FIELDS];
+    final int[] end = new int[MAX_FIELDS];
+
+    // Cała wiadomość (linia bez '\n' albo ramka z nagłówkiem) - dla toPacket()
+    private boolean binary;
+    private int messageStart;
+    private int messageEnd;
+
+    int length(int field) {
+        return end[field] - start[field];
+    }
+
+    // Rozmiar wiadomości na łączu (po rozpakowaniu) - do limitu bajtów
+    int size() {
+        return messageEnd - messageStart + (binary ? 0 : 1);
+    }
+
+    // Linia tekstowa [from, to) - te same zasady co Packet.parseText
+    void parseText(byte[] data, int from, int to) {
+        this.data = data;
+        this.binary = false;
+        this.messageStart = from;
+        this.messageEnd = to;
+
+        int colon = from;
+        while (colon < to && data[colon] != ':') {
+            colon++;
+        }
+        op = lookup(data, from, colon);
+        fieldCount = 0;
+        if (op == null || op == Op.SAY || (op.arity == 0 && colon < to)) {
+            op = Op.SAY;
+            addField(from, to);
+            return;
+        }
+        if (colon == to) {
+            return;
+        }
+        int fieldStart = colon + 1;
+        for (int i = fieldStart; i < to && fieldCount < op.arity - 1; i++) {
+            if (data[i] == ':') {
+                addField(fieldStart, i);
+                fieldStart = i + 1;
+            }
+        }
+        addField(fieldStart, to);
+    }
+
+    // Ramka binarna zaczynająca się w from; zwraca pozycję za ramką albo -1,
+    // gdy ramka nie jest jeszcze cała w [from, limit)
+    int parseBinary(byte[] data, int from, int limit) throws ProtocolException {
+        int position = from;
+        int length = 0;
+        for (int shift = 0; ; shift += 7) {
+            if (position == limit) {
+                return -1;
+            }
+            if (shift > 21) {
+                throw new ProtocolException("Zbyt długi nagłówek ramki");
+            }
+            int b = data[position++];
+            length |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                break;
+            }
+        }
+        if (length <= 0 || length > BinaryCodec.MAX_FRAME) {
+            throw new ProtocolException("Niepoprawna długość ramki: " + length);
+        }
+        if (limit - position < length) {
+            return -1;
+        }
+
+        int frameEnd = position + length;
+        this.data = data;
+        this.binary = true;
+        this.messageStart = from;
+        this.messageEnd = frameEnd;
+        op = Op.byCode(data[position++] & 0xff);
+        if (op == null) {
+            throw new ProtocolException("Nieznany rodzaj ramki");
+        }
+
+        fieldCount = 0;
+        while (position < frameEnd) {
+            int fieldLength = 0;
+            for (int shift = 0; ; shift += 7) {
+                if (position == frameEnd || shift > 28) {
+                    throw new ProtocolException("Uszkodzone pole ramki");
+                }
+                int b = data[position++];
+                fieldLength |= (b & 0x7f) << shift;
+                if ((b & 0x80) == 0) {
+                    break;
+                }
+            }
+            if (fieldLength < 0 || fieldLength > frameEnd - position) {
+                throw new ProtocolException("Uszkodzone pole ramki");
+            }
+            // Pola ponad MAX_FIELDS liczą się tylko w toPacket()
+            if (fieldCount < MAX_FIELDS) {
+                start[fieldCount] = position;
+                end[fieldCount] = position + fieldLength;
+            }
+            fieldCount++;
+            position += fieldLength;
+        }
+        return frameEnd;
+    }
+
+    // Kopia jako Packet - dla poleceń spoza gorącej ścieżki
+    Packet toPacket() throws ProtocolException {
+        if (binary) {
+            return BinaryCodec.decode(ByteBuffer.wrap(data, messageStart, messageEnd - messageStart));
+        }
+        return Packet.parseText(new String(data, messageStart, messageEnd - messageStart, StandardCharsets.UTF_8));
+    }
+
+    private void addField(int from, int to) {
+        start[fieldCount] = from;
+        end[fieldCount] = to;
+        fieldCount++;
+    }
+
+    private static Op lookup(byte[] data, int from, int to) {
+        int length = to - from;
+        for (Op candidate : OPS) {
+            byte[] name = NAMES[candidate.ordinal()];
+            if (name.length == length && regionEquals(data, from, name)) {
+                return candidate;
+            }
+        }
+        return null;
+    }
+
+    static boolean regionEquals(byte[] data, int from, byte[] expected) {
+        for (int i = 0; i < expected.length; i++) {
+            if (data[from + i] != expected[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,182 @@
+package server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import service.Op;
+import service.Packet;
+
+// Ramka protokołu kodowana do bajtów najwyżej raz dla każdego trybu
+// (tekstowego i binarnego). Ta sama ramka może trafić do kolejek wielu
+// odbiorców - każdy pisarz dostaje własny widok bufora przez buffer(),
+// a bajty są wspólne dla wszystkich klientów w tym samym trybie.
+final class Frame {
+    // "<NAZWA>:" dla każdego rodzaju - do ramek składanych z bajtów
+    private static final byte[][] PREFIXES = new byte[Op.values().length][];
+
+    static {
+        for (Op op : Op.values()) {
+            PREFIXES[op.ordinal()] = (op.name() + ":").getBytes(StandardCharsets.US_ASCII);
+        }
+    }
+
+    private final Packet packet;
+    private final boolean direct;
+    // Po tej ramce pisarz przełącza połączenie na strumień spakowany
+    private boolean startsCompression;
+
+    // Kodowanie leniwe; wyścig dwóch wątków najwyżej zakoduje ramkę dwa razy
+    private volatile byte[] textBytes;
+    private volatile byte[] binaryBytes;
+    private volatile ByteBuffer textShared;
+    private volatile ByteBuffer binaryShared;
+
+    private Frame(Packet packet, boolean direct) {
+        this.packet = packet;
+        this.direct = direct;
+    }
+
+    // Bajty gotowe i takie same w obu trybach (powitanie przed negocjacją, plik przelewowy)
+    private Frame(byte[] bytes) {
+        this.packet = null;
+        this.direct = false;
+        this.textBytes = bytes;
+        this.binaryBytes = bytes;
+    }
+
+    static Frame of(Op op, String... fields) {
+        return new Frame(new Packet(op, fields), false);
+    }
+
+    // Do rozgłaszania: bufor poza stertą, więc zapis do kanału NIO nie kopiuje
+    // go dla każdego odbiorcy do tymczasowego bufora JDK
+    static Frame direct(Op op, String... fields) {
+        return new Frame(new Packet(op, fields), true);
+    }
+
+    // Linia tekstowa wysyłana niezależnie od trybu połączenia
+    static Frame raw(String line) {
+        return new Frame(new Packet(Op.SAY, line).encode(false));
+    }
+
+    // Odpowiedź na UPGRADE z kompresją: sama idzie otwartym tekstem,
+    // kolejne ramki tego połączenia już przez Deflater
+    static Frame compressionStart(String line) {
+        Frame frame = raw(line);
+        frame.startsCompression = true;
+        return frame;
+    }
+
+    // Przekazanie pola prosto z bufora odczytu nadawcy: <op>:<first>:<bajty>, zakodowane
+    // od razu w trybie odbiorcy, bez pośrednich Stringów. W trybie tekstowym
+    // nowe linie z ramki binarnej zamieniamy na spacje, jak Packet.encode.
+    static Frame forward(boolean binary, Op op, byte[] first, byte[] data, int offset, int length) {
+        byte[] bytes;
+        int position;
+        if (binary) {
+            int body = 1 + varintSize(first.length) + first.length + varintSize(length) + length;
+            bytes = new byte[varintSize(body) + body];
+            position = putVarint(bytes, 0, body);
+            bytes[position++] = (byte) op.code;
+            position = putVarint(bytes, position, first.length);
+            System.arraycopy(first, 0, bytes, position, first.length);
+            position = putVarint(bytes, position + first.length, length);
+            System.arraycopy(data, offset, bytes, position, length);
+        } else {
+            byte[] name = PREFIXES[op.ordinal()];
+            bytes = new byte[name.length + first.length + 1 + length + 1];
+            System.arraycopy(name, 0, bytes, 0, name.length);
+            System.arraycopy(first, 0, bytes, name.length, first.length);
+            position = name.length + first.length;
+            bytes[position++] = ':';
+            for (int i = 0; i < length; i++) {
+                byte b = data[offset + i];
+                bytes[position++] = b == '\n' || b == '\r' ? (byte) ' ' : b;
+            }
+            bytes[position] = '\n';
+        }
+        return new Frame(bytes);
+    }
+
+    // Kilka wiadomości zakodowanych w trybie odbiorcy jako jedna ramka - jeden zapis
+    static Frame batch(boolean binary, List<Packet> packets) {
+        byte[][] encoded = new byte[packets.size()][];
+        int size = 0;
+        for (int i = 0; i < encoded.length; i++) {
+            encoded[i] = packets.get(i).encode(binary);
+            size += encoded[i].length;
+        }
+        byte[] bytes = new byte[size];
+        int position = 0;
+        for (byte[] part : encoded) {
+            System.arraycopy(part, 0, bytes, position, part.length);
+            position += part.length;
+        }
+        return new Frame(bytes);
+    }
+
+    // Ramka odtworzona z już zakodowanych bajtów (np. z pliku przelewowego)
+    static Frame wrap(byte[] bytes) {
+        return new Frame(bytes);
+    }
+
+    private static int putVarint(byte[] bytes, int position, int value) {
+        while ((value & ~0x7f) != 0) {
+            bytes[position++] = (byte) ((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        bytes[position++] = (byte) value;
+        return position;
+    }
+
+    private static int varintSize(int value) {
+        int size = 1;
+        while ((value & ~0x7f) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    byte[] bytes(boolean binary) {
+        byte[] bytes = binary ? binaryBytes : textBytes;
+        if (bytes == null) {
+            bytes = packet.encode(binary);
+            if (binary) {
+                binaryBytes = bytes;
+            } else {
+                textBytes = bytes;
+            }
+        }
+        return bytes;
+    }
+
+    // Niezależna pozycja i limit dla każdego odbiorcy, bez kopiowania bajtów
+    ByteBuffer buffer(boolean binary) {
+        ByteBuffer shared = binary ? binaryShared : textShared;
+        if (shared == null) {
+            byte[] bytes = bytes(binary);
+            if (direct) {
+                shared = ByteBuffer.allocateDirect(bytes.length).put(bytes).flip().asReadOnlyBuffer();
+            } else {
+                shared = ByteBuffer.wrap(bytes).asReadOnlyBuffer();
+            }
+            if (binary) {
+                binaryShared = shared;
+            } else {
+                textShared = shared;
+            }
+        }
+        return shared.duplicate();
+    }
+
+    boolean startsCompression() {
+        return startsCompression;
+    }
+
+    void writeTo(OutputStream out, boolean binary) throws IOException {
+        out.write(bytes(binary));
+    }
+}
@@ -0,0 +1,217 @@
+package server;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// Członkostwo w grupach z linii "group:<nazwa>;<członek>,<członek>" pliku
+// użytkowników, trzymane w pamięci, razem z nazwami zarejestrowanych
+// użytkowników (linie "<login>;<hasło>"). Plik jest zwykle tylko dopisywany
+// (CreateGroupFrame), więc po zmianie czytamy same nowe bajty; gdy początek
+// pliku się zmienił, budujemy indeks od nowa. Czytający dostają niezmienną
+// mapę podmienianą w całości - routing nie czeka na przeładowanie.
+class GroupDirectory {
+    // Tyle bajtów przed miejscem, w którym skończyliśmy czytać, musi się zgadzać,
+    // żeby uznać zmianę za samo dopisanie
+    private static final int TAIL_CHECK = 64;
+
+    static final class Group {
+        final String name;
+        final List<String> members;
+        private final Set<String> memberSet;
+
+        Group(String name, List<String> members) {
+            this.name = name;
+            this.members = Collections.unmodifiableList(members);
+            this.memberSet = new LinkedHashSet<>(members);
+        }
+
+        boolean isMember(String username) {
+            return memberSet.contains(username);
+        }
+    }
+
+    private final File file;
+    private volatile Map<String, Group> groups = Collections.emptyMap();
+    // Użytkownik -> grupy, do których należy; przebudowywane razem z groups
+    private volatile Map<String, List<Group>> memberships = Collections.emptyMap();
+    private volatile Set<String> users = Collections.emptySet();
+
+    // Stan przyrostowego odczytu - zmienia go tylko reload()
+    private long readOffset = 0;
+    private byte[] tail = new byte[0];
+
+    GroupDirectory(File file) {
+        this.file = file;
+        reload();
+    }
+
+    Group get(String name) {
+        return groups.get(name);
+    }
+
+    List<Group> groupsOf(String username) {
+        return memberships.getOrDefault(username, Collections.emptyList());
+    }
+
+    int size() {
+        return groups.size();
+    }
+
+    boolean isRegistered(String username) {
+        return users.contains(username);
+    }
+
+    // Przeładowanie przy każdej zmianie pliku (WatchService na katalogu)
+    void startWatching() {
+        Path dir = file.getAbsoluteFile().getParentFile().toPath();
+        WatchService watcher;
+        try {
+            watcher = FileSystems.getDefault().newWatchService();
+            dir.register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+        } catch (IOException e) {
+            System.err.println("Nie można obserwować pliku grup: " + e.getMessage());
+            return;
+        }
+
+        Thread thread = new Thread(() -> {
+            try {
+                while (true) {
+                    WatchKey key = watcher.take();
+                    boolean changed = false;
+                    for (WatchEvent<?> event : key.pollEvents()) {
+                        Object context = event.context();
+                        if (context == null || context.toString().equals(file.getName())) {
+                            changed = true;
+                        }
+                    }
+                    key.reset();
+                    if (changed) {
+                        reload();
+                    }
+                }
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                // Koniec obserwowania
+            }
+        }, "group-watch");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    synchronized void reload() {
+        try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+            long length = in.length();
+            boolean appendOnly = length >= readOffset && tailMatches(in);
+            Map<String, Group> next;
+            Set<String> nextUsers;
+            long start;
+            if (appendOnly) {
+                if (length == readOffset) {
+                    return;
+                }
+                next = new HashMap<>(groups);
+                nextUsers = new HashSet<>(users);
+                start = readOffset;
+            } else {
+                next = new HashMap<>();
+                nextUsers = new HashSet<>();
+                start = 0;
+            }
+
+            // Czytamy tylko do ostatniego pełnego wiersza - resztę dokończy następne przeładowanie
+            byte[] bytes = new byte[(int) (length - start)];
+            in.seek(start);
+            in.readFully(bytes);
+            int end = bytes.length;
+            while (end > 0 && bytes[end - 1] != '\n') {
+                end--;
+            }
+            for (String line : new String(bytes, 0, end, StandardCharsets.UTF_8).split("\n")) {
+                parseLine(line.trim(), next, nextUsers);
+            }
+
+            readOffset = start + end;
+            tail = readTail(in, readOffset);
+            groups = Collections.unmodifiableMap(next);
+            memberships = membershipsOf(next);
+            users = Collections.unmodifiableSet(nextUsers);
+            System.out.println("Grupy " + (start > 0 ? "doczytane" : "wczytane") + ": " + next.size());
+        } catch (IOException e) {
+            // Brak pliku to brak grup
+            if (file.exists()) {
+                System.err.println("Błąd odczytu grup: " + e.getMessage());
+            } else if (!groups.isEmpty() || readOffset > 0) {
+                groups = Collections.emptyMap();
+                memberships = Collections.emptyMap();
+                users = Collections.emptySet();
+                readOffset = 0;
+                tail = new byte[0];
+            }
+        }
+    }
+
+    private static Map<String, List<Group>> membershipsOf(Map<String, Group> groups) {
+        Map<String, List<Group>> result = new HashMap<>();
+        for (Group group : groups.values()) {
+            for (String member : group.members) {
+                result.computeIfAbsent(member, name -> new ArrayList<>()).add(group);
+            }
+        }
+        return result;
+    }
+
+    // Późniejsza linia z tą samą nazwą grupy zastępuje wcześniejszą
+    private static void parseLine(String line, Map<String, Group> target, Set<String> users) {
+        if (!line.startsWith("group:")) {
+            int separator = line.indexOf(';');
+            if (separator > 0 && SimpleServer.isValidName(line.substring(0, separator))) {
+                users.add(line.substring(0, separator));
+            }
+            return;
+        }
+        String[] parts = line.substring(6).split(";", 2);
+        if (parts.length < 2 || !SimpleServer.isValidName(parts[0])) {
+            return;
+        }
+        List<String> members = new ArrayList<>();
+        for (String member : parts[1].split(",")) {
+            member = member.trim();
+            if (!member.isEmpty() && !members.contains(member)) {
+                members.add(member);
+            }
+        }
+        target.put(parts[0], new Group(parts[0], members));
+    }
+
+    private boolean tailMatches(RandomAccessFile in) throws IOException {
+        return Arrays.equals(readTail(in, readOffset), tail);
+    }
+
+    private static byte[] readTail(RandomAccessFile in, long offset) throws IOException {
+        int size = (int) Math.min(TAIL_CHECK, offset);
+        byte[] bytes = new byte[size];
+        if (offset > in.length()) {
+            return new byte[0];
+        }
+        in.seek(offset - size);
+        in.readFully(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,105 @@
+package server;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+// Haszowane koło czasowe do wykrywania bezczynnych połączeń. Każde połączenie
+// leży w jednej przegródce - tej, w której upływa jego termin. Aktywność
+// tylko zapisuje lastActivity; przegródkę sprawdzamy dopiero, gdy koło do niej
+// dojdzie, i wtedy albo zamykamy połączenie, albo przekładamy je na nowy termin.
+// Każdy tik przegląda jedną przegródkę, nigdy wszystkich klientów.
+// Koło zmienia tylko wątek zegara: nowe połączenia czekają w kolejce, którą
+// zegar opróżnia przed każdym tikiem, więc żadne nie trafi do przegródki,
+// którą właśnie minął (i nie czeka przez to całego obrotu koła).
+class IdleTimer {
+    private static final int WHEEL_SIZE = 512;
+
+    private final long timeoutMs;
+    private final long tickMs;
+    private final Queue<ClientConnection>[] wheel;
+    private final Queue<ClientConnection> added = new ConcurrentLinkedQueue<>();
+    // Tik, którego przegródka zostanie sprawdzona jako następna; tylko wątek zegara
+    private long currentTick;
+
+    IdleTimer(int timeoutSeconds) {
+        this.timeoutMs = timeoutSeconds * 1000L;
+        // Dokładność około 1/64 limitu, ale nie częściej niż co 50 ms i nie rzadziej niż co sekundę
+        this.tickMs = Math.max(50, Math.min(1000, timeoutMs / 64));
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        Queue<ClientConnection>[] slots = new Queue[WHEEL_SIZE];
+        this.wheel = slots;
+        for (int i = 0; i < WHEEL_SIZE; i++) {
+            wheel[i] = new ArrayDeque<>();
+        }
+        this.currentTick = System.currentTimeMillis() / tickMs;
+
+        Thread thread = new Thread(this::run, "idle-timer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    // Połączenie jest pilnowane aż do zamknięcia
+    void watch(ClientConnection connection) {
+        added.add(connection);
+    }
+
+    // Tylko z wątku zegara, poza sprawdzaniem przegródki
+    private void schedule(ClientConnection connection, long deadline) {
+        // Nigdy do przegródki, którą koło już minęło
+        long tick = Math.max(deadline / tickMs + 1, currentTick);
+        wheel[(int) (tick % WHEEL_SIZE)].add(connection);
+    }
+
+    private void run() {
+        while (true) {
+            long now = System.currentTimeMillis();
+            long nowTick = now / tickMs;
+            try {
+                ClientConnection connection;
+                while ((connection = added.poll()) != null) {
+                    schedule(connection, connection.getLastActivity() + timeoutMs);
+                }
+                while (currentTick <= nowTick) {
+                    Queue<ClientConnection> slot = wheel[(int) (currentTick % WHEEL_SIZE)];
+                    currentTick++;
+                    expire(slot, now);
+                }
+            } catch (RuntimeException e) {
+                // Wątek zegara jest jeden - bez niego nikt nie zostałby już rozłączony
+                e.printStackTrace();
+            }
+            try {
+                Thread.sleep(tickMs - now % tickMs);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    private void expire(Queue<ClientConnection> slot, long now) {
+        // Tylko to, co było w przegródce na początku - przełożone wpisy czekają na kolejny obieg
+        for (int remaining = slot.size(); remaining > 0; remaining--) {
+            ClientConnection connection = slot.poll();
+            if (connection == null) {
+                break;
+            }
+            try {
+                if (connection.isClosed()) {
+                    continue;
+                }
+                long deadline = connection.getLastActivity() + timeoutMs;
+                if (deadline <= now) {
+                    System.out.println("Usuwam nieaktywnego klienta: " + connection.getUsername());
+                    // Zamknięcie wywoła logout, który usunie klienta z rejestru
+                    connection.close();
+                } else {
+                    schedule(connection, deadline);
+                }
+            } catch (RuntimeException e) {
+                // Błąd jednego połączenia nie może zatrzymać wykrywania bezczynności pozostałych
+                System.err.println("Błąd zamykania nieaktywnego klienta " + connection.getUsername() + ": " + e);
+            }
+        }
+    }
+}
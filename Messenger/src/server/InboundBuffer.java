@@ -0,0 +1,127 @@
+package server;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import service.BinaryCodec;
+
+// Bufor odczytu połączenia, wspólny dla obu trybów serwera. Bajty z gniazda
+// trafiają na koniec, a next() wycina z początku kolejne wiadomości w miejscu,
+// do wielokrotnie używanego obiektu Command. Bufor rośnie tylko dla długich
+// wiadomości; w stanie ustalonym nic tu nie jest alokowane. Po wynegocjowaniu
+// kompresji bajty z gniazda czekają spakowane w osobnym buforze, a next()
+// rozpakowuje je dopiero wtedy, gdy brakuje całej wiadomości.
+final class InboundBuffer {
+    private static final int INITIAL_SIZE = 8192;
+    // Najdłuższa linia albo ramka binarna razem z nagłówkiem
+    private static final int MAX_SIZE = 2 * BinaryCodec.MAX_FRAME;
+
+    // Dane czekające na obsługę to [readPosition, buffer.position())
+    private ByteBuffer buffer = ByteBuffer.allocate(INITIAL_SIZE);
+    private int readPosition = 0;
+
+    private Inflater inflater;
+    private ByteBuffer compressed;
+
+    // Bufor na bajty prosto z gniazda
+    ByteBuffer readable() throws ProtocolException {
+        return inflater == null ? writable() : compressed;
+    }
+
+    // Wołane między wiadomościami: nieobsłużona reszta bufora przyszła już spakowana
+    void startInflating(Inflater inflater) {
+        int pending = buffer.position() - readPosition;
+        compressed = ByteBuffer.allocate(Math.max(INITIAL_SIZE, pending));
+        compressed.put(buffer.array(), readPosition, pending);
+        buffer.position(readPosition);
+        this.inflater = inflater;
+    }
+
+    // Zwalnia pamięć natywną Inflatera; bilans kompresji trafia do logu
+    void release(ClientConnection owner) {
+        if (inflater != null) {
+            SimpleServer.logCompression(owner, "odebrane", inflater.getBytesRead(), inflater.getBytesWritten());
+            inflater.end();
+            inflater = null;
+        }
+    }
+
+    // Bufor gotowy do dopisania danych z gniazda. Przesuwa nieobsłużoną resztę
+    // na początek, więc wcześniejszy Command traci ważność.
+    ByteBuffer writable() throws ProtocolException {
+        if (readPosition == buffer.position()) {
+            buffer.clear();
+            readPosition = 0;
+        } else if (!buffer.hasRemaining()) {
+            if (readPosition > 0) {
+                byte[] data = buffer.array();
+                int pending = buffer.position() - readPosition;
+                System.arraycopy(data, readPosition, data, 0, pending);
+                buffer.position(pending);
+                readPosition = 0;
+            } else if (buffer.capacity() >= MAX_SIZE) {
+                throw new ProtocolException("Zbyt długa wiadomość");
+            } else {
+                ByteBuffer bigger = ByteBuffer.allocate(Math.min(MAX_SIZE, buffer.capacity() * 2));
+                buffer.flip();
+                bigger.put(buffer);
+                buffer = bigger;
+            }
+        }
+        return buffer;
+    }
+
+    // Następna cała wiadomość albo false, gdy trzeba doczytać
+    boolean next(Command command, boolean binary) throws ProtocolException {
+        while (!parse(command, binary)) {
+            if (inflater == null || !inflate()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Rozpakowuje tyle, ile zmieści się w buforze; false, gdy nic nie przybyło.
+    // Wejście ustawiamy za każdym razem - compact() przesuwa bajty pod Inflaterem.
+    private boolean inflate() throws ProtocolException {
+        compressed.flip();
+        int available = compressed.remaining();
+        try {
+            inflater.setInput(compressed);
+            int produced = inflater.inflate(writable());
+            return produced > 0 || compressed.remaining() < available;
+        } catch (DataFormatException e) {
+            throw new ProtocolException("Błędne dane spakowane: " + e.getMessage());
+        } finally {
+            compressed.compact();
+        }
+    }
+
+    private boolean parse(Command command, boolean binary) throws ProtocolException {
+        byte[] data = buffer.array();
+        int limit = buffer.position();
+        if (binary) {
+            int next = command.parseBinary(data, readPosition, limit);
+            if (next < 0) {
+                return false;
+            }
+            readPosition = next;
+            return true;
+        }
+
+        for (int i = readPosition; i < limit; i++) {
+            if (data[i] != '\n') {
+                continue;
+            }
+            int lineEnd = i;
+            if (lineEnd > readPosition && data[lineEnd - 1] == '\r') {
+                lineEnd--;
+            }
+            command.parseText(data, readPosition, lineEnd);
+            readPosition = i + 1;
+            return true;
+        }
+        return false;
+    }
+}
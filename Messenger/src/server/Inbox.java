@@ -0,0 +1,394 @@
+package server;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+import service.Op;
+import service.Packet;
+
+// Skrzynki odbiorcze wiadomości prywatnych. Magazynem jest dziennik - skrzynka
+// trzyma tylko id (pozycje w dzienniku) wiadomości niedoręczonych, a dla klientów
+// z potwierdzeniami (UPGRADE:...,ACK) także wysłanych, ale jeszcze niepotwierdzonych.
+// Po zalogowaniu zawartość skrzynki idzie jedną ramką zbiorczą.
+//
+// Klient z potwierdzeniami dostaje MSG:<id>:<od>:<treść> i odsyła ACK:<id>:delivered
+// albo ACK:<id>:read - potwierdzenie obejmuje wszystkie wiadomości do tego id.
+// Znaczniki "doręczone do" i "przeczytane do" są okresowo zapisywane do pliku;
+// po restarcie skrzynka użytkownika jest odtwarzana z indeksu dziennika
+// (wiadomości do niego po znaczniku doręczenia) przy jego pierwszym logowaniu.
+// Użytkownik, którego nie ma w pliku, dostał pierwsze wiadomości już po ostatnim
+// zapisie - jego skrzynka jest odtwarzana od pozycji zapisanej w nagłówku pliku.
+// Odtwarzamy tylko wpisy z poprzednich uruchomień: nowsze skrzynka zna sama.
+// Skrzynki mają tylko znani użytkownicy (zarejestrowani, zalogowani, z pliku) -
+// wiadomość do dowolnej innej nazwy zostaje w historii, nie w pamięci i pliku.
+class Inbox {
+    // Tyle id na użytkownika - starsze zostają tylko w historii
+    private static final int LIMIT = 10_000;
+
+    private static final class Box {
+        long delivered = -1;
+        long read = -1;
+        long[] pending = new long[8];
+        int size = 0;
+        // Zalogowane połączenie odbiorcy - nowe wiadomości idą od razu do niego
+        ClientConnection online;
+        // Znacznik wczytany z pliku, skrzynka jeszcze nie odtworzona z dziennika
+        boolean restore;
+
+        void add(long id) {
+            // Id rosną - mniejsze lub równe już tu są (odtworzenie ścigało się z zapisem)
+            if (size > 0 && pending[size - 1] >= id) {
+                return;
+            }
+            if (size == LIMIT) {
+                System.arraycopy(pending, 1, pending, 0, size - 1);
+                size--;
+            } else if (size == pending.length) {
+                pending = Arrays.copyOf(pending, Math.min(LIMIT, size * 2));
+            }
+            pending[size++] = id;
+        }
+
+        // Dołącza id odtworzone z dziennika do tych, które przyszły w międzyczasie
+        void merge(long[] restored) {
+            long[] all = Arrays.copyOf(restored, restored.length + size);
+            System.arraycopy(pending, 0, all, restored.length, size);
+            Arrays.sort(all);
+            size = 0;
+            pending = new long[Math.max(8, Math.min(LIMIT, all.length))];
+            for (int i = Math.max(0, all.length - LIMIT); i < all.length; i++) {
+                add(all[i]);
+            }
+        }
+
+        // Znacznik do pliku: tuż przed najstarszą czekającą, żeby odtworzenie ją objęło.
+        // Czekające są zawsze nowsze niż znacznik doręczenia; przed odtworzeniem
+        // między znacznikiem a czekającymi mogą być jeszcze wpisy do odtworzenia.
+        long restorePoint() {
+            return size > 0 && !restore ? pending[0] - 1 : delivered;
+        }
+
+        // Usuwa id <= upTo
+        void removeUpTo(long upTo) {
+            int removed = 0;
+            while (removed < size && pending[removed] <= upTo) {
+                removed++;
+            }
+            System.arraycopy(pending, removed, pending, 0, size - removed);
+            size -= removed;
+        }
+    }
+
+    private final MessageLog log;
+    private final File file;
+    private final Map<String, Box> boxes = new ConcurrentHashMap<>();
+    // Czy odbiorca bez skrzynki ma ją dostać przy pierwszej wiadomości
+    private final Predicate<String> known;
+    private volatile boolean dirty = false;
+    // Odtwarzamy tylko id mniejsze - wpisy sprzed tego uruchomienia
+    private final long restoreUntil;
+    // Od którego id odtwarzać skrzynki użytkowników spoza pliku; NO_RESTORE - wcale
+    private long absentFrom = NO_RESTORE;
+    // Najwyższe id, które przeszło przez stored() - nagłówek zapisywanego pliku
+    private volatile long lastStored = -1;
+
+    private static final long NO_RESTORE = Long.MIN_VALUE;
+
+    Inbox(MessageLog log, File file, Predicate<String> known) {
+        this.log = log;
+        this.file = file;
+        this.known = known;
+        this.restoreUntil = log.recoveredEnd();
+        load();
+    }
+
+    private Box box(String username) {
+        return boxes.computeIfAbsent(username, name -> {
+            Box box = new Box();
+            if (absentFrom != NO_RESTORE) {
+                box.delivered = absentFrom;
+                box.restore = true;
+            }
+            return box;
+        });
+    }
+
+    // Z wątku dziennika, po zapisie wiadomości prywatnej o danym id
+    void stored(String from, String to, long id, byte[] message, boolean deliveredLive) {
+        try {
+            storedInBox(from, to, id, message, deliveredLive);
+        } finally {
+            lastStored = id;
+        }
+    }
+
+    private void storedInBox(String from, String to, long id, byte[] message, boolean deliveredLive) {
+        Box box = boxes.get(to);
+        if (box == null) {
+            if (!known.test(to)) {
+                return;
+            }
+            box = box(to);
+        }
+        synchronized (box) {
+            if (deliveredLive) {
+                // Wysłana na żywo klientowi bez potwierdzeń - to jest doręczenie
+                box.delivered = Math.max(box.delivered, id);
+                dirty = true;
+                return;
+            }
+            ClientConnection client = box.online;
+            if (client == null) {
+                box.add(id);
+                dirty = true;
+            } else if (client.acknowledges()) {
+                box.add(id);
+                client.send(Op.MSG, String.valueOf(id), from, new String(message, StandardCharsets.UTF_8));
+            } else {
+                client.send(Op.PRIVATE_MSG, from, new String(message, StandardCharsets.UTF_8));
+                box.delivered = Math.max(box.delivered, id);
+                dirty = true;
+            }
+        }
+    }
+
+    // Po zalogowaniu: całą skrzynkę jedną ramką. Klient z potwierdzeniami dostaje
+    // też INBOX_END:<liczba>:<przeczytane do>, nawet przy pustej skrzynce.
+    void attach(ClientConnection client) {
+        String username = client.getUsername();
+        Box box = box(username);
+        long restoreFrom;
+        synchronized (box) {
+            restoreFrom = box.restore ? box.delivered : Long.MIN_VALUE;
+            box.restore = false;
+        }
+        // Skan indeksu i odczyt wpisów poza blokadą - wątek dziennika nie czeka na nie
+        // w stored(), a wątek wirtualny nie blokuje nośnika na odczycie z dysku.
+        // Pod blokadą tylko sprawdzamy, czy w międzyczasie nie przyszły nowe id -
+        // wtedy doczytujemy je i próbujemy znowu.
+        long[] restored = restoreFrom == Long.MIN_VALUE ? null : restorable(log.incoming(username, restoreFrom, LIMIT));
+        Map<Long, String> records = new HashMap<>();
+        long[] missing;
+        synchronized (box) {
+            if (restored != null) {
+                box.merge(restored);
+            }
+            missing = pendingIds(box, records);
+        }
+        while (true) {
+            for (long id : missing) {
+                records.put(id, log.readRecord(id));
+            }
+            synchronized (box) {
+                missing = pendingIds(box, records);
+                if (missing.length == 0) {
+                    sendPending(client, box, records);
+                    return;
+                }
+            }
+        }
+    }
+
+    // Pod blokadą skrzynki: czekające id, których wpisów jeszcze nie przeczytano
+    private static long[] pendingIds(Box box, Map<Long, String> records) {
+        long[] ids = new long[box.size];
+        int count = 0;
+        for (int i = 0; i < box.size; i++) {
+            if (!records.containsKey(box.pending[i])) {
+                ids[count++] = box.pending[i];
+            }
+        }
+        return Arrays.copyOf(ids, count);
+    }
+
+    // Pod blokadą skrzynki: z wpisów już w pamięci, bez odczytu dziennika
+    private void sendPending(ClientConnection client, Box box, Map<Long, String> records) {
+        String username = client.getUsername();
+        box.online = client;
+
+        boolean acks = client.acknowledges();
+        List<Packet> packets = new ArrayList<>(box.size + 1);
+        long last = -1;
+        for (int i = 0; i < box.size; i++) {
+            long id = box.pending[i];
+            String record = records.get(id);
+            String[] parts = record == null ? new String[0] : record.split("\\|", 4);
+            if (parts.length < 4) {
+                continue;
+            }
+            packets.add(acks
+                    ? new Packet(Op.MSG, String.valueOf(id), parts[1], parts[3])
+                    : new Packet(Op.PRIVATE_MSG, parts[1], parts[3]));
+            last = id;
+        }
+        if (acks) {
+            packets.add(new Packet(Op.INBOX_END, String.valueOf(packets.size()), String.valueOf(box.read)));
+        } else if (last >= 0) {
+            // Bez potwierdzeń wysłanie jest doręczeniem
+            box.removeUpTo(last);
+            box.delivered = Math.max(box.delivered, last);
+            dirty = true;
+        }
+        if (!packets.isEmpty()) {
+            client.send(Frame.batch(client.getOutboundQueue().isBinary(), packets));
+        }
+        if (box.size > 0 || last >= 0) {
+            System.out.println("Skrzynka " + username + ": wysłano " + (acks ? packets.size() - 1 : packets.size())
+                    + (acks ? ", czeka na potwierdzenie" : ""));
+        }
+    }
+
+    // Tylko wpisy z poprzednich uruchomień - o nowszych skrzynka wie z stored()
+    private long[] restorable(long[] ids) {
+        int count = 0;
+        while (count < ids.length && ids[count] < restoreUntil) {
+            count++;
+        }
+        return count == ids.length ? ids : Arrays.copyOf(ids, count);
+    }
+
+    void detach(ClientConnection client) {
+        Box box = boxes.get(client.getUsername());
+        if (box == null) {
+            return;
+        }
+        synchronized (box) {
+            if (box.online == client) {
+                box.online = null;
+            }
+        }
+    }
+
+    // ACK:<id>:delivered|read - wszystkie wiadomości do id włącznie
+    void acknowledge(String username, long id, boolean read) {
+        Box box = box(username);
+        synchronized (box) {
+            box.removeUpTo(id);
+            box.delivered = Math.max(box.delivered, id);
+            if (read) {
+                box.read = Math.max(box.read, id);
+            }
+        }
+        dirty = true;
+    }
+
+    // Wszystkie czekające id - do metryk
+    long pending() {
+        long total = 0;
+        for (Box box : boxes.values()) {
+            synchronized (box) {
+                total += box.size;
+            }
+        }
+        return total;
+    }
+
+    // Nagłówek "#<id>" (ostatnie id obsłużone przed zapisem), potem linie
+    // "użytkownik|doręczone do|przeczytane do"
+    private void load() {
+        if (!file.exists()) {
+            // Pliku jeszcze nie zapisano - skrzynki wszystkich odtwarzamy z całego dziennika
+            if (restoreUntil > 0) {
+                absentFrom = -1;
+            }
+            return;
+        }
+        int loaded = 0;
+        try (BufferedReader reader = new BufferedReader(new FileReader(file, StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith("#")) {
+                    try {
+                        absentFrom = Long.parseLong(line.substring(1));
+                    } catch (NumberFormatException e) {
+                        System.err.println("Pomijam niepoprawny nagłówek skrzynek: " + line);
+                    }
+                    continue;
+                }
+                String[] parts = line.split("\\|");
+                if (parts.length != 3) {
+                    continue;
+                }
+                try {
+                    Box box = boxes.computeIfAbsent(parts[0], name -> new Box());
+                    box.delivered = Long.parseLong(parts[1]);
+                    box.read = Long.parseLong(parts[2]);
+                    // Czekające wiadomości odtworzymy z dziennika przy logowaniu
+                    box.restore = true;
+                    loaded++;
+                } catch (NumberFormatException e) {
+                    System.err.println("Pomijam niepoprawny wpis skrzynek: " + line);
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Błąd odczytu skrzynek: " + e.getMessage());
+        }
+        System.out.println("Skrzynki odbiorcze: " + loaded + " znaczników doręczenia");
+    }
+
+    // Zapis znaczników co intervalSeconds, tylko gdy coś się zmieniło. Utrata
+    // ostatnich zmian oznacza najwyżej ponowne doręczenie po restarcie - także
+    // skrzynki spoza pliku są odtwarzane od id z nagłówka.
+    void startSaving(int intervalSeconds) {
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "inbox-save");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(this::save, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+    }
+
+    private void save() {
+        if (!dirty) {
+            return;
+        }
+        dirty = false;
+
+        // Przed przejściem po skrzynkach: każda wiadomość do tego id jest już w swojej skrzynce.
+        // Użytkownicy spoza pliku z poprzednich uruchomień nie dostali jeszcze nic nowego,
+        // więc ich punkt odtworzenia zostaje.
+        long storedUpTo = absentFrom != NO_RESTORE ? absentFrom : lastStored;
+        File tempFile = new File(file.getPath() + ".tmp");
+        try (BufferedWriter writer = new BufferedWriter(new FileWriter(tempFile, StandardCharsets.UTF_8))) {
+            writer.write("#" + storedUpTo);
+            writer.newLine();
+            for (Map.Entry<String, Box> entry : boxes.entrySet()) {
+                Box box = entry.getValue();
+                synchronized (box) {
+                    if (box.delivered < 0 && box.read < 0 && box.size == 0) {
+                        continue;
+                    }
+                    writer.write(entry.getKey() + "|" + box.restorePoint() + "|" + box.read);
+                }
+                writer.newLine();
+            }
+        } catch (IOException e) {
+            System.err.println("Błąd zapisu skrzynek: " + e.getMessage());
+            dirty = true;
+            return;
+        }
+
+        try {
+            Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            System.err.println("Błąd zapisu skrzynek: " + e.getMessage());
+            dirty = true;
+        }
+    }
+}
@@ -0,0 +1,188 @@
+package server;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Indeks dziennika wiadomości w pamięci: dla każdego uczestnika rozmowy wpisy
+// (pozycja w dzienniku, długość wpisu, czas, skrót nazwy rozmówcy) upakowane
+// w dwa long, bez obiektu na wiadomość - 16 B na wpis. Pozycja w dzienniku jest
+// też identyfikatorem wiadomości. Indeks nie ma własnego pliku - przy starcie
+// odbudowuje go skan segmentów dziennika, więc nie może się z nim rozjechać.
+class MessageIndex {
+    private static final int LONGS_PER_ENTRY = 2;
+    // Pozycja do 1 TB dziennika, wpis do 16 MB
+    private static final int LENGTH_BITS = 24;
+    // Czas w ms mieści się w 42 bitach; skrót rozmówcy może kolidować i tak
+    private static final int HASH_BITS = 22;
+    private static final long[][] NO_BLOCKS = new long[0][];
+
+    static final class Entry {
+        final long offset;
+        final long timestamp;
+        final int length;
+        final int peerHash;
+
+        Entry(long offset, long timestamp, int length, int peerHash) {
+            this.offset = offset;
+            this.timestamp = timestamp;
+            this.length = length;
+            this.peerHash = peerHash;
+        }
+    }
+
+    static int peerHash(String peer) {
+        return peer.hashCode() & ((1 << HASH_BITS) - 1);
+    }
+
+    // Wpisy jednego uczestnika w kolejności dziennika. Dopisuje jeden wątek
+    // (dziennika albo skanera segmentu), czytają wątki połączeń. Wpisy
+    // z odbudowy zostają w blokach po jednym na segment, bez przepisywania
+    // do wspólnej tablicy; nowe trafiają do rosnącej tablicy data.
+    static final class Postings {
+        private long[][] blocks = NO_BLOCKS;
+        // Numer pierwszego wpisu każdego bloku
+        private int[] blockStarts = new int[0];
+        private int blockEntries;
+        private long[] data = new long[LONGS_PER_ENTRY * 8];
+        private int size;
+
+        synchronized void add(long offset, long timestamp, int length, int peerHash) {
+            addUnshared(offset, timestamp, length, peerHash);
+        }
+
+        // Bez blokady - tylko dla indeksu, którego jeszcze nikt inny nie widzi (skan segmentu)
+        void addUnshared(long offset, long timestamp, int length, int peerHash) {
+            if (size * LONGS_PER_ENTRY == data.length) {
+                data = Arrays.copyOf(data, data.length * 2);
+            }
+            int i = size * LONGS_PER_ENTRY;
+            data[i] = offset << LENGTH_BITS | length;
+            data[i + 1] = timestamp << HASH_BITS | peerHash;
+            size++;
+        }
+
+        // Wpisy zeskanowanego segmentu jako nowy blok, przycięty do rozmiaru
+        synchronized void addBlock(Postings segment) {
+            if (segment.size == 0) {
+                return;
+            }
+            blocks = Arrays.copyOf(blocks, blocks.length + 1);
+            blocks[blocks.length - 1] = Arrays.copyOf(segment.data, segment.size * LONGS_PER_ENTRY);
+            blockStarts = Arrays.copyOf(blockStarts, blockStarts.length + 1);
+            blockStarts[blockStarts.length - 1] = blockEntries;
+            blockEntries += segment.size;
+            segment.data = null;
+        }
+
+        synchronized int size() {
+            return blockEntries + size;
+        }
+
+        // Tablica i indeks pierwszego long wpisu o danym numerze
+        private long[] arrayOf(int position) {
+            if (position >= blockEntries) {
+                return data;
+            }
+            int block = Arrays.binarySearch(blockStarts, position);
+            return blocks[block >= 0 ? block : -block - 2];
+        }
+
+        private int indexOf(int position) {
+            if (position >= blockEntries) {
+                return (position - blockEntries) * LONGS_PER_ENTRY;
+            }
+            int block = Arrays.binarySearch(blockStarts, position);
+            return (position - blockStarts[block >= 0 ? block : -block - 2]) * LONGS_PER_ENTRY;
+        }
+
+        private Entry entry(int position) {
+            long[] array = arrayOf(position);
+            int i = indexOf(position);
+            return new Entry(array[i] >>> LENGTH_BITS, array[i + 1] >>> HASH_BITS,
+                    (int) (array[i] & ((1 << LENGTH_BITS) - 1)), (int) (array[i + 1] & ((1 << HASH_BITS) - 1)));
+        }
+
+        // Wyszukiwanie binarne: pozycja i czas rosną razem z kolejnymi wpisami
+        private int firstAfter(long afterOffset, long afterTimestamp) {
+            int low = 0;
+            int high = blockEntries + size;
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                long[] array = arrayOf(middle);
+                int i = indexOf(middle);
+                if (array[i] >>> LENGTH_BITS > afterOffset && array[i + 1] >>> HASH_BITS > afterTimestamp) {
+                    high = middle;
+                } else {
+                    low = middle + 1;
+                }
+            }
+            return low;
+        }
+    }
+
+    private final Map<String, Postings> participants = new ConcurrentHashMap<>();
+
+    void add(String participant, String peer, long offset, long timestamp, int length) {
+        postings(participant).add(offset, timestamp, length, peerHash(peer));
+    }
+
+    Postings postings(String participant) {
+        return participants.computeIfAbsent(participant, name -> new Postings());
+    }
+
+    // Dołącza wpisy zeskanowanego segmentu; segmenty trzeba dołączać po kolei
+    void addAll(MessageIndex segment) {
+        for (Map.Entry<String, Postings> entry : segment.participants.entrySet()) {
+            postings(entry.getKey()).addBlock(entry.getValue());
+        }
+    }
+
+    int participants() {
+        return participants.size();
+    }
+
+    int count(String participant) {
+        Postings postings = participants.get(participant);
+        return postings == null ? 0 : postings.size();
+    }
+
+    // Wpisy [from, from + count) w kolejności zapisu
+    List<Entry> read(String participant, int from, int count) {
+        List<Entry> entries = new ArrayList<>();
+        Postings postings = participants.get(participant);
+        if (postings == null) {
+            return entries;
+        }
+        synchronized (postings) {
+            int end = Math.min(postings.size(), from + count);
+            for (int i = Math.max(0, from); i < end; i++) {
+                entries.add(postings.entry(i));
+            }
+        }
+        return entries;
+    }
+
+    // Strona wpisów nowszych niż kursor (pozycja i/lub czas), opcjonalnie tylko
+    // z jednym rozmówcą. Zwraca do limit + 1 wpisów, żeby wołający wiedział,
+    // czy jest kolejna strona. Skrót rozmówcy może kolidować - wołający sprawdza treść.
+    List<Entry> find(String participant, String peer, long afterOffset, long afterTimestamp, int limit) {
+        List<Entry> entries = new ArrayList<>();
+        Postings postings = participants.get(participant);
+        if (postings == null) {
+            return entries;
+        }
+        synchronized (postings) {
+            int total = postings.size();
+            for (int i = postings.firstAfter(afterOffset, afterTimestamp); i < total && entries.size() <= limit; i++) {
+                Entry entry = postings.entry(i);
+                if (peer == null || entry.peerHash == peerHash(peer)) {
+                    entries.add(entry);
+                }
+            }
+        }
+        return entries;
+    }
+}
@@ -0,0 +1,808 @@
+package server;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32C;
+
+// Dziennik wiadomości prywatnych otwarty przez cały czas działania serwera.
+// Wątki połączeń tylko zgłaszają wpisy, a jeden wątek zapisuje je paczkami
+// (jeden write na paczkę) i robi fsync zgodnie z wybraną trwałością.
+// Po każdej paczce dopisuje pozycje wpisów do indeksu uczestników.
+// Wpis jest składany od razu w buforze paczki, bez pośrednich Stringów.
+//
+// Dziennik przeżywa restart: to katalog segmentów nazwanych pozycją pierwszego
+// wpisu, więc pozycja (id wiadomości) rośnie przez wszystkie segmenty. Wpis to
+// nagłówek [długość treści][CRC32C treści] i treść "ts|od|do|wiadomość".
+// Przy starcie segmenty są skanowane równolegle, a przerwany ostatni wpis
+// (zła długość albo suma kontrolna) jest obcinany.
+class MessageLog {
+    enum Durability {
+        NONE, INTERVAL, ALWAYS;
+
+        static Durability parse(String value) {
+            switch (value) {
+                case "always":
+                    return ALWAYS;
+                case "interval":
+                    return INTERVAL;
+                default:
+                    return NONE;
+            }
+        }
+    }
+
+    // Odbiorca "#nazwa" to grupa - jej wiadomości mają osobny indeks
+    static final String GROUP_PREFIX = "#";
+
+    // Długość i suma kontrolna przed treścią wpisu
+    static final int HEADER_SIZE = 8;
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final int SCAN_CHUNK = 4 * 1024 * 1024;
+    // Strona indeksu przy odtwarzaniu skrzynki odbiorczej
+    private static final int SCAN_PAGE = 1000;
+
+    private static final int MAX_BATCH = 1024;
+    // Pełna kolejka wstrzymuje nadawców, zamiast rosnąć bez końca, gdy dysk nie nadąża
+    private static final int MAX_PENDING = 64 * 1024;
+
+    private final File dir;
+    private final long segmentBytes;
+    // Segmenty według pozycji pierwszego wpisu - odczyt historii bierze floorEntry
+    private final ConcurrentSkipListMap<Long, Segment> segments = new ConcurrentSkipListMap<>();
+    // Aktywny segment; zmienia go tylko wątek dziennika
+    private FileChannel channel;
+    private long activeBase;
+    private long activeSize;
+    private final CRC32C checksum = new CRC32C();
+    private final MessageIndex index;
+    private final Durability durability;
+    private final long syncIntervalMs;
+
+    private final BlockingQueue<Pending> pending = new ArrayBlockingQueue<>(MAX_PENDING);
+    private ByteBuffer batchBuffer = ByteBuffer.allocate(64 * 1024);
+
+    // Wpisy zapisane, ale czekające na fsync (tryb INTERVAL)
+    private final List<Pending> awaitingSync = new ArrayList<>();
+    private long lastSync = System.currentTimeMillis();
+
+    // Czas nadaje wątek dziennika, więc rośnie razem z pozycją w pliku -
+    // indeks może szukać po czasie binarnie
+    private long lastTimestamp = 0;
+    // Koniec dziennika po odbudowie - wszystko przed nim pochodzi z poprzednich uruchomień
+    private long recoveredEnd;
+
+    // Skrzynki odbiorcze - dostają id każdej zapisanej wiadomości prywatnej
+    private volatile Inbox inbox;
+
+    private final Thread writer;
+    // Znacznik końca w kolejce: wątek dziennika zapisuje wszystko przed nim i kończy pracę
+    private static final Pending CLOSE = new Pending(null, null, null, null);
+    private volatile boolean closed = false;
+
+    private static final class Pending {
+        final String from;
+        final String to;
+        final byte[] message;
+        final Runnable onDurable;
+        // Do histogramu czasu utrwalenia (Metrics.PERSIST_LATENCY)
+        final long enqueued = System.nanoTime();
+        // Wiadomość prywatna dla skrzynki odbiorcy; deliveredLive - już wysłana na żywo
+        boolean toInbox;
+        boolean deliveredLive;
+        long timestamp;
+        int length;
+        long offset;
+
+        Pending(String from, String to, byte[] message, Runnable onDurable) {
+            this.from = from;
+            this.to = to;
+            this.message = message;
+            this.onDurable = onDurable;
+        }
+    }
+
+    private static final class Segment {
+        final long base;
+        final File file;
+        // Osobny kanał do odczytów pozycyjnych - kanał APPEND nie pozwala na READ
+        final FileChannel reader;
+
+        Segment(File dir, long base) throws IOException {
+            this.base = base;
+            this.file = new File(dir, String.format("%020d%s", base, SEGMENT_SUFFIX));
+            if (!file.exists()) {
+                file.createNewFile();
+            }
+            this.reader = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        }
+    }
+
+    // Wynik skanu jednego segmentu
+    private static final class Scan {
+        final MessageIndex index = new MessageIndex();
+        long records;
+        long validLength;
+        long lastTimestamp;
+    }
+
+    static final class HistoryPage {
+        final List<String> records;
+        final long lastId;
+        final boolean more;
+
+        HistoryPage(List<String> records, long lastId, boolean more) {
+            this.records = records;
+            this.lastId = lastId;
+            this.more = more;
+        }
+    }
+
+    MessageLog(File dir, MessageIndex index, Durability durability, long syncIntervalMs, long segmentBytes) throws IOException {
+        this.dir = dir;
+        this.index = index;
+        this.durability = durability;
+        this.syncIntervalMs = syncIntervalMs;
+        this.segmentBytes = segmentBytes;
+        dir.mkdirs();
+        recover();
+        recoveredEnd = activeBase + activeSize;
+
+        writer = new Thread(this::writeLoop, "message-log");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    // Odbudowa indeksu z segmentów: każdy skanowany w osobnym zadaniu, wyniki
+    // dołączane do indeksu po kolei, żeby wpisy uczestnika zostały posortowane
+    private void recover() throws IOException {
+        long started = System.nanoTime();
+        File[] files = dir.listFiles((d, name) -> name.endsWith(SEGMENT_SUFFIX));
+        for (File file : files == null ? new File[0] : files) {
+            String name = file.getName();
+            try {
+                long base = Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+                segments.put(base, new Segment(dir, base));
+            } catch (NumberFormatException e) {
+                System.err.println("Pomijam obcy plik w katalogu dziennika: " + name);
+            }
+        }
+        if (segments.isEmpty()) {
+            openActive(new Segment(dir, 0));
+            System.out.println("Dziennik wiadomości: nowy, w " + dir);
+            return;
+        }
+
+        List<Segment> ordered = new ArrayList<>(segments.values());
+        ExecutorService pool = Executors.newFixedThreadPool(
+                Math.min(ordered.size(), Runtime.getRuntime().availableProcessors()));
+        long records = 0;
+        try {
+            List<Future<Scan>> scans = new ArrayList<>();
+            for (Segment segment : ordered) {
+                scans.add(pool.submit(() -> scan(segment)));
+            }
+            for (int i = 0; i < ordered.size(); i++) {
+                Segment segment = ordered.get(i);
+                Scan scan = scans.get(i).get();
+                // Wynik skanu nie jest już potrzebny, gdy wpisy są w indeksie
+                scans.set(i, null);
+                index.addAll(scan.index);
+                records += scan.records;
+                lastTimestamp = Math.max(lastTimestamp, scan.lastTimestamp);
+
+                long length = segment.file.length();
+                if (scan.validLength == length) {
+                    continue;
+                }
+                if (i == ordered.size() - 1) {
+                    // Wpis przerwany awarią w trakcie zapisu - nigdy nie został potwierdzony
+                    try (FileChannel truncate = FileChannel.open(segment.file.toPath(), StandardOpenOption.WRITE)) {
+                        truncate.truncate(scan.validLength);
+                    }
+                    System.out.println("Obcięto uszkodzony koniec dziennika: " + (length - scan.validLength) + " B");
+                } else {
+                    System.err.println("Uszkodzony wpis w segmencie " + segment.file.getName() + " na pozycji "
+                            + scan.validLength + " - dalsza część segmentu jest pominięta");
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Przerwano odbudowę indeksu", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Błąd odbudowy indeksu: " + e.getCause().getMessage(), e.getCause());
+        } finally {
+            pool.shutdown();
+        }
+
+        openActive(segments.lastEntry().getValue());
+        System.out.println("Dziennik wiadomości: " + records + " wpisów w " + segments.size()
+                + " segmentach, " + index.participants() + " uczestników, indeks odbudowany w "
+                + (System.nanoTime() - started) / 1_000_000 + " ms");
+    }
+
+    // Czyta segment kawałkami do tablicy na stercie i sprawdza kolejne wpisy.
+    // validLength to koniec ostatniego poprawnego wpisu.
+    private static Scan scan(Segment segment) throws IOException {
+        Scan scan = new Scan();
+        try (FileChannel file = FileChannel.open(segment.file.toPath(), StandardOpenOption.READ)) {
+            long fileSize = file.size();
+            byte[] data = new byte[SCAN_CHUNK];
+            long chunkStart = 0;
+            int position = 0;
+            int limit = 0;
+            boolean eof = false;
+            CRC32C crc = new CRC32C();
+            NameCache names = new NameCache(scan.index);
+
+            while (true) {
+                int available = limit - position;
+                int length = available >= HEADER_SIZE ? getInt(data, position) : 0;
+                if (available >= HEADER_SIZE
+                        && (length <= 0 || length > fileSize - chunkStart - position - HEADER_SIZE)) {
+                    break;
+                }
+                if (available < HEADER_SIZE + length) {
+                    if (eof) {
+                        break;
+                    }
+                    // Reszta na początek tablicy i doczytanie pliku
+                    if (HEADER_SIZE + length > data.length) {
+                        data = Arrays.copyOf(data, HEADER_SIZE + length);
+                    }
+                    System.arraycopy(data, position, data, 0, available);
+                    chunkStart += position;
+                    position = 0;
+                    limit = available;
+                    int read = file.read(ByteBuffer.wrap(data, limit, data.length - limit), chunkStart + limit);
+                    if (read < 0) {
+                        eof = true;
+                    } else {
+                        limit += read;
+                    }
+                    continue;
+                }
+
+                int start = position + HEADER_SIZE;
+                int end = start + length;
+                crc.reset();
+                crc.update(data, start, length);
+                if ((int) crc.getValue() != getInt(data, position + 4)) {
+                    break;
+                }
+
+                // ts|od|do|treść
+                long timestamp = 0;
+                int i = start;
+                while (i < end && data[i] != '|') {
+                    timestamp = timestamp * 10 + (data[i++] - '0');
+                }
+                int fromStart = ++i;
+                while (i < end && data[i] != '|') {
+                    i++;
+                }
+                int toStart = ++i;
+                while (i < end && data[i] != '|') {
+                    i++;
+                }
+                if (i >= end) {
+                    break;
+                }
+                Name from = names.get(data, fromStart, toStart - 1 - fromStart);
+                Name to = names.get(data, toStart, i - toStart);
+                long offset = segment.base + chunkStart + position;
+                // Te same reguły co addToIndex, bez szukania uczestnika w mapie
+                if (!to.group) {
+                    from.postings.addUnshared(offset, timestamp, HEADER_SIZE + length, to.hash);
+                }
+                if (to != from) {
+                    to.postings.addUnshared(offset, timestamp, HEADER_SIZE + length, from.hash);
+                }
+
+                scan.records++;
+                scan.lastTimestamp = Math.max(scan.lastTimestamp, timestamp);
+                position = end;
+            }
+            scan.validLength = chunkStart + position;
+        }
+        return scan;
+    }
+
+    private static int getInt(byte[] data, int at) {
+        return (data[at] & 0xff) << 24 | (data[at + 1] & 0xff) << 16 | (data[at + 2] & 0xff) << 8 | (data[at + 3] & 0xff);
+    }
+
+    private static final class Name {
+        final byte[] utf8;
+        final int bytesHash;
+        final String name;
+        final int hash;
+        final boolean group;
+        final MessageIndex.Postings postings;
+
+        Name(byte[] utf8, int bytesHash, MessageIndex index) {
+            this.utf8 = utf8;
+            this.bytesHash = bytesHash;
+            this.name = new String(utf8, StandardCharsets.UTF_8);
+            this.hash = MessageIndex.peerHash(name);
+            this.group = name.startsWith(GROUP_PREFIX);
+            this.postings = index.postings(name);
+        }
+    }
+
+    // Nazwy skanowanego segmentu według bajtów (adresowanie otwarte) - bez nowego
+    // Stringa i szukania w mapie indeksu dla każdego wpisu
+    private static final class NameCache {
+        private Name[] names = new Name[1024];
+        private int count;
+        private final MessageIndex index;
+
+        NameCache(MessageIndex index) {
+            this.index = index;
+        }
+
+        Name get(byte[] data, int from, int length) {
+            int hash = 1;
+            for (int i = from; i < from + length; i++) {
+                hash = 31 * hash + data[i];
+            }
+            int mask = names.length - 1;
+            int slot = slot(hash, mask);
+            Name name;
+            while ((name = names[slot]) != null) {
+                if (Arrays.equals(name.utf8, 0, name.utf8.length, data, from, from + length)) {
+                    return name;
+                }
+                slot = (slot + 1) & mask;
+            }
+            name = new Name(Arrays.copyOfRange(data, from, from + length), hash, index);
+            names[slot] = name;
+            if (++count * 2 > names.length) {
+                grow();
+            }
+            return name;
+        }
+
+        // Mieszanie skrótu - kolejne nazwy (user1, user2...) nie zajmują sąsiednich miejsc
+        private static int slot(int hash, int mask) {
+            int mixed = hash * 0x9e3779b9;
+            return (mixed ^ (mixed >>> 16)) & mask;
+        }
+
+        private void grow() {
+            Name[] old = names;
+            names = new Name[old.length * 2];
+            int mask = names.length - 1;
+            for (Name name : old) {
+                if (name != null) {
+                    int slot = slot(name.bytesHash, mask);
+                    while (names[slot] != null) {
+                        slot = (slot + 1) & mask;
+                    }
+                    names[slot] = name;
+                }
+            }
+        }
+    }
+
+    // Wiadomość grupowa trafia tylko do indeksu grupy, nie do historii prywatnej nadawcy
+    private static void addToIndex(MessageIndex index, String from, String to, long offset, long timestamp, int length) {
+        if (!to.startsWith(GROUP_PREFIX)) {
+            index.add(from, to, offset, timestamp, length);
+        }
+        if (!to.equals(from)) {
+            index.add(to, from, offset, timestamp, length);
+        }
+    }
+
+    private void openActive(Segment segment) throws IOException {
+        segments.put(segment.base, segment);
+        channel = FileChannel.open(segment.file.toPath(), StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        activeBase = segment.base;
+        activeSize = channel.size();
+    }
+
+    // Nowy segment od bieżącej pozycji; poprzedni jest najpierw utrwalany
+    private void roll() throws IOException {
+        if (durability != Durability.NONE) {
+            channel.force(false);
+            lastSync = System.currentTimeMillis();
+            completeAll(awaitingSync);
+            awaitingSync.clear();
+        }
+        channel.close();
+        openActive(new Segment(dir, activeBase + activeSize));
+    }
+
+    // Zapisuje i utrwala wszystko, co już czeka w kolejce, kończy wątek dziennika
+    // i zamyka pliki segmentów. Późniejsze append nie są już zapisywane.
+    synchronized void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        enqueue(CLOSE);
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        try {
+            channel.close();
+            for (Segment segment : segments.values()) {
+                segment.reader.close();
+            }
+        } catch (IOException e) {
+            System.err.println("Błąd zamykania dziennika wiadomości: " + e.getMessage());
+        }
+    }
+
+    long recoveredEnd() {
+        return recoveredEnd;
+    }
+
+    void setInbox(Inbox inbox) {
+        this.inbox = inbox;
+    }
+
+    // onDurable (może być null) jest wołane z wątku dziennika, gdy wpis osiągnie
+    // wybraną trwałość; przy błędzie zapisu nie jest wołane wcale
+    void append(String from, String to, byte[] message, Runnable onDurable) {
+        enqueue(new Pending(from, to, message, onDurable));
+    }
+
+    // Wiadomość prywatna: po zapisie (przed fsync) jej id dostaje skrzynka odbiorcy
+    void appendPrivate(String from, String to, byte[] message, Runnable onDurable, boolean deliveredLive) {
+        Pending entry = new Pending(from, to, message, onDurable);
+        entry.toInbox = true;
+        entry.deliveredLive = deliveredLive;
+        enqueue(entry);
+    }
+
+    private void enqueue(Pending entry) {
+        // Po close() nikt już nie opróżnia kolejki - nadawca czekałby na miejsce bez końca
+        if (closed && entry != CLOSE) {
+            return;
+        }
+        try {
+            pending.put(entry);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Historia z indeksu: bez przeglądania całego dziennika
+    List<String> historyFor(String username) {
+        return read(index.read(username, 0, index.count(username)));
+    }
+
+    // Strona historii po kursorze: wiadomości o id (pozycji w dzienniku) > afterId
+    // i czasie > afterTimestamp; peer == null oznacza wszystkie rozmowy
+    HistoryPage page(String username, String peer, long afterId, long afterTimestamp, int limit) {
+        List<MessageIndex.Entry> entries = index.find(username, peer, afterId, afterTimestamp, limit);
+        boolean more = entries.size() > limit;
+        if (more) {
+            entries = entries.subList(0, limit);
+        }
+
+        List<String> records = new ArrayList<>();
+        long lastId = -1;
+        List<String> texts = read(entries);
+        for (int i = 0; i < texts.size(); i++) {
+            // Kursor przesuwa się także za odrzuconymi wpisami
+            lastId = entries.get(i).offset;
+            String record = texts.get(i);
+            if (peer != null) {
+                // Odrzuć kolizje skrótu nazwy rozmówcy
+                String[] parts = record.split("\\|", 4);
+                if (parts.length < 4 || !(parts[1].equals(peer) || parts[2].equals(peer))) {
+                    continue;
+                }
+            }
+            records.add(record);
+        }
+        return new HistoryPage(records, lastId, more);
+    }
+
+    // Rozmówcy z ostatnich limit wiadomości prywatnych użytkownika, od najnowszego.
+    // Indeks ma tylko skróty nazw, więc czytamy same wpisy - koszt zależy od limit,
+    // nie od długości historii.
+    Set<String> recentPeers(String username, int limit) {
+        int count = index.count(username);
+        int from = Math.max(0, count - limit);
+        List<String> texts = read(index.read(username, from, count - from));
+        Set<String> peers = new LinkedHashSet<>();
+        for (int i = texts.size() - 1; i >= 0; i--) {
+            String[] parts = texts.get(i).split("\\|", 4);
+            if (parts.length == 4) {
+                String peer = parts[1].equals(username) ? parts[2] : parts[1];
+                if (!peer.equals(username) && !peer.startsWith(GROUP_PREFIX)) {
+                    peers.add(peer);
+                }
+            }
+        }
+        return peers;
+    }
+
+    // Id wiadomości do username (nie od niego) nowszych niż afterId, rosnąco.
+    // Przy więcej niż limit zostaje limit najnowszych.
+    long[] incoming(String username, long afterId, int limit) {
+        long[] ids = new long[limit];
+        long found = 0;
+        long cursor = afterId;
+        while (true) {
+            List<MessageIndex.Entry> entries = index.find(username, null, cursor, -1, SCAN_PAGE);
+            List<String> texts = read(entries);
+            for (int i = 0; i < texts.size() && i < SCAN_PAGE; i++) {
+                String[] parts = texts.get(i).split("\\|", 4);
+                if (parts.length == 4 && parts[2].equals(username) && !parts[1].equals(username)) {
+                    ids[(int) (found++ % limit)] = entries.get(i).offset;
+                }
+            }
+            if (entries.size() <= SCAN_PAGE) {
+                break;
+            }
+            cursor = entries.get(SCAN_PAGE - 1).offset;
+        }
+        // Bufor cykliczny - od najstarszego zachowanego
+        int count = (int) Math.min(found, limit);
+        long[] result = new long[count];
+        for (int i = 0; i < count; i++) {
+            result[i] = ids[(int) ((found - count + i) % limit)];
+        }
+        return result;
+    }
+
+    // Wpis "ts|od|do|wiadomość" o danym id; null, gdy nie da się go odczytać
+    String readRecord(long id) {
+        Map.Entry<Long, Segment> floor = segments.floorEntry(id);
+        if (floor == null) {
+            return null;
+        }
+        Segment segment = floor.getValue();
+        long position = id - segment.base;
+        try {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            readFully(segment.reader, header, position);
+            int length = header.getInt(0);
+            if (header.hasRemaining() || length < 0 || position + HEADER_SIZE + length > segment.reader.size()) {
+                return null;
+            }
+            ByteBuffer payload = ByteBuffer.allocate(length);
+            readFully(segment.reader, payload, position + HEADER_SIZE);
+            return new String(payload.array(), 0, payload.position(), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            System.err.println("Błąd odczytu wiadomości: " + e.getMessage());
+            return null;
+        }
+    }
+
+    private static void readFully(FileChannel reader, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (reader.read(buffer, position + buffer.position()) < 0) {
+                return;
+            }
+        }
+    }
+
+    List<String> read(List<MessageIndex.Entry> entries) {
+        List<String> messages = new ArrayList<>(entries.size());
+        for (MessageIndex.Entry entry : entries) {
+            Segment segment = segments.floorEntry(entry.offset).getValue();
+            long position = entry.offset - segment.base + HEADER_SIZE;
+            ByteBuffer buffer = ByteBuffer.allocate(entry.length - HEADER_SIZE);
+            try {
+                while (buffer.hasRemaining()) {
+                    if (segment.reader.read(buffer, position + buffer.position()) < 0) {
+                        break;
+                    }
+                }
+            } catch (IOException e) {
+                System.err.println("Błąd odczytu wiadomości: " + e.getMessage());
+                break;
+            }
+            messages.add(new String(buffer.array(), 0, buffer.position(), StandardCharsets.UTF_8));
+        }
+        return messages;
+    }
+
+    private void writeLoop() {
+        List<Pending> batch = new ArrayList<>();
+        while (true) {
+            try {
+                Pending first = awaitingSync.isEmpty()
+                        ? pending.take()
+                        : pending.poll(Math.max(0, lastSync + syncIntervalMs - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+                boolean closing = false;
+                if (first != null) {
+                    batch.add(first);
+                    pending.drainTo(batch, MAX_BATCH - 1);
+                    closing = batch.remove(CLOSE);
+                    try {
+                        if (!batch.isEmpty()) {
+                            writeBatch(batch);
+                        }
+                    } catch (RuntimeException e) {
+                        // Paczka przepada jak przy błędzie zapisu, ale wątek dziennika żyje dalej -
+                        // bez niego pełna kolejka wstrzymałaby wszystkich nadawców na zawsze
+                        System.err.println("Błąd paczki dziennika (" + batch.size() + " wpisów pominięto): " + e);
+                        awaitingSync.removeAll(batch);
+                    }
+                    batch.clear();
+                }
+                if (!awaitingSync.isEmpty() && (closing || System.currentTimeMillis() - lastSync >= syncIntervalMs)) {
+                    try {
+                        sync(awaitingSync);
+                    } catch (RuntimeException e) {
+                        System.err.println("Błąd fsync dziennika wiadomości: " + e);
+                        lastSync = System.currentTimeMillis();
+                    }
+                    awaitingSync.clear();
+                }
+                if (closing) {
+                    return;
+                }
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    private void writeBatch(List<Pending> batch) {
+        // Górne oszacowanie: znak UTF-16 to najwyżej 3 bajty UTF-8
+        int size = 0;
+        for (Pending entry : batch) {
+            size += HEADER_SIZE + 20 + 3 + 3 * (entry.from.length() + entry.to.length()) + entry.message.length;
+        }
+        if (batchBuffer.capacity() < size) {
+            batchBuffer = ByteBuffer.allocate(Math.max(size, batchBuffer.capacity() * 2));
+        }
+        batchBuffer.clear();
+        for (Pending entry : batch) {
+            entry.timestamp = Math.max(System.currentTimeMillis(), lastTimestamp);
+            lastTimestamp = entry.timestamp;
+            // [długość][crc] ts|od|do|treść
+            int start = batchBuffer.position();
+            batchBuffer.position(start + HEADER_SIZE);
+            putDecimal(batchBuffer, entry.timestamp);
+            batchBuffer.put((byte) '|');
+            putUtf8(batchBuffer, entry.from);
+            batchBuffer.put((byte) '|');
+            putUtf8(batchBuffer, entry.to);
+            batchBuffer.put((byte) '|');
+            batchBuffer.put(entry.message);
+            int length = batchBuffer.position() - start - HEADER_SIZE;
+            checksum.reset();
+            checksum.update(batchBuffer.array(), start + HEADER_SIZE, length);
+            batchBuffer.putInt(start, length).putInt(start + 4, (int) checksum.getValue());
+            entry.length = HEADER_SIZE + length;
+        }
+        batchBuffer.flip();
+
+        long position;
+        try {
+            if (activeSize > 0 && activeSize + batchBuffer.remaining() > segmentBytes) {
+                roll();
+            }
+            position = activeBase + activeSize;
+            while (batchBuffer.hasRemaining()) {
+                channel.write(batchBuffer);
+            }
+            activeSize += batchBuffer.limit();
+        } catch (IOException e) {
+            System.err.println("Błąd zapisu wiadomości: " + e.getMessage());
+            // Bez częściowej paczki w środku pliku - po niej skan przy starcie by się zatrzymał
+            try {
+                channel.truncate(activeSize);
+            } catch (IOException ignored) {
+                // Obetnie ją skan przy starcie, jeśli to koniec dziennika
+            }
+            return;
+        }
+
+        // Indeks dopisujemy dopiero po zapisie dziennika, więc zawsze wskazuje pełne wpisy
+        long offset = position;
+        for (Pending entry : batch) {
+            entry.offset = offset;
+            addToIndex(index, entry.from, entry.to, offset, entry.timestamp, entry.length);
+            offset += entry.length;
+        }
+        Inbox inbox = this.inbox;
+        if (inbox != null) {
+            for (Pending entry : batch) {
+                if (entry.toInbox) {
+                    inbox.stored(entry.from, entry.to, entry.offset, entry.message, entry.deliveredLive);
+                }
+            }
+        }
+
+        switch (durability) {
+            case ALWAYS:
+                // Commit grupowy: jeden fsync na całą paczkę
+                sync(batch);
+                break;
+            case INTERVAL:
+                for (Pending entry : batch) {
+                    awaitingSync.add(entry);
+                }
+                break;
+            default:
+                completeAll(batch);
+        }
+    }
+
+    private static void completeAll(List<Pending> entries) {
+        long now = System.nanoTime();
+        for (Pending entry : entries) {
+            Metrics.PERSIST_LATENCY.record(now - entry.enqueued);
+            if (entry.onDurable != null) {
+                // Błąd jednego potwierdzenia nie zabiera pozostałym ich MSG_SENT
+                try {
+                    entry.onDurable.run();
+                } catch (RuntimeException e) {
+                    System.err.println("Błąd potwierdzenia zapisu: " + e);
+                }
+            }
+        }
+    }
+
+    private static void putDecimal(ByteBuffer buffer, long value) {
+        if (value >= 10) {
+            putDecimal(buffer, value / 10);
+        }
+        buffer.put((byte) ('0' + value % 10));
+    }
+
+    // Kodowanie UTF-8 prosto do bufora, bez tablicy pośredniej z getBytes
+    private static void putUtf8(ByteBuffer buffer, String text) {
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c < 0x80) {
+                buffer.put((byte) c);
+            } else if (c < 0x800) {
+                buffer.put((byte) (0xc0 | (c >> 6)));
+                buffer.put((byte) (0x80 | (c & 0x3f)));
+            } else if (Character.isHighSurrogate(c) && i + 1 < text.length() && Character.isLowSurrogate(text.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, text.charAt(++i));
+                buffer.put((byte) (0xf0 | (codePoint >> 18)));
+                buffer.put((byte) (0x80 | ((codePoint >> 12) & 0x3f)));
+                buffer.put((byte) (0x80 | ((codePoint >> 6) & 0x3f)));
+                buffer.put((byte) (0x80 | (codePoint & 0x3f)));
+            } else if (Character.isSurrogate(c)) {
+                buffer.put((byte) '?');
+            } else {
+                buffer.put((byte) (0xe0 | (c >> 12)));
+                buffer.put((byte) (0x80 | ((c >> 6) & 0x3f)));
+                buffer.put((byte) (0x80 | (c & 0x3f)));
+            }
+        }
+    }
+
+    private void sync(List<Pending> entries) {
+        try {
+            channel.force(false);
+            lastSync = System.currentTimeMillis();
+            completeAll(entries);
+        } catch (IOException e) {
+            System.err.println("Błąd fsync dziennika wiadomości: " + e.getMessage());
+        }
+    }
+}
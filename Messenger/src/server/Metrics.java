@@ -0,0 +1,379 @@
+package server;
+
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+// Metryki serwera: liczniki na LongAdder (każdy wątek dodaje do swojej komórki,
+// bez wspólnej linii pamięci podręcznej na gorącej ścieżce) i histogramy
+// o stałych przedziałach, też na LongAdder. Odczyt sumuje komórki dopiero przy
+// pobraniu - przez HTTP w formacie tekstowym Prometheusa (/metrics) albo
+// poleceniem STATS na porcie czatu.
+final class Metrics {
+    private static final long MICROS = 1_000L;
+    private static final long MILLIS = 1_000_000L;
+    private static final long SECOND = 1_000_000_000L;
+    // Przedziały czasu w ns, eksportowane w sekundach
+    private static final long[] LATENCY_BOUNDS = {
+            50 * MICROS, 100 * MICROS, 250 * MICROS, 500 * MICROS,
+            MILLIS, 2_500 * MICROS, 5 * MILLIS, 10 * MILLIS, 25 * MILLIS, 50 * MILLIS,
+            100 * MILLIS, 250 * MILLIS, 500 * MILLIS, SECOND, 5 * SECOND};
+    private static final long[] FANOUT_BOUNDS = {0, 1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000, 10000};
+    // Okno, z którego liczymy "na sekundę" w STATS
+    private static final int RATE_WINDOW = 10;
+
+    private static final List<Instrument> instruments = new ArrayList<>();
+
+    static final Gauge CONNECTIONS = new Gauge("messenger_connections", "", "connections", "Otwarte połączenia klientów");
+    static final Counter LOGINS = new Counter("messenger_logins_total", "", "logins", "Udane logowania");
+    static final Counter ROUTED_PRIVATE = new Counter("messenger_messages_routed_total", "kind=\"private\"",
+            "routed_private", "Wiadomości przekazane dalej");
+    static final Counter ROUTED_GROUP = new Counter("messenger_messages_routed_total", "kind=\"group\"",
+            "routed_group", "Wiadomości przekazane dalej");
+    static final Counter ROUTED_CHAT = new Counter("messenger_messages_routed_total", "kind=\"chat\"",
+            "routed_chat", "Wiadomości przekazane dalej");
+    // Polityka wolnego odbiorcy: ramki odrzucone (drop-oldest, disconnect) i przelane na dysk (spill)
+    static final Counter OUTBOUND_DROPPED = new Counter("messenger_outbound_frames_total", "outcome=\"dropped\"",
+            "outbound_dropped", "Ramki, których kolejka wychodząca wolnego klienta nie przyjęła do pamięci");
+    static final Counter OUTBOUND_SPILLED = new Counter("messenger_outbound_frames_total", "outcome=\"spilled\"",
+            "outbound_spilled", "Ramki, których kolejka wychodząca wolnego klienta nie przyjęła do pamięci");
+    // Bilans połączeń z kompresją, doliczany przy ich zamknięciu
+    static final Counter COMPRESSION_WIRE = new Counter("messenger_compression_bytes_total", "side=\"wire\"",
+            "compression_wire_bytes", "Bajty strumieni DEFLATE zamkniętych połączeń: na łączu i przed kompresją");
+    static final Counter COMPRESSION_RAW = new Counter("messenger_compression_bytes_total", "side=\"raw\"",
+            "compression_raw_bytes", "Bajty strumieni DEFLATE zamkniętych połączeń: na łączu i przed kompresją");
+    static final Histogram PERSIST_LATENCY = new Histogram("messenger_persist_seconds", "persist",
+            "Od zgłoszenia wpisu do dziennika do osiągnięcia wybranej trwałości", LATENCY_BOUNDS, SECOND);
+    static final Histogram HISTORY_LATENCY = new Histogram("messenger_history_read_seconds", "history_read",
+            "Obsługa GET_HISTORY (indeks i odczyt dziennika)", LATENCY_BOUNDS, SECOND);
+    static final Histogram FANOUT = new Histogram("messenger_broadcast_fanout", "fanout",
+            "Liczba odbiorców jednego rozgłoszenia albo wiadomości grupowej", FANOUT_BOUNDS, 1);
+
+    private Metrics() {
+    }
+
+    abstract static class Instrument {
+        final String family;
+        final String labels;
+        final String statName;
+        final String help;
+
+        Instrument(String family, String labels, String statName, String help) {
+            this.family = family;
+            this.labels = labels;
+            this.statName = statName;
+            this.help = help;
+            synchronized (instruments) {
+                instruments.add(this);
+            }
+        }
+
+        abstract String type();
+
+        abstract void prometheus(StringBuilder out);
+
+        abstract void stats(Map<String, String> out);
+
+        String series(String suffix, String extraLabel) {
+            String all = labels.isEmpty() ? extraLabel : extraLabel.isEmpty() ? labels : labels + "," + extraLabel;
+            return family + suffix + (all.isEmpty() ? "" : "{" + all + "}");
+        }
+    }
+
+    // Licznik własny albo odczyt licznika prowadzonego gdzie indziej (supplier)
+    static final class Counter extends Instrument {
+        private final LongAdder value = new LongAdder();
+        private final LongSupplier supplier;
+        // Sumy z ostatnich sekund, do średniej na sekundę
+        private final long[] samples = new long[RATE_WINDOW + 1];
+        private int sampled = 0;
+
+        Counter(String family, String labels, String statName, String help) {
+            this(family, labels, statName, help, null);
+        }
+
+        Counter(String family, String labels, String statName, String help, LongSupplier supplier) {
+            super(family, labels, statName, help);
+            this.supplier = supplier;
+        }
+
+        void increment() {
+            value.increment();
+        }
+
+        void add(long amount) {
+            value.add(amount);
+        }
+
+        long sum() {
+            return supplier != null ? supplier.getAsLong() : value.sum();
+        }
+
+        synchronized void sample() {
+            samples[sampled++ % samples.length] = sum();
+        }
+
+        synchronized double perSecond() {
+            if (sampled < 2) {
+                return 0;
+            }
+            int span = Math.min(sampled - 1, RATE_WINDOW);
+            long newest = samples[(sampled - 1) % samples.length];
+            long oldest = samples[(sampled - 1 - span) % samples.length];
+            return (newest - oldest) / (double) span;
+        }
+
+        @Override
+        String type() {
+            return "counter";
+        }
+
+        @Override
+        void prometheus(StringBuilder out) {
+            out.append(series("", "")).append(' ').append(sum()).append('\n');
+        }
+
+        @Override
+        void stats(Map<String, String> out) {
+            out.put(statName, String.valueOf(sum()));
+            out.put(statName + "_per_s", String.format(Locale.ROOT, "%.1f", perSecond()));
+        }
+    }
+
+    // Wartość chwilowa: licznik w górę i w dół albo odczyt przy pobraniu
+    static final class Gauge extends Instrument {
+        private final LongAdder value = new LongAdder();
+        private final LongSupplier supplier;
+
+        Gauge(String family, String labels, String statName, String help) {
+            this(family, labels, statName, help, null);
+        }
+
+        Gauge(String family, String labels, String statName, String help, LongSupplier supplier) {
+            super(family, labels, statName, help);
+            this.supplier = supplier;
+        }
+
+        void increment() {
+            value.increment();
+        }
+
+        void decrement() {
+            value.decrement();
+        }
+
+        long get() {
+            return supplier != null ? supplier.getAsLong() : value.sum();
+        }
+
+        @Override
+        String type() {
+            return "gauge";
+        }
+
+        @Override
+        void prometheus(StringBuilder out) {
+            out.append(series("", "")).append(' ').append(get()).append('\n');
+        }
+
+        @Override
+        void stats(Map<String, String> out) {
+            out.put(statName, String.valueOf(get()));
+        }
+    }
+
+    // Stałe przedziały (górne granice włącznie) plus jeden na wartości powyżej ostatniej
+    static final class Histogram extends Instrument {
+        private final long[] bounds;
+        private final LongAdder[] buckets;
+        private final LongAdder sum = new LongAdder();
+        private final double unit;
+
+        Histogram(String family, String statName, String help, long[] bounds, double unit) {
+            super(family, "", statName, help);
+            this.bounds = bounds;
+            this.unit = unit;
+            this.buckets = new LongAdder[bounds.length + 1];
+            for (int i = 0; i < buckets.length; i++) {
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        void record(long value) {
+            int low = 0;
+            int high = bounds.length;
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                if (bounds[middle] < value) {
+                    low = middle + 1;
+                } else {
+                    high = middle;
+                }
+            }
+            buckets[low].increment();
+            sum.add(value);
+        }
+
+        // Czas od startNanos (System.nanoTime)
+        void recordSince(long startNanos) {
+            record(System.nanoTime() - startNanos);
+        }
+
+        // Górna granica przedziału, w którym leży dany kwantyl; -1 bez danych
+        private double quantile(long[] counts, long total, double q) {
+            long rank = (long) Math.ceil(q * total);
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank && seen > 0) {
+                    return i < bounds.length ? bounds[i] / unit : Double.POSITIVE_INFINITY;
+                }
+            }
+            return -1;
+        }
+
+        private long[] counts() {
+            long[] counts = new long[buckets.length];
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] = buckets[i].sum();
+            }
+            return counts;
+        }
+
+        @Override
+        String type() {
+            return "histogram";
+        }
+
+        @Override
+        void prometheus(StringBuilder out) {
+            long[] counts = counts();
+            long cumulative = 0;
+            for (int i = 0; i < counts.length; i++) {
+                cumulative += counts[i];
+                String le = i < bounds.length ? format(bounds[i] / unit) : "+Inf";
+                out.append(series("_bucket", "le=\"" + le + "\"")).append(' ').append(cumulative).append('\n');
+            }
+            out.append(series("_sum", "")).append(' ').append(format(sum.sum() / unit)).append('\n');
+            out.append(series("_count", "")).append(' ').append(cumulative).append('\n');
+        }
+
+        @Override
+        void stats(Map<String, String> out) {
+            long[] counts = counts();
+            long total = 0;
+            for (long count : counts) {
+                total += count;
+            }
+            out.put(statName + "_count", String.valueOf(total));
+            if (total > 0) {
+                out.put(statName + "_p50", format(quantile(counts, total, 0.5)));
+                out.put(statName + "_p99", format(quantile(counts, total, 0.99)));
+            }
+        }
+    }
+
+    private static String format(double value) {
+        if (Double.isInfinite(value)) {
+            return "+Inf";
+        }
+        // Bez notacji wykładniczej - 0.00005 zamiast 5.0E-5
+        return BigDecimal.valueOf(value).stripTrailingZeros().toPlainString();
+    }
+
+    static Gauge gauge(String family, String labels, String statName, String help, LongSupplier supplier) {
+        return new Gauge(family, labels, statName, help, supplier);
+    }
+
+    static Counter counter(String family, String labels, String statName, String help, LongSupplier supplier) {
+        return new Counter(family, labels, statName, help, supplier);
+    }
+
+    // Format tekstowy Prometheusa: HELP i TYPE raz na rodzinę, potem jej serie
+    static String prometheus() {
+        Map<String, List<Instrument>> families = new LinkedHashMap<>();
+        synchronized (instruments) {
+            for (Instrument instrument : instruments) {
+                families.computeIfAbsent(instrument.family, name -> new ArrayList<>()).add(instrument);
+            }
+        }
+        StringBuilder out = new StringBuilder();
+        for (Map.Entry<String, List<Instrument>> family : families.entrySet()) {
+            Instrument first = family.getValue().get(0);
+            out.append("# HELP ").append(family.getKey()).append(' ').append(first.help).append('\n');
+            out.append("# TYPE ").append(family.getKey()).append(' ').append(first.type()).append('\n');
+            for (Instrument instrument : family.getValue()) {
+                instrument.prometheus(out);
+            }
+        }
+        return out.toString();
+    }
+
+    // Płaska lista nazwa=wartość dla STATS, z wartościami na sekundę i kwantylami
+    static Map<String, String> stats() {
+        Map<String, String> out = new LinkedHashMap<>();
+        synchronized (instruments) {
+            for (Instrument instrument : instruments) {
+                instrument.stats(out);
+            }
+        }
+        return out;
+    }
+
+    // Próbki liczników co sekundę (dla STATS) i - przy port > 0 - /metrics na 127.0.0.1:port
+    static void start(int port) {
+        ScheduledExecutorService sampler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "metrics-sampler");
+            thread.setDaemon(true);
+            return thread;
+        });
+        sampler.scheduleAtFixedRate(() -> {
+            synchronized (instruments) {
+                for (Instrument instrument : instruments) {
+                    if (instrument instanceof Counter counter) {
+                        counter.sample();
+                    }
+                }
+            }
+        }, 0, 1, TimeUnit.SECONDS);
+
+        if (port <= 0) {
+            return;
+        }
+        try {
+            HttpServer http = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+            http.createContext("/metrics", exchange -> {
+                byte[] body = prometheus().getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+                exchange.sendResponseHeaders(200, body.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(body);
+                }
+            });
+            // Jeden wątek wystarczy - pobrania są rzadkie
+            http.setExecutor(Executors.newSingleThreadExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "metrics-http");
+                thread.setDaemon(true);
+                return thread;
+            }));
+            http.start();
+            System.out.println("Metryki: http://127.0.0.1:" + port + "/metrics");
+        } catch (IOException e) {
+            System.err.println("Nie można uruchomić metryk na porcie " + port + ": " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,435 @@
+package server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.Deflater;
+import service.Compression;
+import service.Op;
+import service.Packet;
+
+// Połączenie obsługiwane przez pętlę zdarzeń NIO. Ma własne bufory odczytu
+// i zapisu. Ramki tekstowe są rozdzielane znakiem nowej linii jak dotąd,
+// a po negocjacji trybu binarnego - dekodowane według długości z nagłówka.
+// Przy kompresji ramki z kolejki są pakowane do własnego bufora połączenia,
+// z SYNC_FLUSH na końcu każdej paczki.
+// Po LOGIN połączenie przechodzi do pętli swojego użytkownika (shardu) i od
+// tej pory cały jego stan zmienia tylko ta pętla.
+class NioConnection implements ClientConnection {
+    private final SocketChannel channel;
+    private volatile SelectionKey key;
+    private volatile NioServer.EventLoop loop;
+
+    private final InboundBuffer inbound = new InboundBuffer();
+    private final Command command = new Command();
+    private final PeerCache peers = new PeerCache(this);
+    private final RateLimits.Limiter limiter = SimpleServer.newRateLimiter();
+    // Wiadomość w command czeka na limit - odczyt z gniazda wstrzymany
+    private boolean paused;
+    private final OutboundQueue outbound = SimpleServer.newOutboundQueue();
+    // Zapis zbiorczy: kilka ramek z kolejki jednym wywołaniem write
+    private final ByteBuffer[] writeBatch = new ByteBuffer[64];
+    private int batchStart = 0;
+    private int batchEnd = 0;
+    // Ostatnia ramka bieżącej paczki włącza kompresję
+    private boolean compressAfterBatch;
+    private Deflater deflater;
+    private ByteBuffer deflated;
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+    // Jedno zadanie na połączenie - planowanie zapisu nie tworzy nowej lambdy
+    private final Runnable flushTask = () -> {
+        flushScheduled.set(false);
+        if (loop.inEventLoop()) {
+            flushQuietly();
+        } else {
+            // Zaplanowane jeszcze przed przejściem do innej pętli
+            scheduleFlush();
+        }
+    };
+    private final AtomicBoolean closed = new AtomicBoolean();
+
+    private volatile String username;
+    private volatile long lastActivity;
+    private volatile boolean acknowledges;
+    private volatile boolean presenceDeltas;
+    private volatile boolean heartbeats;
+
+    NioConnection(SocketChannel channel, SelectionKey key, NioServer.EventLoop loop) {
+        this.channel = channel;
+        this.key = key;
+        this.loop = loop;
+        this.lastActivity = System.currentTimeMillis();
+        Metrics.CONNECTIONS.increment();
+    }
+
+    @Override
+    public String getUsername() {
+        return username;
+    }
+
+    @Override
+    public long getLastActivity() {
+        return lastActivity;
+    }
+
+    @Override
+    public boolean isClosed() {
+        return closed.get();
+    }
+
+    @Override
+    public void send(Frame frame) {
+        if (closed.get()) {
+            return;
+        }
+        NioServer.EventLoop current = NioServer.EventLoop.current();
+        if (current != null && current != loop) {
+            // Z innej pętli przez skrzynkę SPSC - do kolejki wstawi ją już nasza pętla
+            current.post(loop, this, frame);
+            return;
+        }
+        if (!enqueue(frame)) {
+            return;
+        }
+
+        if (current != null) {
+            flushQuietly();
+        } else {
+            scheduleFlush();
+        }
+    }
+
+    // Ramka ze skrzynki innej pętli; zapis jednym zadaniem po opróżnieniu skrzynek
+    void deliver(Frame frame) {
+        if (closed.get()) {
+            return;
+        }
+        if (!loop.inEventLoop()) {
+            // Nadana, zanim połączenie przeszło do innej pętli
+            send(frame);
+            return;
+        }
+        if (enqueue(frame)) {
+            scheduleFlush();
+        }
+    }
+
+    private boolean enqueue(Frame frame) {
+        if (!outbound.offer(frame)) {
+            System.out.println("Rozłączam wolnego klienta " + username);
+            close();
+            return false;
+        }
+        return true;
+    }
+
+    private void scheduleFlush() {
+        if (flushScheduled.compareAndSet(false, true)) {
+            // Kilka wiadomości z innych wątków zapisujemy jednym zadaniem w pętli
+            loop.execute(flushTask);
+        }
+    }
+
+    @Override
+    public OutboundQueue getOutboundQueue() {
+        return outbound;
+    }
+
+    @Override
+    public boolean acknowledges() {
+        return acknowledges;
+    }
+
+    @Override
+    public void setAcknowledges(boolean acknowledges) {
+        this.acknowledges = acknowledges;
+    }
+
+    @Override
+    public boolean presenceDeltas() {
+        return presenceDeltas;
+    }
+
+    @Override
+    public void setPresenceDeltas(boolean presenceDeltas) {
+        this.presenceDeltas = presenceDeltas;
+    }
+
+    @Override
+    public boolean heartbeats() {
+        return heartbeats;
+    }
+
+    @Override
+    public void setHeartbeats(boolean heartbeats) {
+        this.heartbeats = heartbeats;
+    }
+
+    @Override
+    public PeerCache getPeers() {
+        return peers;
+    }
+
+    @Override
+    public RateLimits.Limiter getRateLimiter() {
+        return limiter;
+    }
+
+    void onReadable() throws IOException {
+        if (paused) {
+            // Bufor trzyma jeszcze wstrzymaną wiadomość - nie wolno go ruszać
+            return;
+        }
+        int read = channel.read(inbound.readable());
+        if (read < 0) {
+            close();
+            return;
+        }
+        lastActivity = System.currentTimeMillis();
+        handleBuffered();
+    }
+
+    private void handleBuffered() throws IOException {
+        // Tryb sprawdzamy przy każdej wiadomości - negocjacja zmienia go w połowie bufora
+        while (inbound.next(command, outbound.isBinary())) {
+            if (username != null) {
+                long wait = SimpleServer.admit(this, command);
+                if (wait < 0) {
+                    continue;
+                }
+                if (wait > 0) {
+                    pause(wait);
+                    return;
+                }
+            }
+            if (!handleCommand()) {
+                close();
+                return;
+            }
+            if (!loop.inEventLoop()) {
+                // Po LOGIN połączenie przeszło do innej pętli - resztę bufora obsłuży ona
+                return;
+            }
+        }
+    }
+
+    // Limit przekroczony: wiadomość zostaje w command, a gniazdo przestaje być
+    // czytane, więc nadawcę hamuje TCP. Po czasie obsługujemy ją i resztę bufora.
+    private void pause(long waitNanos) {
+        paused = true;
+        key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+        loop.schedule(this::resume, waitNanos);
+    }
+
+    private void resume() {
+        paused = false;
+        if (closed.get()) {
+            return;
+        }
+        try {
+            if (!handleCommand()) {
+                close();
+                return;
+            }
+            handleBuffered();
+            if (!paused && !closed.get()) {
+                key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+            }
+        } catch (IOException | CancelledKeyException e) {
+            System.out.println("Błąd połączenia z " + username + ": " + e.getMessage());
+            close();
+        }
+    }
+
+    void onWritable() throws IOException {
+        flush();
+    }
+
+    private boolean handleCommand() throws IOException {
+        if (username == null) {
+            // Przed logowaniem wolno tylko wynegocjować tryb
+            Packet packet = command.toPacket();
+            if (packet.op == Op.UPGRADE) {
+                if (SimpleServer.upgrade(this, packet)) {
+                    inbound.startInflating(Compression.newInflater());
+                }
+                return true;
+            }
+            // Pierwsza wiadomość musi być logowaniem, tak jak w trybie wątkowym
+            if (packet.op != Op.LOGIN || packet.fields.length == 0) {
+                return false;
+            }
+            username = packet.fields[0];
+            outbound.setOwner(username);
+            peers.setSelf(username);
+            NioServer.EventLoop shard = loop.shardFor(username);
+            if (shard != loop) {
+                moveTo(shard);
+                return true;
+            }
+            return SimpleServer.login(this);
+        }
+        return SimpleServer.handleMessage(this, command);
+    }
+
+    // Przeniesienie do pętli użytkownika. Logowanie kończy już nowa pętla, więc
+    // zanim ktokolwiek zobaczy to połączenie w clients, należy ono do swojego shardu.
+    private void moveTo(NioServer.EventLoop shard) {
+        key.cancel();
+        loop = shard;
+        shard.execute(() -> {
+            if (closed.get()) {
+                return;
+            }
+            try {
+                // Ten sam kanał może być zarejestrowany w kilku selektorach;
+                // anulowany klucz starej pętli zniknie przy jej najbliższym select
+                key = channel.register(shard.selector(), SelectionKey.OP_READ, this);
+                if (!SimpleServer.login(this)) {
+                    close();
+                    return;
+                }
+                handleBuffered();
+                flushQuietly();
+            } catch (IOException e) {
+                System.out.println("Nie udało się przenieść połączenia " + username + ": " + e.getMessage());
+                close();
+            }
+        });
+    }
+
+    // Opróżnia kolejkę wychodzącą, dopóki gniazdo przyjmuje dane
+    private void flush() throws IOException {
+        while (true) {
+            if (deflater != null) {
+                if (!deflated.hasRemaining() && !deflateBatch()) {
+                    break;
+                }
+                channel.write(deflated);
+                if (deflated.hasRemaining()) {
+                    setInterest(true);
+                    return;
+                }
+                continue;
+            }
+            if (batchStart == batchEnd) {
+                batchStart = 0;
+                batchEnd = 0;
+                Frame frame;
+                while (batchEnd < writeBatch.length && (frame = outbound.poll()) != null) {
+                    writeBatch[batchEnd++] = frame.buffer(outbound.isBinary());
+                    if (frame.startsCompression()) {
+                        compressAfterBatch = true;
+                        break;
+                    }
+                }
+                if (batchEnd == 0) {
+                    break;
+                }
+            }
+            channel.write(writeBatch, batchStart, batchEnd - batchStart);
+            while (batchStart < batchEnd && !writeBatch[batchStart].hasRemaining()) {
+                writeBatch[batchStart++] = null;
+            }
+            if (batchStart < batchEnd) {
+                // Bufor gniazda pełny - dokończymy, gdy kanał będzie gotowy do zapisu
+                setInterest(true);
+                return;
+            }
+            if (compressAfterBatch) {
+                compressAfterBatch = false;
+                deflater = SimpleServer.newDeflater();
+                deflated = ByteBuffer.allocateDirect(8192).flip();
+            }
+        }
+        if (key.isValid()) {
+            setInterest(false);
+        }
+    }
+
+    // Odczyt tylko wtedy, gdy nie wstrzymał go limit
+    private void setInterest(boolean write) {
+        key.interestOps((paused ? 0 : SelectionKey.OP_READ) | (write ? SelectionKey.OP_WRITE : 0));
+    }
+
+    // Pakuje czekające ramki (najwyżej paczkę) do bufora deflated; false, gdy kolejka pusta
+    private boolean deflateBatch() {
+        Frame frame = outbound.poll();
+        if (frame == null) {
+            return false;
+        }
+        deflated.clear();
+        int frames = 0;
+        do {
+            deflater.setInput(frame.bytes(outbound.isBinary()));
+            while (!deflater.needsInput()) {
+                deflate(Deflater.NO_FLUSH);
+            }
+        } while (++frames < writeBatch.length && (frame = outbound.poll()) != null);
+        while (deflate(Deflater.SYNC_FLUSH)) {
+            // Deflater zapełnił całe wolne miejsce - mógł nie skończyć bloku
+        }
+        deflated.flip();
+        return true;
+    }
+
+    // true, gdy wynik zajął całe wolne miejsce w buforze
+    private boolean deflate(int flush) {
+        if (!deflated.hasRemaining()) {
+            ByteBuffer bigger = ByteBuffer.allocateDirect(deflated.capacity() * 2);
+            deflated.flip();
+            deflated = bigger.put(deflated);
+        }
+        int space = deflated.remaining();
+        return deflater.deflate(deflated, flush) == space;
+    }
+
+    private void flushQuietly() {
+        if (closed.get()) {
+            return;
+        }
+        try {
+            flush();
+        } catch (IOException | CancelledKeyException e) {
+            System.out.println("Błąd zapisu do " + username + ": " + e.getMessage());
+            close();
+        }
+    }
+
+    @Override
+    public void close() {
+        if (!closed.compareAndSet(false, true)) {
+            return;
+        }
+        Metrics.CONNECTIONS.decrement();
+        key.cancel();
+        try {
+            channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        outbound.close();
+        // Deflater i Inflater używa tylko pętla - tam też je zwalniamy
+        if (loop.inEventLoop()) {
+            releaseCompression();
+        } else {
+            loop.execute(this::releaseCompression);
+        }
+
+        if (username != null) {
+            SimpleServer.logout(this);
+        }
+    }
+
+    private void releaseCompression() {
+        inbound.release(this);
+        if (deflater != null) {
+            SimpleServer.logCompression(this, "wysłane", deflater.getBytesWritten(), deflater.getBytesRead());
+            deflater.end();
+            deflater = null;
+        }
+    }
+}
@@ -0,0 +1,324 @@
+package server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// Serwer nieblokujący: jeden wątek przyjmuje połączenia, a kilka pętli
+// zdarzeń (Selector) obsługuje odczyt i zapis wszystkich klientów.
+// Pętle są niezależnymi shardami: przy LOGIN połączenie przechodzi do pętli
+// wybranej skrótem nazwy użytkownika, a ramki dla klientów innej pętli idą
+// przez skrzynki SPSC (jedna na parę pętli), nie przez wspólne kolejki.
+class NioServer {
+    private static final int MAILBOX_CAPACITY = 8192;
+
+    private final int port;
+    private final EventLoop[] loops;
+    private int nextLoop = 0;
+
+    NioServer(int port, int eventLoops) throws IOException {
+        this.port = port;
+        this.loops = new EventLoop[Math.max(1, eventLoops)];
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new EventLoop("nio-loop-" + i, i, loops);
+        }
+        for (EventLoop loop : loops) {
+            for (int from = 0; from < loops.length; from++) {
+                if (from != loop.index) {
+                    loop.inboxes[from] = new ShardMailbox(MAILBOX_CAPACITY);
+                }
+            }
+        }
+    }
+
+    void run() throws IOException {
+        for (EventLoop loop : loops) {
+            loop.start();
+        }
+
+        try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+            serverChannel.bind(new InetSocketAddress(port));
+            System.out.println("Serwer NIO gotowy (" + loops.length + " pętli zdarzeń). Czekam na połączenia...");
+
+            while (true) {
+                SocketChannel channel = serverChannel.accept();
+                System.out.println("Nowe połączenie z: " + channel.socket().getInetAddress());
+
+                // Przed logowaniem połączenia rozdzielamy po kolei między pętle
+                loops[nextLoop].register(channel);
+                nextLoop = (nextLoop + 1) % loops.length;
+            }
+        }
+    }
+
+    static final class EventLoop implements Runnable {
+        private final Selector selector;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        private final Thread thread;
+        private final int index;
+        private final EventLoop[] shards;
+        // Skrzynki od pozostałych pętli, według numeru pętli nadawcy
+        private final ShardMailbox[] inboxes;
+        // Ramki, które nie zmieściły się w pełnej skrzynce, według numeru pętli
+        // odbiorcy; czekają tu w kolejności, żeby nie wyprzedziły ich późniejsze
+        private final ArrayDeque<Pending>[] overflow;
+        private int overflowing = 0;
+        // Pętle, którym w tym obrocie coś wysłaliśmy - budzimy je raz, na końcu
+        private final boolean[] posted;
+        private final AtomicBoolean wakeupPending = new AtomicBoolean();
+        // Zadania odłożone w czasie (np. wznowienie odczytu po limicie) - tylko z wątku pętli
+        private final PriorityQueue<Timer> timers = new PriorityQueue<>(Comparator.comparingLong((Timer timer) -> timer.deadline));
+
+        EventLoop(String name, int index, EventLoop[] shards) throws IOException {
+            this.selector = Selector.open();
+            this.thread = new LoopThread(this, name);
+            this.index = index;
+            this.shards = shards;
+            this.inboxes = new ShardMailbox[shards.length];
+            @SuppressWarnings({"unchecked", "rawtypes"})
+            ArrayDeque<Pending>[] waiting = new ArrayDeque[shards.length];
+            this.overflow = waiting;
+            this.posted = new boolean[shards.length];
+        }
+
+        void start() {
+            thread.start();
+        }
+
+        boolean inEventLoop() {
+            return Thread.currentThread() == thread;
+        }
+
+        // Pętla bieżącego wątku albo null poza pętlami
+        static EventLoop current() {
+            return Thread.currentThread() instanceof LoopThread loopThread ? loopThread.loop : null;
+        }
+
+        Selector selector() {
+            return selector;
+        }
+
+        // Pętla, do której należą połączenia danego użytkownika
+        EventLoop shardFor(String username) {
+            return shards[Math.floorMod(username.hashCode(), shards.length)];
+        }
+
+        // Tylko z wątku tej pętli: ramka dla połączenia innej pętli
+        void post(EventLoop target, NioConnection connection, Frame frame) {
+            ArrayDeque<Pending> waiting = overflow[target.index];
+            if ((waiting == null || waiting.isEmpty()) && target.inboxes[index].offer(connection, frame)) {
+                posted[target.index] = true;
+                return;
+            }
+            if (waiting == null) {
+                waiting = overflow[target.index] = new ArrayDeque<>();
+            }
+            if (waiting.isEmpty()) {
+                overflowing++;
+            }
+            waiting.add(new Pending(connection, frame));
+        }
+
+        // Tylko z wątku tej pętli: task po delayNanos
+        void schedule(Runnable task, long delayNanos) {
+            timers.add(new Timer(System.nanoTime() + delayNanos, task));
+        }
+
+        private void runTimers() {
+            long now = System.nanoTime();
+            while (!timers.isEmpty() && timers.peek().deadline <= now) {
+                try {
+                    timers.poll().task.run();
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+
+        // Czas snu w select: do najbliższego zadania w czasie, 0 - bez limitu
+        private long selectTimeout() {
+            long timeout = 0;
+            if (!timers.isEmpty()) {
+                timeout = Math.max(1, (timers.peek().deadline - System.nanoTime() + 999_999) / 1_000_000);
+            }
+            if (overflowing > 0) {
+                // Przy przepełnionych skrzynkach nie zasypiamy na długo - trzeba je dosłać
+                timeout = 1;
+            }
+            return timeout;
+        }
+
+        // Ponowna próba dla ramek z przepełnionych skrzynek
+        private void retryOverflow() {
+            for (int target = 0; target < overflow.length && overflowing > 0; target++) {
+                ArrayDeque<Pending> waiting = overflow[target];
+                if (waiting == null || waiting.isEmpty()) {
+                    continue;
+                }
+                ShardMailbox mailbox = shards[target].inboxes[index];
+                Pending pending;
+                while ((pending = waiting.peekFirst()) != null && mailbox.offer(pending.connection, pending.frame)) {
+                    waiting.pollFirst();
+                    posted[target] = true;
+                }
+                if (waiting.isEmpty()) {
+                    overflowing--;
+                }
+            }
+        }
+
+        // Budzi pętle, które dostały ramki - najwyżej raz, dopóki same nie zajrzą do skrzynek
+        private void signalPosted() {
+            for (int target = 0; target < posted.length; target++) {
+                if (posted[target]) {
+                    posted[target] = false;
+                    EventLoop loop = shards[target];
+                    if (loop.wakeupPending.compareAndSet(false, true)) {
+                        loop.selector.wakeup();
+                    }
+                }
+            }
+        }
+
+        private void drainInboxes() {
+            // Flagę zdejmujemy przed opróżnieniem: ramka włożona później albo
+            // zostanie jeszcze odczytana, albo jej nadawca znów nas obudzi
+            wakeupPending.set(false);
+            for (ShardMailbox inbox : inboxes) {
+                if (inbox != null) {
+                    inbox.drain();
+                }
+            }
+        }
+
+        // Zadania z innych wątków wykonujemy w pętli, żeby nie dotykać kluczy współbieżnie
+        void execute(Runnable task) {
+            tasks.add(task);
+            if (!inEventLoop()) {
+                selector.wakeup();
+            }
+        }
+
+        void register(SocketChannel channel) {
+            execute(() -> {
+                try {
+                    channel.configureBlocking(false);
+                    channel.socket().setTcpNoDelay(true);
+                    SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+                    NioConnection connection = new NioConnection(channel, key, this);
+                    key.attach(connection);
+                    SimpleServer.watchIdle(connection);
+                    connection.send(Frame.raw("HELLO:Podaj swój login"));
+                } catch (IOException e) {
+                    System.out.println("Nie udało się zarejestrować połączenia: " + e.getMessage());
+                    try {
+                        channel.close();
+                    } catch (IOException ignored) {
+                    }
+                }
+            });
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                try {
+                    selector.select(selectTimeout());
+                    drainInboxes();
+                    runTasks();
+                    runTimers();
+
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        handleKey(key);
+                    }
+                    retryOverflow();
+                    signalPosted();
+                } catch (IOException e) {
+                    System.err.println("Błąd pętli zdarzeń " + thread.getName() + ": " + e.getMessage());
+                } catch (RuntimeException e) {
+                    // Ostatnia linia obrony: wątek pętli nie może zginąć
+                    e.printStackTrace();
+                }
+            }
+        }
+
+        private void runTasks() {
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+
+        private void handleKey(SelectionKey key) {
+            NioConnection connection = (NioConnection) key.attachment();
+            try {
+                if (key.isValid() && key.isReadable()) {
+                    connection.onReadable();
+                }
+                if (key.isValid() && key.isWritable()) {
+                    connection.onWritable();
+                }
+            } catch (IOException | CancelledKeyException e) {
+                System.out.println("Błąd połączenia z " + connection.getUsername() + ": " + e.getMessage());
+                connection.close();
+            } catch (RuntimeException e) {
+                // Błąd obsługi jednej ramki zamyka tylko to połączenie - pętla obsługuje cały shard
+                System.err.println("Błąd obsługi połączenia z " + connection.getUsername() + ":");
+                e.printStackTrace();
+                try {
+                    connection.close();
+                } catch (RuntimeException closeError) {
+                    closeError.printStackTrace();
+                }
+            }
+        }
+    }
+
+    private static final class Timer {
+        final long deadline;
+        final Runnable task;
+
+        Timer(long deadline, Runnable task) {
+            this.deadline = deadline;
+            this.task = task;
+        }
+    }
+
+    private static final class Pending {
+        final NioConnection connection;
+        final Frame frame;
+
+        Pending(NioConnection connection, Frame frame) {
+            this.connection = connection;
+            this.frame = frame;
+        }
+    }
+
+    // Wątek pętli zna swoją pętlę - send() rozpoznaje po nim nadawcę z innego sharda
+    private static final class LoopThread extends Thread {
+        final EventLoop loop;
+
+        LoopThread(EventLoop loop, String name) {
+            super(loop, name);
+            this.loop = loop;
+        }
+    }
+}
@@ -0,0 +1,254 @@
+package server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Ograniczona kolejka wiadomości wychodzących jednego połączenia. Nadawcy tylko
+// wrzucają do kolejki, a opróżnia ją wątek piszący albo pętla NIO danego klienta.
+// Gdy klient nie nadąża, decyduje polityka wolnego odbiorcy.
+class OutboundQueue {
+    enum Policy {
+        DROP_OLDEST, DISCONNECT, SPILL;
+
+        static Policy parse(String value) {
+            switch (value) {
+                case "disconnect":
+                    return DISCONNECT;
+                case "spill":
+                    return SPILL;
+                default:
+                    return DROP_OLDEST;
+            }
+        }
+    }
+
+    private static final AtomicLong spillIds = new AtomicLong();
+
+    private final int capacity;
+    private final Policy policy;
+    private final File spillDir;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final ArrayDeque<Frame> queue = new ArrayDeque<>();
+
+    private String owner = "?";
+    // Tryb kodowania połączenia - ramki są kodowane dopiero przy zapisie
+    private volatile boolean binary = false;
+    private boolean closed = false;
+
+    // Stan przelewania na dysk - gdy aktywne, nowe wiadomości idą do pliku,
+    // żeby zachować kolejność
+    private File spillFile;
+    private DataOutputStream spillWriter;
+    private DataInputStream spillReader;
+    private long spillPending = 0;
+
+    private volatile int depth = 0;
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong spilled = new AtomicLong();
+    private boolean lagging = false;
+
+    OutboundQueue(int capacity, Policy policy, File spillDir) {
+        this.capacity = capacity;
+        this.policy = policy;
+        this.spillDir = spillDir;
+    }
+
+    void setOwner(String owner) {
+        this.owner = owner;
+    }
+
+    void setBinary(boolean binary) {
+        this.binary = binary;
+    }
+
+    boolean isBinary() {
+        return binary;
+    }
+
+    // Zwraca false, gdy połączenie należy rozłączyć (polityka DISCONNECT)
+    boolean offer(Frame frame) {
+        lock.lock();
+        try {
+            if (closed) {
+                return true;
+            }
+            if (spillPending > 0) {
+                return spill(frame);
+            }
+            if (queue.size() >= capacity) {
+                reportLagging();
+                switch (policy) {
+                    case DISCONNECT:
+                        dropped.incrementAndGet();
+                        Metrics.OUTBOUND_DROPPED.increment();
+                        return false;
+                    case SPILL:
+                        return spill(frame);
+                    default:
+                        queue.pollFirst();
+                        dropped.incrementAndGet();
+                        Metrics.OUTBOUND_DROPPED.increment();
+                }
+            }
+            queue.addLast(frame);
+            updateDepth();
+            notEmpty.signal();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Następna wiadomość albo null, gdy nic nie czeka
+    Frame poll() {
+        lock.lock();
+        try {
+            return next();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Czeka na wiadomość; null oznacza zamkniętą kolejkę
+    Frame take() throws InterruptedException {
+        lock.lock();
+        try {
+            Frame frame;
+            while ((frame = next()) == null && !closed) {
+                notEmpty.await();
+            }
+            return frame;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void close() {
+        lock.lock();
+        try {
+            closed = true;
+            queue.clear();
+            discardSpill();
+            updateDepth();
+            notEmpty.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int depth() {
+        return depth;
+    }
+
+    long dropped() {
+        return dropped.get();
+    }
+
+    long spilled() {
+        return spilled.get();
+    }
+
+    private Frame next() {
+        Frame frame = queue.pollFirst();
+        if (frame == null && spillPending > 0) {
+            frame = readSpilled();
+        }
+        updateDepth();
+        if (lagging && depth == 0 && spillPending == 0) {
+            lagging = false;
+            System.out.println("Klient " + owner + " nadrobił zaległości (odrzucono łącznie: " + dropped.get() + ")");
+        }
+        return frame;
+    }
+
+    // Głębokość liczy też wiadomości czekające na dysku
+    private void updateDepth() {
+        depth = queue.size() + (int) spillPending;
+    }
+
+    // Na dysk trafiają bajty ramki w trybie połączenia, z długością - przy odczycie bez ponownego kodowania
+    private boolean spill(Frame frame) {
+        try {
+            if (spillWriter == null) {
+                spillDir.mkdirs();
+                spillFile = new File(spillDir, "outbound-" + spillIds.incrementAndGet() + ".spill");
+                spillWriter = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(spillFile)));
+            }
+            byte[] bytes = frame.bytes(binary);
+            spillWriter.writeInt(bytes.length);
+            spillWriter.write(bytes);
+            spillPending++;
+            spilled.incrementAndGet();
+            Metrics.OUTBOUND_SPILLED.increment();
+            updateDepth();
+            return true;
+        } catch (IOException e) {
+            // Nie da się zapisać na dysk - zostaje tylko rozłączenie
+            System.err.println("Błąd zapisu kolejki " + owner + " na dysk: " + e.getMessage());
+            dropped.incrementAndGet();
+            Metrics.OUTBOUND_DROPPED.increment();
+            return false;
+        }
+    }
+
+    private Frame readSpilled() {
+        try {
+            // Zapis i odczyt idą pod tą samą blokadą, więc po flush w pliku są tylko całe ramki
+            spillWriter.flush();
+            if (spillReader == null) {
+                spillReader = new DataInputStream(new BufferedInputStream(new FileInputStream(spillFile)));
+            }
+            byte[] bytes = new byte[spillReader.readInt()];
+            spillReader.readFully(bytes);
+            if (--spillPending == 0) {
+                discardSpill();
+            }
+            return Frame.wrap(bytes);
+        } catch (IOException e) {
+            System.err.println("Błąd odczytu kolejki " + owner + " z dysku: " + e.getMessage());
+            dropped.addAndGet(spillPending);
+            Metrics.OUTBOUND_DROPPED.add(spillPending);
+            discardSpill();
+            return null;
+        }
+    }
+
+    private void discardSpill() {
+        try {
+            if (spillWriter != null) {
+                spillWriter.close();
+            }
+            if (spillReader != null) {
+                spillReader.close();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        if (spillFile != null) {
+            spillFile.delete();
+        }
+        spillWriter = null;
+        spillReader = null;
+        spillFile = null;
+        spillPending = 0;
+    }
+
+    private void reportLagging() {
+        if (!lagging) {
+            lagging = true;
+            System.out.println("Klient " + owner + " nie nadąża: kolejka pełna (" + capacity
+                    + "), polityka " + policy + ", odrzucono dotąd: " + dropped.get());
+        }
+    }
+}
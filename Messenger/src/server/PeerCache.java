@@ -0,0 +1,62 @@
+package server;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import service.Op;
+
+// Ostatni rozmówcy jednego połączenia. Nazwa odbiorcy z bufora odczytu jest
+// porównywana z bajtami zapamiętanych nazw, więc przy rozmowie z tymi samymi
+// osobami nie powstaje nowy String, a potwierdzenie MSG_SENT jest gotową,
+// wspólną ramką. Używa go tylko wątek czytający danego połączenia.
+final class PeerCache {
+    private static final int SIZE = 8;
+
+    static final class Peer {
+        final String name;
+        final byte[] utf8;
+        // Wywoływane przez dziennik, gdy wiadomość do tego rozmówcy jest zapisana
+        final Runnable acknowledge;
+        // Nazwa, którą dziennik zapisze i odczyta tak samo (SimpleServer.isValidName)
+        final boolean valid;
+
+        Peer(String name, byte[] utf8, ClientConnection owner) {
+            this.name = name;
+            this.utf8 = utf8;
+            this.valid = SimpleServer.isValidName(name);
+            Frame sent = Frame.of(Op.MSG_SENT, name);
+            this.acknowledge = () -> owner.send(sent);
+        }
+    }
+
+    private final ClientConnection owner;
+    private final Peer[] peers = new Peer[SIZE];
+    private int next = 0;
+    private byte[] self = new byte[0];
+
+    PeerCache(ClientConnection owner) {
+        this.owner = owner;
+    }
+
+    // Nazwa właściciela w UTF-8 - pole nadawcy w przekazywanych wiadomościach
+    void setSelf(String username) {
+        self = username.getBytes(StandardCharsets.UTF_8);
+    }
+
+    byte[] self() {
+        return self;
+    }
+
+    Peer lookup(byte[] data, int from, int length) {
+        for (Peer peer : peers) {
+            if (peer != null && peer.utf8.length == length && Command.regionEquals(data, from, peer.utf8)) {
+                return peer;
+            }
+        }
+        // Nowy rozmówca zastępuje najdawniej dodanego
+        String name = new String(data, from, length, StandardCharsets.UTF_8);
+        Peer peer = new Peer(name, Arrays.copyOfRange(data, from, from + length), owner);
+        peers[next] = peer;
+        next = (next + 1) % SIZE;
+        return peer;
+    }
+}
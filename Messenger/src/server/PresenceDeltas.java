@@ -0,0 +1,171 @@
+package server;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import service.Op;
+import service.Packet;
+
+// Zmiany obecności zbierane w oknie (--presence-window-ms) i wysyłane raz na okno,
+// zamiast osobnej ramki do wszystkich przy każdym logowaniu i wylogowaniu. Przy
+// fali N logowań to N ramek zamiast N^2. Kto w oknie wszedł i wyszedł, nie jest
+// wysyłany wcale.
+//
+// Klient z UPGRADE:...,DELTA dostaje PRESENCE_DELTA:+a,+b,-c (wspólna ramka - własną
+// nazwę pomija sam), pozostali jedną paczkę linii USER_ONLINE/USER_OFFLINE jak dotąd.
+// Z PresenceInterest każdy dostaje tylko zmiany obserwowanych przez siebie osób.
+class PresenceDeltas {
+    private final Map<String, ClientConnection> clients;
+    // Null - zmiany idą do wszystkich zalogowanych
+    private final PresenceInterest interest;
+    // Użytkownik -> {stan przed oknem, stan teraz}, w kolejności pierwszej zmiany
+    private Map<String, boolean[]> changes = new LinkedHashMap<>();
+
+    PresenceDeltas(Map<String, ClientConnection> clients, PresenceInterest interest) {
+        this.clients = clients;
+        this.interest = interest;
+    }
+
+    void start(int windowMs) {
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "presence-deltas");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleAtFixedRate(this::flush, windowMs, windowMs, TimeUnit.MILLISECONDS);
+    }
+
+    synchronized void changed(String username, boolean online) {
+        boolean[] state = changes.get(username);
+        if (state == null) {
+            changes.put(username, new boolean[] {!online, online});
+        } else {
+            state[1] = online;
+        }
+    }
+
+    private synchronized Map<String, Boolean> drain() {
+        Map<String, Boolean> net = new LinkedHashMap<>();
+        for (Map.Entry<String, boolean[]> change : changes.entrySet()) {
+            boolean[] state = change.getValue();
+            if (state[0] != state[1]) {
+                net.put(change.getKey(), state[1]);
+            }
+        }
+        changes = new LinkedHashMap<>();
+        return net;
+    }
+
+    // Wyjątek z zadania scheduleAtFixedRate po cichu kończy jego powtarzanie -
+    // obecność przestałaby dochodzić do końca działania serwera
+    private void flush() {
+        try {
+            Map<String, Boolean> net = drain();
+            if (net.isEmpty()) {
+                return;
+            }
+            if (interest == null) {
+                flushToAll(net);
+            } else {
+                flushToWatchers(net);
+            }
+        } catch (RuntimeException e) {
+            System.err.println("Błąd wysyłania zmian obecności:");
+            e.printStackTrace();
+        }
+    }
+
+    private void flushToAll(Map<String, Boolean> net) {
+        StringBuilder delta = new StringBuilder();
+        List<Packet> lines = new ArrayList<>(net.size());
+        for (Map.Entry<String, Boolean> change : net.entrySet()) {
+            if (delta.length() > 0) {
+                delta.append(',');
+            }
+            delta.append(change.getValue() ? '+' : '-').append(change.getKey());
+            lines.add(new Packet(change.getValue() ? Op.USER_ONLINE : Op.USER_OFFLINE, change.getKey()));
+        }
+
+        // Każda postać kodowana raz; osobną paczkę dostaje tylko stary klient, którego
+        // własna zmiana jest w tym oknie - dotąd nie dostawał wiadomości o sobie
+        Frame deltaFrame = Frame.direct(Op.PRESENCE_DELTA, delta.toString());
+        Frame[] legacy = new Frame[2];
+        int recipients = 0;
+        for (ClientConnection client : clients.values()) {
+            if (client.presenceDeltas()) {
+                client.send(deltaFrame);
+            } else {
+                boolean binary = client.getOutboundQueue().isBinary();
+                if (net.containsKey(client.getUsername())) {
+                    List<Packet> others = new ArrayList<>(lines);
+                    others.removeIf(line -> line.field(0).equals(client.getUsername()));
+                    if (others.isEmpty()) {
+                        continue;
+                    }
+                    client.send(Frame.batch(binary, others));
+                } else {
+                    int mode = binary ? 1 : 0;
+                    if (legacy[mode] == null) {
+                        legacy[mode] = Frame.batch(binary, lines);
+                    }
+                    client.send(legacy[mode]);
+                }
+            }
+            recipients++;
+        }
+        Metrics.FANOUT.record(recipients);
+    }
+
+    // Odbiorca dostaje zmiany tych, których obserwuje; ta sama lista zmian
+    // w tej samej postaci jest kodowana raz
+    private void flushToWatchers(Map<String, Boolean> net) {
+        Map<String, List<String>> pending = new HashMap<>();
+        for (String user : net.keySet()) {
+            for (String watcher : interest.watchersOf(user)) {
+                if (clients.containsKey(watcher)) {
+                    pending.computeIfAbsent(watcher, name -> new ArrayList<>()).add(user);
+                }
+            }
+        }
+
+        Map<String, Frame> encoded = new HashMap<>();
+        int recipients = 0;
+        for (Map.Entry<String, List<String>> entry : pending.entrySet()) {
+            ClientConnection client = clients.get(entry.getKey());
+            if (client != null) {
+                client.send(frameFor(client, entry.getValue(), net, encoded));
+                recipients++;
+            }
+        }
+        Metrics.FANOUT.record(recipients);
+    }
+
+    // Zmiany users (stan z states) w postaci, której oczekuje klient: PRESENCE_DELTA
+    // albo paczka USER_ONLINE/USER_OFFLINE. encoded - gotowe ramki do ponownego użycia.
+    static Frame frameFor(ClientConnection client, List<String> users, Map<String, Boolean> states,
+            Map<String, Frame> encoded) {
+        StringBuilder delta = new StringBuilder();
+        for (String user : users) {
+            if (delta.length() > 0) {
+                delta.append(',');
+            }
+            delta.append(states.get(user) ? '+' : '-').append(user);
+        }
+        if (client.presenceDeltas()) {
+            return encoded.computeIfAbsent("D" + delta, key -> Frame.of(Op.PRESENCE_DELTA, delta.toString()));
+        }
+        boolean binary = client.getOutboundQueue().isBinary();
+        return encoded.computeIfAbsent((binary ? "B" : "T") + delta, key -> {
+            List<Packet> lines = new ArrayList<>(users.size());
+            for (String user : users) {
+                lines.add(new Packet(states.get(user) ? Op.USER_ONLINE : Op.USER_OFFLINE, user));
+            }
+            return Frame.batch(binary, lines);
+        });
+    }
+}
@@ -0,0 +1,74 @@
+package server;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+// Kto chce wiedzieć o czyjej obecności (--presence-scope=interest). Zalogowany
+// użytkownik obserwuje rozmówców z ostatniej historii, członków swoich grup, osoby,
+// z którymi właśnie pisze, i tych, o których poprosił przez SUBSCRIBE. Zmiana
+// obecności idzie tylko do obserwujących - koszt zależy od liczby kontaktów,
+// nie od liczby zalogowanych. Zbiór żyje tyle, co sesja: przy wylogowaniu znika.
+class PresenceInterest {
+    // Górna granica zbioru jednego użytkownika - SUBSCRIBE na wszystkich nie wraca do rozgłaszania
+    static final int MAX_INTERESTS = 1000;
+
+    // Obserwowany -> obserwujący; to czyta każde rozgłoszenie obecności
+    private final ConcurrentMap<String, Set<String>> watchers = new ConcurrentHashMap<>();
+    // Obserwujący -> obserwowani; do sprzątania przy wylogowaniu i do ONLINE_LIST
+    private final ConcurrentMap<String, Set<String>> interests = new ConcurrentHashMap<>();
+
+    // Zwraca false, gdy zbiór jest pełny
+    boolean add(String watcher, String watched) {
+        if (watcher.equals(watched)) {
+            return true;
+        }
+        Set<String> watching = interests.computeIfAbsent(watcher, name -> ConcurrentHashMap.newKeySet());
+        if (watching.contains(watched)) {
+            return true;
+        }
+        if (watching.size() >= MAX_INTERESTS) {
+            return false;
+        }
+        watching.add(watched);
+        watchers.compute(watched, (name, set) -> {
+            Set<String> result = set == null ? ConcurrentHashMap.newKeySet() : set;
+            result.add(watcher);
+            return result;
+        });
+        return true;
+    }
+
+    void remove(String watcher, String watched) {
+        Set<String> watching = interests.get(watcher);
+        if (watching != null && watching.remove(watched)) {
+            unwatch(watcher, watched);
+        }
+    }
+
+    // Wylogowanie: użytkownik offline niczego nie dostaje, więc jego zbiór nie jest potrzebny
+    void clear(String watcher) {
+        Set<String> watching = interests.remove(watcher);
+        if (watching != null) {
+            for (String watched : watching) {
+                unwatch(watcher, watched);
+            }
+        }
+    }
+
+    private void unwatch(String watcher, String watched) {
+        watchers.computeIfPresent(watched, (name, set) -> {
+            set.remove(watcher);
+            return set.isEmpty() ? null : set;
+        });
+    }
+
+    Set<String> watchersOf(String watched) {
+        return watchers.getOrDefault(watched, Collections.emptySet());
+    }
+
+    Set<String> interestsOf(String watcher) {
+        return interests.getOrDefault(watcher, Collections.emptySet());
+    }
+}
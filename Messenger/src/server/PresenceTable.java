@@ -0,0 +1,81 @@
+package server;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+// Kto jest online - w pamięci, wejście i wyjście w O(1). Plik online jest
+// tylko okresowym zrzutem do diagnostyki, nie źródłem prawdy.
+class PresenceTable {
+    private final Map<String, Long> online = new ConcurrentHashMap<>();
+    private volatile boolean dirty = false;
+
+    void join(String username) {
+        online.put(username, System.currentTimeMillis());
+        dirty = true;
+    }
+
+    void leave(String username) {
+        online.remove(username);
+        dirty = true;
+    }
+
+    boolean isOnline(String username) {
+        return online.containsKey(username);
+    }
+
+    List<String> snapshot() {
+        return new ArrayList<>(online.keySet());
+    }
+
+    int size() {
+        return online.size();
+    }
+
+    // Zrzut co intervalSeconds, tylko gdy coś się zmieniło; 0 wyłącza zrzuty
+    void startDumping(File file, int intervalSeconds) {
+        if (intervalSeconds <= 0) {
+            return;
+        }
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "presence-dump");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(() -> dump(file), intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+    }
+
+    private void dump(File file) {
+        if (!dirty) {
+            return;
+        }
+        dirty = false;
+
+        File tempFile = new File(file.getPath() + ".tmp");
+        try (BufferedWriter writer = new BufferedWriter(new FileWriter(tempFile))) {
+            for (Map.Entry<String, Long> entry : online.entrySet()) {
+                writer.write(entry.getKey() + "|" + entry.getValue());
+                writer.newLine();
+            }
+        } catch (IOException e) {
+            System.err.println("Błąd zapisu online: " + e.getMessage());
+            return;
+        }
+
+        try {
+            Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            System.err.println("Błąd zapisu online: " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,267 @@
+package server;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+// Limity wiadomości na sekundę i bajtów na sekundę, osobno dla połączenia
+// i dla użytkownika (wspólne dla jego połączeń i przeżywające ponowne
+// połączenie). Kubełek tokenów liczony jak GCRA: cały stan to jeden long -
+// teoretyczny czas przybycia następnej wiadomości - zmieniany przez CAS,
+// więc sprawdzenie na ścieżce odczytu nie bierze żadnej blokady.
+//
+// --rate-msgs=N --rate-bytes=N (na połączenie), --user-rate-msgs=N --user-rate-bytes=N,
+// --rate-burst-seconds=N (pojemność kubełka), --rate-policy=delay|reject; 0 wyłącza limit
+class RateLimits {
+    enum Policy {
+        DELAY, REJECT;
+
+        static Policy parse(String value) {
+            return value.equals("reject") ? REJECT : DELAY;
+        }
+    }
+
+    private static final long SECOND = 1_000_000_000L;
+
+    private final long connectionMessages;
+    private final long connectionBytes;
+    private final long userMessages;
+    private final long userBytes;
+    private final int burstSeconds;
+    final Policy policy;
+
+    private final Map<String, UserBuckets> users = new ConcurrentHashMap<>();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder delayed = new LongAdder();
+
+    RateLimits(long connectionMessages, long connectionBytes, long userMessages, long userBytes,
+               int burstSeconds, Policy policy) {
+        this.connectionMessages = connectionMessages;
+        this.connectionBytes = connectionBytes;
+        this.userMessages = userMessages;
+        this.userBytes = userBytes;
+        this.burstSeconds = Math.max(1, burstSeconds);
+        this.policy = policy;
+    }
+
+    boolean enabled() {
+        return connectionMessages > 0 || connectionBytes > 0 || userMessages > 0 || userBytes > 0;
+    }
+
+    long rejected() {
+        return rejected.sum();
+    }
+
+    long delayed() {
+        return delayed.sum();
+    }
+
+    Limiter newLimiter() {
+        return new Limiter();
+    }
+
+    // Sumy do logu co intervalSeconds, tylko gdy się zmieniły, i przy okazji
+    // sprzątanie kubełków użytkowników
+    void startReporting(int intervalSeconds) {
+        if (!enabled() || intervalSeconds <= 0) {
+            return;
+        }
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "rate-report");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long[] last = new long[2];
+        scheduler.scheduleWithFixedDelay(() -> {
+            // Wyjątek zatrzymałby zadanie na zawsze, a z nim sprzątanie kubełków
+            try {
+                sweep();
+                long r = rejected();
+                long d = delayed();
+                if (r != last[0] || d != last[1]) {
+                    System.out.println("Limity: odrzucone " + r + ", opóźnione " + d + " (" + policy.name().toLowerCase() + ")");
+                    last[0] = r;
+                    last[1] = d;
+                }
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+    }
+
+    // Kubełek: tat to czas (nanoTime), od którego kubełek byłby znów pełny
+    // po wszystkim, co już przepuścił. Przepuszczenie kosztu n przesuwa go o n / rate.
+    static final class Bucket {
+        private final long rate;
+        private final long capacityNanos;
+        private final AtomicLong tat = new AtomicLong(Long.MIN_VALUE);
+
+        Bucket(long rate, int burstSeconds) {
+            this.rate = rate;
+            this.capacityNanos = burstSeconds * SECOND;
+        }
+
+        // Koszt większy niż pojemność i tak musi kiedyś przejść - liczymy go jak pełny kubełek
+        private long cost(long amount) {
+            return Math.min(amount * SECOND / rate, capacityNanos);
+        }
+
+        // Ile trzeba czekać, żeby koszt się zmieścił; 0 - mieści się teraz
+        long delay(long now, long amount) {
+            return Math.max(0, Math.max(tat.get(), now) + cost(amount) - capacityNanos - now);
+        }
+
+        void take(long now, long amount) {
+            long cost = cost(amount);
+            long current;
+            do {
+                current = tat.get();
+            } while (!tat.compareAndSet(current, Math.max(current, now) + cost));
+        }
+
+        // Nic nie zalega - nowy kubełek zachowywałby się tak samo
+        boolean isFull(long now) {
+            return tat.get() <= now;
+        }
+    }
+
+    // Kubełki użytkownika przeżywają jego połączenia (ponowne połączenie nie
+    // zeruje limitu), dopóki nie są pełne. connections zmienia się tylko w compute.
+    private final class UserBuckets {
+        final Bucket messages = userMessages > 0 ? new Bucket(userMessages, burstSeconds) : null;
+        final Bucket bytes = userBytes > 0 ? new Bucket(userBytes, burstSeconds) : null;
+        int connections;
+
+        boolean idle(long now) {
+            return connections == 0 && (messages == null || messages.isFull(now)) && (bytes == null || bytes.isFull(now));
+        }
+    }
+
+    private UserBuckets bind(String username) {
+        return users.compute(username, (name, buckets) -> {
+            UserBuckets result = buckets == null ? new UserBuckets() : buckets;
+            result.connections++;
+            return result;
+        });
+    }
+
+    private void unbind(String username) {
+        users.computeIfPresent(username, (name, buckets) -> {
+            buckets.connections--;
+            return buckets;
+        });
+    }
+
+    // Bez tego mapa rosłaby o każdego użytkownika, który kiedykolwiek się zalogował
+    void sweep() {
+        long now = System.nanoTime();
+        for (String username : users.keySet()) {
+            users.computeIfPresent(username, (name, buckets) -> buckets.idle(now) ? null : buckets);
+        }
+    }
+
+    int users() {
+        return users.size();
+    }
+
+    // Limity jednego połączenia. acquire woła tylko wątek czytający tego połączenia.
+    final class Limiter {
+        private final Bucket messages = connectionMessages > 0 ? new Bucket(connectionMessages, burstSeconds) : null;
+        private final Bucket bytes = connectionBytes > 0 ? new Bucket(connectionBytes, burstSeconds) : null;
+        private Bucket userMessageBucket;
+        private Bucket userByteBucket;
+        private String boundUser;
+        // Po odrzuceniu klient dostaje jedno powiadomienie, do następnej przepuszczonej wiadomości
+        private boolean notified;
+        private long rejectedHere;
+        private long delayedHere;
+
+        synchronized void bindUser(String username) {
+            if (userMessages <= 0 && userBytes <= 0) {
+                return;
+            }
+            unbindUser();
+            UserBuckets buckets = bind(username);
+            userMessageBucket = buckets.messages;
+            userByteBucket = buckets.bytes;
+            boundUser = username;
+        }
+
+        // Przy wylogowaniu, także z innego wątku (zamknięcie przez koło bezczynności) -
+        // dlatego kubełków w polach nie zerujemy. W mapie zostają, dopóki się nie wypełnią.
+        synchronized void unbindUser() {
+            if (boundUser != null) {
+                unbind(boundUser);
+                boundUser = null;
+            }
+        }
+
+        // 0 - obsłużyć od razu; > 0 - obsłużyć po tylu ns (miejsce jest już zajęte);
+        // < 0 - odrzucić, wartość bezwzględna to czas do zwolnienia miejsca
+        long acquire(int size) {
+            if (!enabled()) {
+                return 0;
+            }
+            long now = System.nanoTime();
+            long wait = 0;
+            if (messages != null) {
+                wait = Math.max(wait, messages.delay(now, 1));
+            }
+            if (bytes != null) {
+                wait = Math.max(wait, bytes.delay(now, size));
+            }
+            if (userMessageBucket != null) {
+                wait = Math.max(wait, userMessageBucket.delay(now, 1));
+            }
+            if (userByteBucket != null) {
+                wait = Math.max(wait, userByteBucket.delay(now, size));
+            }
+            if (wait > 0 && policy == Policy.REJECT) {
+                // Odrzucona nic nie zużywa. Dwa połączenia jednego użytkownika mogą
+                // jednocześnie zmieścić się w ostatnim miejscu - limit jest przybliżony.
+                rejected.increment();
+                rejectedHere++;
+                return -wait;
+            }
+            if (messages != null) {
+                messages.take(now, 1);
+            }
+            if (bytes != null) {
+                bytes.take(now, size);
+            }
+            if (userMessageBucket != null) {
+                userMessageBucket.take(now, 1);
+            }
+            if (userByteBucket != null) {
+                userByteBucket.take(now, size);
+            }
+            if (wait > 0) {
+                delayed.increment();
+                delayedHere++;
+            }
+            notified = false;
+            return wait;
+        }
+
+        // true tylko przy pierwszym odrzuceniu z serii
+        boolean shouldNotify() {
+            if (notified) {
+                return false;
+            }
+            notified = true;
+            return true;
+        }
+
+        long rejected() {
+            return rejectedHere;
+        }
+
+        long delayed() {
+            return delayedHere;
+        }
+    }
+}
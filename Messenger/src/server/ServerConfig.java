@@ -0,0 +1,44 @@
+package server;
+
+import java.util.HashMap;
+import java.util.Map;
+
+// Ustawienia serwera podawane w linii poleceń jako --klucz=wartość
+class ServerConfig {
+    private final Map<String, String> options = new HashMap<>();
+
+    static ServerConfig parse(String[] args) {
+        ServerConfig config = new ServerConfig();
+        for (String arg : args) {
+            if (!arg.startsWith("--")) {
+                System.err.println("Nieznany argument: " + arg);
+                continue;
+            }
+            int eq = arg.indexOf('=');
+            if (eq < 0) {
+                // Sama flaga, np. --nio, oznacza "true"
+                config.options.put(arg.substring(2), "true");
+            } else {
+                config.options.put(arg.substring(2, eq), arg.substring(eq + 1));
+            }
+        }
+        return config;
+    }
+
+    String get(String key, String defaultValue) {
+        return options.getOrDefault(key, defaultValue);
+    }
+
+    int getInt(String key, int defaultValue) {
+        String value = options.get(key);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            System.err.println("Niepoprawna wartość --" + key + "=" + value + ", używam " + defaultValue);
+            return defaultValue;
+        }
+    }
+}
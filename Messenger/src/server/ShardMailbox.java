@@ -0,0 +1,68 @@
+package server;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+// Skrzynka ramek od jednej pętli zdarzeń do drugiej: pierścień o stałym
+// rozmiarze, do którego wkłada tylko pętla nadawcy, a wyjmuje tylko pętla
+// odbiorcy. Bez blokad i CAS - każda strona zapisuje wyłącznie swój licznik
+// (z semantyką release), a licznik drugiej strony czyta tylko wtedy, gdy
+// zapamiętana wartość już nie wystarcza.
+final class ShardMailbox {
+    private final NioConnection[] targets;
+    private final Frame[] frames;
+    private final int mask;
+
+    // Następna pozycja do odczytu - zapisuje tylko odbiorca
+    private final AtomicLong head = new AtomicLong();
+    // Następna pozycja do zapisu - zapisuje tylko nadawca
+    private final AtomicLong tail = new AtomicLong();
+    // Ostatnio widziany head (pole nadawcy) i tail (pole odbiorcy)
+    private long headSeen;
+    private long tailSeen;
+
+    ShardMailbox(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        this.targets = new NioConnection[size];
+        this.frames = new Frame[size];
+        this.mask = size - 1;
+    }
+
+    // Tylko wątek nadawcy; false, gdy skrzynka pełna
+    boolean offer(NioConnection target, Frame frame) {
+        long t = tail.getPlain();
+        if (t - headSeen == targets.length) {
+            headSeen = head.getAcquire();
+            if (t - headSeen == targets.length) {
+                return false;
+            }
+        }
+        int slot = (int) t & mask;
+        targets[slot] = target;
+        frames[slot] = frame;
+        tail.setRelease(t + 1);
+        return true;
+    }
+
+    // Tylko wątek odbiorcy: przekazuje czekające ramki adresatom, zwraca ich liczbę
+    int drain() {
+        long h = head.getPlain();
+        if (h == tailSeen) {
+            tailSeen = tail.getAcquire();
+            if (h == tailSeen) {
+                return 0;
+            }
+        }
+        long end = tailSeen;
+        for (long i = h; i < end; i++) {
+            int slot = (int) i & mask;
+            NioConnection target = targets[slot];
+            Frame frame = frames[slot];
+            targets[slot] = null;
+            frames[slot] = null;
+            target.deliver(frame);
+        }
+        // Miejsce zwalniamy raz, po całej paczce
+        head.setRelease(end);
+        return (int) (end - h);
+    }
+}
@@ -4,19 +4,70 @@ import java.io.*;
 import java.net.*;
 import java.util.function.BiConsumer;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.Deflater;
 
 public class SimpleChatClient {
+    // Jeden wątek heartbeatów dla wszystkich klientów w procesie zamiast wątku na klienta
+    private static final ScheduledExecutorService HEARTBEATS = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "heartbeats");
+        thread.setDaemon(true);
+        return thread;
+    });
+    // Odstęp, gdy serwer nie ogłasza własnego (starszy serwer)
+    private static final long DEFAULT_HEARTBEAT_MS = 30000;
+
     private Socket socket;
-    private PrintWriter out;
-    private BufferedReader in;
+    private OutputStream out;
+    private PacketReader in;
+    // Ramki binarne, jeśli serwer je obsługuje; inaczej linie tekstowe jak dotąd
+    private boolean binaryFraming = true;
+    // Kompresja strumienia (deflate) - przełączana dla klienta, np. -Dmessenger.compression=true,
+    // żeby porównać oszczędność pasma z kosztem procesora na danym łączu
+    private boolean compression = Boolean.getBoolean("messenger.compression");
+    private volatile boolean binary = false;
     private String username;
     private boolean connected = false;
     private Thread listener;
-    private Thread pingThread;
+    private final ReentrantLock sendLock = new ReentrantLock();
+    // PING tylko wtedy, gdy przez odstęp heartbeatu nic nie wysłaliśmy albo nic nie
+    // przyszło - zwykły ruch w obie strony wystarcza, żeby połączenie żyło
+    private volatile long heartbeatMs = DEFAULT_HEARTBEAT_MS;
+    private volatile long lastSent;
+    private volatile long lastReceived;
+    // Numer połączenia - heartbeat poprzedniego połączenia kończy się sam
+    private volatile int heartbeatGeneration;
+    private volatile ScheduledFuture<?> heartbeatTask;
     private BiConsumer<String, String> privateMessageCallback;
     private BiConsumer<String, String> historyCallback;
     private List<String> messageHistory = new ArrayList<>();
+    // Kursor ostatniej pobranej wiadomości - po ponownym połączeniu pobieramy tylko nowsze
+    private volatile String historyCursor = "-";
+    // Wiadomości do nas ("od|treść" -> liczba) doręczone w tej sesji, zanim historia
+    // doszła do końca - skrzynka i wiadomości na żywo są też w pobieranej historii,
+    // a HISTORY nie niesie id. Używa go tylko wątek nasłuchu.
+    private final Map<String, Integer> deliveredDuringSync = new HashMap<>();
+    private boolean historySyncing = false;
+    // Potwierdzenia wiadomości (MSG z id). Skrzynkę po zalogowaniu potwierdzamy
+    // raz, po INBOX_END, a potem każdą wiadomość na żywo.
+    private boolean acks = false;
+    private boolean inboxDrained = false;
+    private long lastUnacked = -1;
+    // Kto jest online (bez nas, przy --presence-scope=interest tylko obserwowani)
+    // - z ONLINE_LIST przy logowaniu, potem zmiany
+    private final Set<String> onlineUsers = new LinkedHashSet<>();
+    private static final int HISTORY_PAGE_SIZE = 200;
 
     public boolean connect(String username) {
         // Próbuj automatycznego wykrycia serwera
@@ -31,34 +82,57 @@ public class SimpleChatClient {
     }
 
     private boolean connectToServer(String serverIP, int port, String username) {
+        this.username = username;
+        // Starszy serwer zamknie połączenie po UPGRADE - wtedy łączymy się ponownie w trybie tekstowym
+        if ((binaryFraming || compression) && connectToServer(serverIP, port, true)) {
+            return true;
+        }
+        return connectToServer(serverIP, port, false);
+    }
+
+    // Działa dla następnego połączenia
+    public void setCompression(boolean compression) {
+        this.compression = compression;
+    }
+
+    private boolean connectToServer(String serverIP, int port, boolean negotiate) {
         try {
-            this.username = username;
             System.out.println("Łączenie z serwerem: " + serverIP + ":" + port);
 
             socket = new Socket(serverIP, port);
             socket.setSoTimeout(60000); // 60 sekund timeout
 
-            out = new PrintWriter(socket.getOutputStream(), true);
-            in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            out = new BufferedOutputStream(socket.getOutputStream());
+            in = new PacketReader(socket.getInputStream());
+            binary = false;
 
             // Odbierz powitanie
             String hello = in.readLine();
             System.out.println("Serwer: " + hello);
 
+            if (negotiate && !upgrade()) {
+                socket.close();
+                return false;
+            }
+
             // Zaloguj
-            out.println("LOGIN:" + username);
+            send(Op.LOGIN, username);
 
             // Odbierz odpowiedź
-            String response = in.readLine();
+            Packet response = in.read();
             System.out.println("Serwer: " + response);
 
-            if (response != null && response.startsWith("LOGIN_OK")) {
+            if (response != null && response.op == Op.LOGIN_OK) {
                 connected = true;
+                heartbeatMs = DEFAULT_HEARTBEAT_MS;
+                deliveredDuringSync.clear();
+                historySyncing = true;
+                lastSent = lastReceived = System.currentTimeMillis();
                 startListening();
-                startPingThread();
+                scheduleHeartbeat(++heartbeatGeneration, heartbeatMs);
 
-                // Pobierz historię wiadomości
-                out.println("GET_HISTORY");
+                // Pobierz historię wiadomości (od ostatniego kursora, stronami)
+                requestHistory();
 
                 return true;
             }
@@ -66,47 +140,171 @@ public class SimpleChatClient {
         } catch (Exception e) {
             System.out.println("Nie można połączyć z serwerem: " + e.getMessage());
         }
+        try {
+            if (socket != null) {
+                socket.close();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
         return false;
     }
 
+    // UPGRADE:<opcje> - serwer odpowiada listą przyjętych opcji, a od następnej
+    // wiadomości obowiązują one w obu kierunkach. false, gdy serwer zamknął połączenie.
+    private boolean upgrade() throws IOException {
+        List<String> requested = new ArrayList<>();
+        if (binaryFraming) {
+            requested.add("BINARY");
+        }
+        if (compression) {
+            requested.add(Compression.CAPABILITY);
+        }
+        requested.add("ACK");
+        requested.add("DELTA");
+        requested.add("HEARTBEAT");
+        send(Op.UPGRADE, String.join(",", requested));
+        String reply = in.readLine();
+        if (reply == null) {
+            return false;
+        }
+        List<String> accepted = reply.startsWith("UPGRADE_OK:")
+                ? Arrays.asList(reply.substring("UPGRADE_OK:".length()).split(","))
+                : Collections.emptyList();
+        binary = accepted.contains("BINARY");
+        in.setBinary(binary);
+        acks = accepted.contains("ACK");
+        inboxDrained = false;
+        lastUnacked = -1;
+        if (accepted.contains(Compression.CAPABILITY)) {
+            out = Compression.deflating(socket.getOutputStream(), Compression.newDeflater(Deflater.BEST_SPEED));
+            in.startInflating(Compression.newInflater());
+        }
+        System.out.println("Serwer: " + reply);
+        return true;
+    }
+
+    // Wiadomość w trybie wynegocjowanym z serwerem
+    private void send(Op op, String... fields) throws IOException {
+        sendLock.lock();
+        try {
+            out.write(new Packet(op, fields).encode(binary));
+            out.flush();
+            lastSent = System.currentTimeMillis();
+        } finally {
+            sendLock.unlock();
+        }
+    }
+
+    private void sendQuietly(Op op, String... fields) {
+        try {
+            send(op, fields);
+        } catch (IOException e) {
+            System.out.println("Błąd wysyłania do serwera: " + e.getMessage());
+        }
+    }
+
     private void startListening() {
         listener = new Thread(() -> {
             try {
-                String message;
-                while (connected && (message = in.readLine()) != null) {
+                Packet message;
+                while (connected && (message = in.read()) != null) {
+                    lastReceived = System.currentTimeMillis();
                     System.out.println("Otrzymano: " + message);
 
-                    if (message.startsWith("PRIVATE_MSG:")) {
-                        String[] parts = message.split(":", 3);
-                        if (parts.length == 3 && privateMessageCallback != null) {
-                            privateMessageCallback.accept(parts[1], parts[2]);
+                    if (message.op == Op.PRIVATE_MSG) {
+                        String[] parts = message.fields;
+                        if (parts.length == 2 && privateMessageCallback != null) {
+                            privateMessageCallback.accept(parts[0], parts[1]);
+                            messageHistory.add(System.currentTimeMillis() + "|" + parts[0] + "|" + username + "|" + parts[1]);
+                            deliveredDuringSync(parts[0], parts[1]);
+                        }
+                    }
+                    else if (message.op == Op.MSG) {
+                        // MSG:<id>:<od>:<treść> - wyświetlona znaczy przeczytana
+                        String[] parts = message.fields;
+                        long id;
+                        try {
+                            id = parts.length == 3 ? Long.parseLong(parts[0]) : -1;
+                        } catch (NumberFormatException e) {
+                            System.out.println("Niepoprawne MSG: " + parts[0]);
+                            continue;
+                        }
+                        if (parts.length == 3) {
+                            if (privateMessageCallback != null) {
+                                privateMessageCallback.accept(parts[1], parts[2]);
+                            }
                             messageHistory.add(System.currentTimeMillis() + "|" + parts[1] + "|" + username + "|" + parts[2]);
+                            deliveredDuringSync(parts[1], parts[2]);
+                            lastUnacked = id;
+                            if (inboxDrained) {
+                                acknowledge();
+                            }
                         }
                     }
-                    else if (message.startsWith("HISTORY:")) {
-                        String historyData = message.substring(8);
+                    else if (message.op == Op.INBOX_END) {
+                        inboxDrained = true;
+                        acknowledge();
+                    }
+                    else if (message.op == Op.HISTORY) {
+                        String historyData = message.field(0);
+                        String[] parts = historyData.split("\\|", 4);
+                        // Już doręczona przez skrzynkę albo na żywo
+                        if (parts.length == 4 && parts[2].equals(username) && alreadyDelivered(parts[1], parts[3])) {
+                            continue;
+                        }
                         messageHistory.add(historyData);
 
-                        if (historyCallback != null) {
-                            String[] parts = historyData.split("\\|", 4);
-                            if (parts.length == 4) {
-                                historyCallback.accept(parts[1], parts[3]);
+                        if (historyCallback != null && parts.length == 4) {
+                            historyCallback.accept(parts[1], parts[3]);
+                        }
+                    }
+                    else if (message.op == Op.HISTORY_END) {
+                        // HISTORY_END:<rozmowa>:<kursor>:<czy jest dalsza strona>
+                        String[] parts = message.fields;
+                        if (parts.length == 3) {
+                            historyCursor = parts[1];
+                            if (parts[2].equals("1")) {
+                                requestHistory();
+                            } else {
+                                historySyncing = false;
+                                deliveredDuringSync.clear();
                             }
                         }
                     }
-                    else if (message.startsWith("USER_ONLINE:")) {
-                        String user = message.substring(12);
+                    else if (message.op == Op.USER_ONLINE) {
+                        String user = message.field(0);
+                        applyPresence(new String[] {"+" + user});
                         System.out.println(user + " jest teraz online");
                     }
-                    else if (message.startsWith("USER_OFFLINE:")) {
-                        String user = message.substring(13);
+                    else if (message.op == Op.USER_OFFLINE) {
+                        String user = message.field(0);
+                        applyPresence(new String[] {"-" + user});
                         System.out.println(user + " wyszedł");
                     }
-                    else if (message.startsWith("ONLINE_LIST:")) {
-                        String users = message.substring(12);
+                    else if (message.op == Op.PRESENCE_DELTA) {
+                        // Wszystkie zmiany z okna serwera naraz
+                        applyPresence(message.field(0).split(","));
+                    }
+                    else if (message.op == Op.ONLINE_LIST) {
+                        String users = message.field(0);
+                        synchronized (onlineUsers) {
+                            onlineUsers.clear();
+                        }
+                        applyPresence(users.isEmpty() ? new String[0] : ("+" + users.replace(",", ",+")).split(","));
                         System.out.println("Online użytkownicy: " + users);
                     }
-                    else if (message.equals("PONG")) {
+                    else if (message.op == Op.HEARTBEAT) {
+                        // Odstęp od serwera; brak odpowiedzi przez dwa odstępy to zerwane połączenie
+                        try {
+                            heartbeatMs = Math.max(1, Long.parseLong(message.field(0))) * 1000;
+                            socket.setSoTimeout((int) Math.min(Integer.MAX_VALUE, 2 * heartbeatMs));
+                            scheduleHeartbeat(++heartbeatGeneration, heartbeatMs);
+                        } catch (NumberFormatException e) {
+                            System.out.println("Niepoprawny HEARTBEAT: " + message.field(0));
+                        }
+                    }
+                    else if (message.op == Op.PONG) {
                         // Pong od serwera - wszystko OK
                         System.out.println("Pong od serwera");
                     }
@@ -123,31 +321,115 @@ public class SimpleChatClient {
         listener.start();
     }
 
-    private void startPingThread() {
-        pingThread = new Thread(() -> {
-            while (connected) {
+    private void deliveredDuringSync(String from, String text) {
+        if (historySyncing) {
+            deliveredDuringSync.merge(from + "|" + text, 1, Integer::sum);
+        }
+    }
+
+    // Zdejmuje jedno wystąpienie - ta sama treść od tej samej osoby może przyjść kilka razy
+    private boolean alreadyDelivered(String from, String text) {
+        if (!historySyncing) {
+            return false;
+        }
+        String key = from + "|" + text;
+        Integer count = deliveredDuringSync.get(key);
+        if (count == null) {
+            return false;
+        }
+        if (count == 1) {
+            deliveredDuringSync.remove(key);
+        } else {
+            deliveredDuringSync.put(key, count - 1);
+        }
+        return true;
+    }
+
+    // Zmiany "+nazwa"/"-nazwa" pod jedną blokadą; własną nazwę pomijamy
+    private void applyPresence(String[] changes) {
+        synchronized (onlineUsers) {
+            for (String change : changes) {
+                if (change.length() < 2 || change.substring(1).equals(username)) {
+                    continue;
+                }
+                if (change.charAt(0) == '+') {
+                    onlineUsers.add(change.substring(1));
+                } else if (change.charAt(0) == '-') {
+                    onlineUsers.remove(change.substring(1));
+                }
+            }
+        }
+    }
+
+    public List<String> getOnlineUsers() {
+        synchronized (onlineUsers) {
+            return new ArrayList<>(onlineUsers);
+        }
+    }
+
+    // ACK:<id>:read obejmuje też wszystkie wcześniejsze wiadomości
+    private void acknowledge() {
+        if (acks && lastUnacked >= 0) {
+            sendQuietly(Op.ACK, String.valueOf(lastUnacked), "read");
+            lastUnacked = -1;
+        }
+    }
+
+    private void requestHistory() {
+        sendQuietly(Op.GET_HISTORY, "*", historyCursor, String.valueOf(HISTORY_PAGE_SIZE));
+    }
+
+    private void scheduleHeartbeat(int generation, long delayMs) {
+        heartbeatTask = HEARTBEATS.schedule(() -> heartbeat(generation), delayMs, TimeUnit.MILLISECONDS);
+    }
+
+    // Budzi się raz na odstęp (albo rzadziej przy ruchu) i wysyła PING tylko po ciszy
+    // w którąkolwiek stronę. Wspólny wątek nie czeka na zapis innego wątku - trwający
+    // zapis to też ruch.
+    private void heartbeat(int generation) {
+        if (!connected || generation != heartbeatGeneration) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        long due = Math.min(lastSent, lastReceived) + heartbeatMs;
+        if (now >= due) {
+            if (sendLock.tryLock()) {
                 try {
-                    Thread.sleep(30000); // Co 30 sekund
-                    if (connected && out != null) {
-                        out.println("PING");
-                        System.out.println("Wysłano ping do serwera");
-                    }
-                } catch (InterruptedException e) {
-                    break;
-                } catch (Exception e) {
+                    send(Op.PING);
+                    System.out.println("Wysłano ping do serwera");
+                } catch (IOException e) {
                     System.out.println("Błąd wysyłania ping: " + e.getMessage());
                     connected = false;
-                    break;
+                    return;
+                } finally {
+                    sendLock.unlock();
                 }
             }
-        });
-        pingThread.setDaemon(true);
-        pingThread.start();
+            due = now + heartbeatMs;
+        }
+        scheduleHeartbeat(generation, due - now);
     }
 
     public void sendPrivateMessage(String toUser, String text) {
         if (connected && out != null) {
-            out.println("PRIVATE:" + toUser + ":" + text);
+            sendQuietly(Op.PRIVATE, toUser, text);
+        }
+    }
+
+    // Obecność wybranych osób także bez wspólnej historii i grup; serwer odpowiada
+    // zmianami z tymi, którzy są teraz online
+    public void subscribe(String... users) {
+        if (connected && out != null && users.length > 0) {
+            sendQuietly(Op.SUBSCRIBE, String.join(",", users));
+        }
+    }
+
+    public void unsubscribe(String... users) {
+        if (connected && out != null && users.length > 0) {
+            sendQuietly(Op.UNSUBSCRIBE, String.join(",", users));
+            synchronized (onlineUsers) {
+                onlineUsers.removeAll(Arrays.asList(users));
+            }
         }
     }
 
@@ -165,8 +447,12 @@ public class SimpleChatClient {
 
     public void disconnect() {
         connected = false;
+        ScheduledFuture<?> task = heartbeatTask;
+        if (task != null) {
+            task.cancel(false);
+        }
         if (out != null) {
-            out.println("LOGOUT");
+            sendQuietly(Op.LOGOUT);
         }
         try {
             if (socket != null && !socket.isClosed()) {
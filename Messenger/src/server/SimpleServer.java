@@ -3,299 +3,938 @@ package server;
 import java.io.*;
 import java.net.*;
 import java.util.*;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.Deflater;
 import service.AutomaticServerFinder;
+import service.Compression;
+import service.Op;
+import service.Packet;
 
 public class SimpleServer {
     private static final int CHAT_PORT = 12345;
-    private static Map<String, ClientHandler> clients = new HashMap<>();
-    private static final String MESSAGES_FILE = "server_messages.txt";
+    // Rejestr klientów bez globalnej blokady: odczyty (routing) nie czekają na nic,
+    // a iteracja przy rozgłaszaniu i sprzątaniu nie zatrzymuje innych wątków.
+    // Pakietowy, podobnie jak broadcast - dla benchmarków (Messenger/benchmarks)
+    static final Map<String, ClientConnection> clients = new ConcurrentHashMap<>();
+    private static final String MESSAGES_DIR = "server_messages";
     private static final String ONLINE_FILE = "server_online.txt";
+    private static final String INBOX_FILE = "server_inbox.txt";
+    private static final String USERS_FILE = "Messenger/data/users.txt";
+    private static final int DEFAULT_HISTORY_PAGE = 100;
+    private static final int MAX_HISTORY_PAGE = 500;
+    // Tylu najwolniejszych odbiorców pokazuje STATS
+    private static final int SLOWEST_CONSUMERS = 10;
+    private static final PresenceTable presence = new PresenceTable();
+    private static final Frame PONG = Frame.of(Op.PONG);
+    private static MessageLog messageLog;
+    private static Inbox inbox;
+    private static RateLimits rateLimits;
+    private static GroupDirectory groups;
+    private static IdleTimer idleTimer;
+    // Odstęp heartbeatu ogłaszany klientom z HEARTBEAT
+    private static int heartbeatSeconds;
+    // Null przy --presence-window-ms=0 - zmiany obecności idą wtedy od razu
+    private static PresenceDeltas presenceDeltas;
+    // Null przy --presence-scope=all - obecność dostają wtedy wszyscy zalogowani
+    private static PresenceInterest interest;
+    private static int interestHistory;
+    // Null, gdy serwer działa sam (bez --peers)
+    private static ClusterNode cluster;
+    private static ServerConfig config = ServerConfig.parse(new String[0]);
 
     public static void main(String[] args) throws IOException {
+        long started = System.nanoTime();
+        config = ServerConfig.parse(args);
+
         System.out.println("=== Messenger Server ===");
-        System.out.println("Uruchamianie serwera discovery...");
-        AutomaticServerFinder.startDiscoveryServer();
+        // Kilka węzłów na jednej maszynie nie może dzielić portu discovery - --discovery=off
+        if (!config.get("discovery", "on").equals("off")) {
+            System.out.println("Uruchamianie serwera discovery...");
+            AutomaticServerFinder.startDiscoveryServer();
+        }
 
-        System.out.println("Uruchamianie serwera czatu na porcie: " + CHAT_PORT);
+        int port = config.getInt("port", CHAT_PORT);
+        System.out.println("Uruchamianie serwera czatu na porcie: " + port);
 
-        // Utwórz pliki serwera
-        new File(MESSAGES_FILE).delete();
+        // Zrzut obecności z poprzedniego uruchomienia jest nieaktualny; dziennik wiadomości zostaje
         new File(ONLINE_FILE).delete();
 
-        ServerSocket serverSocket = new ServerSocket(CHAT_PORT);
-        System.out.println("Serwer gotowy! Czekam na połączenia...");
+        // Obecność trzymamy w pamięci; plik online to tylko okresowy zrzut diagnostyczny
+        presence.startDumping(new File(ONLINE_FILE), config.getInt("presence-dump-seconds", 30));
+
+        // --durability=none|interval|always, --fsync-interval-ms=N dla trybu interval,
+        // --messages-dir=katalog segmentów, --segment-mb=N rozmiar segmentu (najwyżej 1024)
+        messageLog = new MessageLog(new File(config.get("messages-dir", MESSAGES_DIR)), new MessageIndex(),
+                MessageLog.Durability.parse(config.get("durability", "none")),
+                config.getInt("fsync-interval-ms", 100),
+                Math.min(1024, Math.max(1, config.getInt("segment-mb", 64))) * 1024L * 1024L);
+        // Przy zamknięciu procesu (Ctrl+C, SIGTERM) zapisz to, co czeka w kolejce dziennika
+        Runtime.getRuntime().addShutdownHook(new Thread(messageLog::close, "message-log-close"));
+
+        // Członkostwo w grupach i zarejestrowani użytkownicy z pliku użytkowników,
+        // przeładowywane przy jego zmianie
+        groups = new GroupDirectory(new File(config.get("users-file", USERS_FILE)));
+        groups.startWatching();
+
+        // Skrzynki odbiorcze: znaczniki doręczenia w --inbox-file, treść w dzienniku.
+        // Nowa skrzynka tylko dla zarejestrowanych i użytkowników innych węzłów klastra.
+        inbox = new Inbox(messageLog, new File(config.get("inbox-file", INBOX_FILE)),
+                name -> groups.isRegistered(name) || cluster != null && cluster.isRemote(name));
+        inbox.startSaving(1);
+        messageLog.setInbox(inbox);
+
+        // Klaster: --peers=id@host:port,... --node-id=id --cluster-port=N (domyślnie port + 1000)
+        String peers = config.get("peers", "");
+        if (!peers.isEmpty()) {
+            cluster = new ClusterNode(config.get("node-id", "node-" + port),
+                    config.getInt("cluster-port", port + 1000), peers, presence::snapshot);
+            cluster.start();
+        }
 
-        // Czyszczenie starych połączeń co 60 sekund
-        new Timer().schedule(new TimerTask() {
-            @Override
-            public void run() {
-                cleanupOldConnections();
-            }
-        }, 0, 60000);
+        rateLimits = new RateLimits(
+                config.getInt("rate-msgs", 0), config.getInt("rate-bytes", 0),
+                config.getInt("user-rate-msgs", 0), config.getInt("user-rate-bytes", 0),
+                config.getInt("rate-burst-seconds", 2), RateLimits.Policy.parse(config.get("rate-policy", "delay")));
+        rateLimits.startReporting(10);
+
+        // Metryki: /metrics na 127.0.0.1:--metrics-port (domyślnie port + 2000, 0 wyłącza)
+        // i polecenie STATS na porcie czatu - tylko dla --admins=a,b, jeśli podano
+        registerMetrics();
+        Metrics.start(config.getInt("metrics-port", port + 2000));
+
+        // Obecność tylko dla zainteresowanych (--presence-scope=interest|all); zbiór
+        // startowy z --presence-history ostatnich wiadomości i wspólnych grup
+        if (!config.get("presence-scope", "interest").equals("all")) {
+            interest = new PresenceInterest();
+            interestHistory = config.getInt("presence-history", 200);
+        }
+
+        // Zmiany obecności zbierane w oknie --presence-window-ms (0 - każda od razu)
+        int presenceWindow = config.getInt("presence-window-ms", 250);
+        if (presenceWindow > 0) {
+            presenceDeltas = new PresenceDeltas(clients, interest);
+            presenceDeltas.start(presenceWindow);
+        }
+
+        // Bezczynni klienci są rozłączani po --idle-timeout-seconds (0 wyłącza)
+        int idleTimeout = config.getInt("idle-timeout-seconds", 300);
+        if (idleTimeout > 0) {
+            idleTimer = new IdleTimer(idleTimeout);
+        }
+
+        // Heartbeat co --heartbeat-seconds, ale najwyżej co trzecią część limitu bezczynności,
+        // żeby zgubiony PING nie rozłączał. Liczy się każda odebrana wiadomość, więc
+        // klient wysyła PING dopiero, gdy przez tyle sekund nie wysłał nic innego.
+        heartbeatSeconds = Math.max(1, config.getInt("heartbeat-seconds", 60));
+        if (idleTimeout > 0) {
+            heartbeatSeconds = Math.max(1, Math.min(heartbeatSeconds, idleTimeout / 3));
+        }
+
+        System.out.println("Start serwera: " + (System.nanoTime() - started) / 1_000_000 + " ms");
+
+        String mode = config.get("mode", "threads");
+        if (mode.equals("nio")) {
+            // Tryb nieblokujący: stała liczba pętli zdarzeń zamiast wątku na klienta
+            int eventLoops = config.getInt("event-loops", Runtime.getRuntime().availableProcessors());
+            new NioServer(port, eventLoops).run();
+            return;
+        }
+
+        // Wątek na klienta: zwykłe wątki systemowe albo wirtualne (--threads=virtual)
+        Thread.Builder threadBuilder;
+        if (config.get("threads", "platform").equals("virtual")) {
+            threadBuilder = Thread.ofVirtual().name("client-", 0);
+        } else {
+            threadBuilder = Thread.ofPlatform().name("client-", 0);
+        }
+
+        ServerSocket serverSocket = new ServerSocket(port);
+        System.out.println("Serwer gotowy! Czekam na połączenia...");
 
         while (true) {
             Socket clientSocket = serverSocket.accept();
             System.out.println("Nowe połączenie z: " + clientSocket.getInetAddress());
-            new Thread(new ClientHandler(clientSocket)).start();
+            threadBuilder.start(new ClientHandler(clientSocket));
         }
     }
 
-    private static synchronized void cleanupOldConnections() {
-        Iterator<Map.Entry<String, ClientHandler>> iterator = clients.entrySet().iterator();
-        while (iterator.hasNext()) {
-            Map.Entry<String, ClientHandler> entry = iterator.next();
-            if (!entry.getValue().isAlive()) {
-                System.out.println("Usuwam nieaktywnego klienta: " + entry.getKey());
-                iterator.remove();
-                removeFromOnlineFile(entry.getKey());
+    // Kolejka wychodząca nowego połączenia:
+    // --outbound-queue=N, --slow-consumer=drop-oldest|disconnect|spill, --spill-dir=katalog
+    static OutboundQueue newOutboundQueue() {
+        return new OutboundQueue(
+                config.getInt("outbound-queue", 1000),
+                OutboundQueue.Policy.parse(config.get("slow-consumer", "drop-oldest")),
+                new File(config.get("spill-dir", "spill")));
+    }
+
+    static RateLimits.Limiter newRateLimiter() {
+        return rateLimits.newLimiter();
+    }
+
+    // Wartości liczone dopiero przy pobraniu metryk
+    private static void registerMetrics() {
+        Metrics.gauge("messenger_outbound_queue_depth", "stat=\"sum\"", "outbound_queue_sum",
+                "Ramki w kolejkach wychodzących zalogowanych klientów", () -> outboundDepth(false));
+        Metrics.gauge("messenger_outbound_queue_depth", "stat=\"max\"", "outbound_queue_max",
+                "Ramki w kolejkach wychodzących zalogowanych klientów", () -> outboundDepth(true));
+        Metrics.gauge("messenger_inbox_pending", "", "inbox_pending",
+                "Wiadomości w skrzynkach odbiorczych: niedoręczone i niepotwierdzone", inbox::pending);
+        Metrics.counter("messenger_rate_limited_total", "action=\"rejected\"", "rate_rejected",
+                "Wiadomości zatrzymane przez limity", rateLimits::rejected);
+        Metrics.counter("messenger_rate_limited_total", "action=\"delayed\"", "rate_delayed",
+                "Wiadomości zatrzymane przez limity", rateLimits::delayed);
+        Metrics.gauge("messenger_rate_limit_users", "", "rate_limit_users",
+                "Użytkownicy z kubełkami limitów w pamięci", rateLimits::users);
+    }
+
+    private static long outboundDepth(boolean max) {
+        long result = 0;
+        for (ClientConnection client : clients.values()) {
+            int depth = client.getOutboundQueue().depth();
+            result = max ? Math.max(result, depth) : result + depth;
+        }
+        return result;
+    }
+
+    // Obsługa protokołu wspólna dla obu trybów serwera
+
+    // Zwraca false, gdy nazwa jest niedozwolona - połączenie zostanie zamknięte
+    static boolean login(ClientConnection client) {
+        String username = client.getUsername();
+
+        // "#nazwa" to w dzienniku uczestnik-grupa, nie użytkownik
+        if (!isValidName(username) || username.startsWith(MessageLog.GROUP_PREFIX)) {
+            System.out.println("Odrzucono logowanie jako '" + username + "'");
+            return false;
+        }
+
+        clients.put(username, client);
+        presence.join(username);
+        client.getRateLimiter().bindUser(username);
+        if (cluster != null) {
+            cluster.publishPresence(username, true);
+        }
+
+        client.send(Op.LOGIN_OK, username);
+        if (client.heartbeats()) {
+            client.send(Op.HEARTBEAT, String.valueOf(heartbeatSeconds));
+        }
+        Metrics.LOGINS.increment();
+        System.out.println(username + " zalogował się");
+
+        // Historii nie wysyłamy przy logowaniu - klient pobiera ją stronami przez GET_HISTORY
+
+        // Wyślij listę online użytkowników - przy zbiorach zainteresowań tylko obserwowanych
+        if (interest != null) {
+            seedInterest(username);
+        }
+        List<String> onlineUsers = interest == null ? onlineUsers() : onlineInterests(username);
+        StringBuilder onlineList = new StringBuilder();
+        for (String user : onlineUsers) {
+            if (!user.equals(username)) {
+                onlineList.append(user).append(",");
             }
         }
+        client.send(Op.ONLINE_LIST, onlineList.toString());
+
+        // Wiadomości, które przyszły, gdy był offline - jedną ramką
+        inbox.attach(client);
+
+        // Powiadom innych o nowym użytkowniku
+        announcePresence(username, true);
+        return true;
     }
 
-    private static synchronized void broadcast(String message, String exclude) {
-        for (Map.Entry<String, ClientHandler> entry : clients.entrySet()) {
-            if (!entry.getKey().equals(exclude)) {
-                entry.getValue().send(message);
+    // '|' rozdziela pola wpisu dziennika (ts|od|do|treść), ':' pola wiadomości tekstowej,
+    // a ',' listy obecności - nazwa z nimi zostałaby po restarcie odczytana inaczej,
+    // niż ją zapisano
+    static boolean isValidName(String name) {
+        return !name.isEmpty() && name.indexOf('|') < 0 && name.indexOf(':') < 0 && name.indexOf(',') < 0;
+    }
+
+    // Negocjacja przed logowaniem: UPGRADE:<opcje po przecinku>, np. BINARY (ramki
+    // binarne), DEFLATE (kompresja strumienia), ACK (potwierdzenia wiadomości, Inbox),
+    // DELTA (obecność jako PRESENCE_DELTA) i HEARTBEAT (odstęp PING od serwera).
+    // Odpowiadamy tekstem UPGRADE_OK:<przyjęte> (TEXT, gdy żadnej) i od następnej
+    // wiadomości w obie strony obowiązują przyjęte opcje.
+    // Zwraca true przy kompresji - połączenie zaczyna wtedy rozpakowywać odbierane bajty.
+    static boolean upgrade(ClientConnection client, Packet packet) {
+        List<String> accepted = new ArrayList<>();
+        for (String option : packet.field(0).split(",")) {
+            boolean supported = option.equals("BINARY") || option.equals("ACK") || option.equals("DELTA")
+                    || option.equals("HEARTBEAT")
+                    || option.equals(Compression.CAPABILITY) && !config.get("compression", "on").equals("off");
+            if (supported && !accepted.contains(option)) {
+                accepted.add(option);
             }
         }
+        boolean deflate = accepted.contains(Compression.CAPABILITY);
+        String reply = "UPGRADE_OK:" + (accepted.isEmpty() ? "TEXT" : String.join(",", accepted));
+        client.send(deflate ? Frame.compressionStart(reply) : Frame.raw(reply));
+        if (accepted.contains("BINARY")) {
+            client.getOutboundQueue().setBinary(true);
+        }
+        client.setAcknowledges(accepted.contains("ACK"));
+        client.setPresenceDeltas(accepted.contains("DELTA"));
+        client.setHeartbeats(accepted.contains("HEARTBEAT"));
+        return deflate;
+    }
+
+    static Deflater newDeflater() {
+        return Compression.newDeflater(config.getInt("compression-level", Deflater.BEST_SPEED));
+    }
+
+    // Bilans kompresji zamkniętego połączenia - do porównania oszczędności pasma z kosztem CPU
+    static void logCompression(ClientConnection client, String direction, long wire, long raw) {
+        Metrics.COMPRESSION_WIRE.add(wire);
+        Metrics.COMPRESSION_RAW.add(raw);
+        System.out.println("Kompresja " + client.getUsername() + " (" + direction + "): " + wire
+                + " B zamiast " + raw + " B (" + Compression.ratio(wire, raw) + ")");
     }
 
-    private static synchronized void sendToUser(String username, String message) {
-        ClientHandler client = clients.get(username);
-        if (client != null) {
-            client.send(message);
+    // Limity zalogowanego klienta przed obsługą wiadomości: 0 - obsłużyć teraz,
+    // > 0 - obsłużyć po tylu ns (połączenie przestaje czytać, nadawcę hamuje TCP),
+    // < 0 - wiadomość odrzucona. LOGOUT przechodzi zawsze.
+    static long admit(ClientConnection client, Command command) {
+        if (command.op == Op.LOGOUT) {
+            return 0;
         }
+        RateLimits.Limiter limiter = client.getRateLimiter();
+        long wait = limiter.acquire(command.size());
+        if (wait < 0 && limiter.shouldNotify()) {
+            client.send(Op.RATE_LIMITED, String.valueOf(Math.max(1, -wait / 1_000_000)));
+        }
+        return wait;
     }
 
-    private static synchronized void saveMessageToFile(String from, String to, String message) {
-        try (BufferedWriter writer = new BufferedWriter(new FileWriter(MESSAGES_FILE, true))) {
-            String timestamp = System.currentTimeMillis() + "|" + from + "|" + to + "|" + message;
-            writer.write(timestamp);
-            writer.newLine();
-            System.out.println("Zapisano wiadomość: " + from + " -> " + to);
-        } catch (IOException e) {
-            System.err.println("Błąd zapisu wiadomości: " + e.getMessage());
+    // Wiadomość prosto z bufora odczytu. PING i PRIVATE obsługujemy bez tworzenia
+    // Stringów i tablic; rzadsze polecenia idą przez Packet.
+    // Zwraca false, gdy klient się wylogował
+    static boolean handleMessage(ClientConnection client, Command command) throws ProtocolException {
+        switch (command.op) {
+            case PING:
+                client.send(PONG);
+                return true;
+            case PRIVATE:
+                if (command.fieldCount == 2) {
+                    sendPrivate(client, command);
+                }
+                return true;
+            case LOGOUT:
+                return false;
+            default:
+                return handleMessage(client, command.toPacket());
         }
     }
 
-    private static synchronized List<String> getMessagesForUser(String username) {
-        List<String> messages = new ArrayList<>();
-        File file = new File(MESSAGES_FILE);
+    private static void sendPrivate(ClientConnection client, Command command) {
+        PeerCache peers = client.getPeers();
+        PeerCache.Peer to = peers.lookup(command.data, command.start[0], command.length(0));
+        if (!to.valid) {
+            System.out.println("Niepoprawny odbiorca od " + client.getUsername() + ": " + to.name);
+            return;
+        }
+        Metrics.ROUTED_PRIVATE.increment();
 
-        if (!file.exists()) {
-            return messages;
+        // Wyślij do odbiorcy jeśli online - ramka składana z bajtów w jego trybie.
+        // Klient z potwierdzeniami potrzebuje id, więc dostanie MSG ze skrzynki po zapisie.
+        ClientConnection target = clients.get(to.name);
+        if (interest != null) {
+            watchEachOther(client.getUsername(), to.name, target != null);
+        }
+        boolean live = target != null && !target.acknowledges();
+        if (live) {
+            target.send(Frame.forward(target.getOutboundQueue().isBinary(), Op.PRIVATE_MSG,
+                    peers.self(), command.data, command.start[1], command.length(1)));
         }
 
-        try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
-            String line;
-            while ((line = reader.readLine()) != null) {
-                String[] parts = line.split("\\|", 4);
-                if (parts.length == 4) {
-                    String to = parts[2];
-                    String from = parts[1];
-                    if (to.equals(username) || from.equals(username)) {
-                        messages.add(line);
-                    }
+        // Zapisz wiadomość - potwierdzenie dopiero po zapisie z wybraną trwałością
+        byte[] message = Arrays.copyOfRange(command.data, command.start[1], command.end[1]);
+        if (target == null && cluster != null
+                && cluster.forward(client.getUsername(), to.name, new String(message, StandardCharsets.UTF_8))) {
+            // Odbiorca jest zalogowany na innym węźle klastra - doręczy i przechowa ją tamten węzeł
+            messageLog.append(client.getUsername(), to.name, message, to.acknowledge);
+            return;
+        }
+        // Niedoręczona trafi do skrzynki odbiorcy
+        messageLog.appendPrivate(client.getUsername(), to.name, message, to.acknowledge, live);
+    }
+
+    // NODE_PRIVATE od innego węzła: doręczenie lokalnemu odbiorcy i zapis
+    // w dzienniku tego węzła, żeby odbiorca miał ją w historii
+    static void deliverRemote(String from, String to, String message) {
+        if (!isValidName(from) || !isValidName(to)) {
+            System.out.println("Niepoprawna wiadomość od węzła: " + from + " -> " + to);
+            return;
+        }
+        Metrics.ROUTED_PRIVATE.increment();
+        ClientConnection target = clients.get(to);
+        if (interest != null && target != null) {
+            watchEachOther(to, from, true);
+        }
+        boolean live = target != null && !target.acknowledges();
+        if (live) {
+            target.send(Op.PRIVATE_MSG, from, message);
+        }
+        messageLog.appendPrivate(from, to, message.getBytes(StandardCharsets.UTF_8), null, live);
+    }
+
+    // Obecność użytkownika innego węzła; lokalne połączenie o tej nazwie ma pierwszeństwo
+    static void remotePresence(String username, boolean online) {
+        if (!clients.containsKey(username)) {
+            announcePresence(username, online);
+        }
+    }
+
+    // Do najbliższego okna PresenceDeltas albo od razu - do obserwujących
+    // lub do wszystkich poza samym użytkownikiem
+    private static void announcePresence(String username, boolean online) {
+        if (presenceDeltas != null) {
+            presenceDeltas.changed(username, online);
+        } else if (interest != null) {
+            Frame frame = Frame.of(online ? Op.USER_ONLINE : Op.USER_OFFLINE, username);
+            int recipients = 0;
+            for (String watcher : interest.watchersOf(username)) {
+                ClientConnection target = clients.get(watcher);
+                if (target != null) {
+                    target.send(frame);
+                    recipients++;
                 }
             }
-        } catch (IOException e) {
-            System.err.println("Błąd odczytu wiadomości: " + e.getMessage());
+            Metrics.FANOUT.record(recipients);
+        } else {
+            broadcast(username, online ? Op.USER_ONLINE : Op.USER_OFFLINE, username);
         }
+    }
 
-        return messages;
+    // Zbiór zainteresowań przy logowaniu: ostatni rozmówcy i członkowie wspólnych grup.
+    // Zalogowani z tego zbioru zaczynają też obserwować użytkownika - ich własny
+    // zbiór mógł go nie objąć, a teraz o nim usłyszą.
+    private static void seedInterest(String username) {
+        for (String peer : messageLog.recentPeers(username, interestHistory)) {
+            watchEachOther(username, peer, clients.containsKey(peer));
+        }
+        for (GroupDirectory.Group group : groups.groupsOf(username)) {
+            for (String member : group.members) {
+                watchEachOther(username, member, clients.containsKey(member));
+            }
+        }
     }
 
-    private static synchronized void addToOnlineFile(String username) {
-        try (BufferedWriter writer = new BufferedWriter(new FileWriter(ONLINE_FILE, true))) {
-            writer.write(username + "|" + System.currentTimeMillis());
-            writer.newLine();
-        } catch (IOException e) {
-            System.err.println("Błąd zapisu online: " + e.getMessage());
+    // Rozmowa to zainteresowanie w obie strony; offline'owy rozmówca dostanie
+    // swój zbiór przy logowaniu
+    private static void watchEachOther(String username, String peer, boolean peerOnline) {
+        interest.add(username, peer);
+        if (peerOnline) {
+            interest.add(peer, username);
         }
     }
 
-    private static synchronized void removeFromOnlineFile(String username) {
-        try {
-            File tempFile = new File(ONLINE_FILE + ".tmp");
-            File originalFile = new File(ONLINE_FILE);
+    private static List<String> onlineInterests(String username) {
+        List<String> users = new ArrayList<>();
+        for (String user : interest.interestsOf(username)) {
+            if (clients.containsKey(user) || cluster != null && cluster.isRemote(user)) {
+                users.add(user);
+            }
+        }
+        return users;
+    }
 
-            if (!originalFile.exists()) {
-                return;
+    // SUBSCRIBE:a,b - obserwowanie wybranych osób, w odpowiedzi zmiany obecności
+    // z tymi z nich, którzy są teraz online; UNSUBSCRIBE:a,b - koniec obserwowania
+    private static void subscribe(ClientConnection client, String users, boolean subscribe) {
+        String username = client.getUsername();
+        List<String> online = new ArrayList<>();
+        for (String user : users.split(",")) {
+            if (user.isEmpty() || user.equals(username)) {
+                continue;
+            }
+            if (!subscribe) {
+                interest.remove(username, user);
+            } else if (!interest.add(username, user)) {
+                System.out.println("Pełny zbiór obserwowanych " + username);
+                break;
+            } else if (clients.containsKey(user) || cluster != null && cluster.isRemote(user)) {
+                online.add(user);
+            }
+        }
+        if (!online.isEmpty()) {
+            Map<String, Boolean> states = new HashMap<>();
+            for (String user : online) {
+                states.put(user, true);
             }
+            client.send(PresenceDeltas.frameFor(client, online, states, new HashMap<>()));
+        }
+    }
 
-            try (BufferedReader reader = new BufferedReader(new FileReader(originalFile));
-                 BufferedWriter writer = new BufferedWriter(new FileWriter(tempFile))) {
+    // Zalogowani lokalnie i na pozostałych węzłach klastra
+    private static List<String> onlineUsers() {
+        if (cluster == null) {
+            return presence.snapshot();
+        }
+        Set<String> users = new LinkedHashSet<>(presence.snapshot());
+        users.addAll(cluster.remoteUsers());
+        return new ArrayList<>(users);
+    }
 
-                String line;
-                while ((line = reader.readLine()) != null) {
-                    String[] parts = line.split("\\|");
-                    if (parts.length > 0 && !parts[0].equals(username)) {
-                        writer.write(line);
-                        writer.newLine();
-                    }
+    private static boolean handleMessage(ClientConnection client, Packet packet) {
+        String username = client.getUsername();
+
+        if (packet.op == Op.GET_HISTORY && packet.fields.length == 0) {
+            // Stara postać bez kursora - cała historia
+            long start = System.nanoTime();
+            List<String> history = getMessagesForUser(username);
+            for (String msg : history) {
+                client.send(Op.HISTORY, msg);
+            }
+            Metrics.HISTORY_LATENCY.recordSince(start);
+        }
+        else if (packet.op == Op.GET_HISTORY) {
+            long start = System.nanoTime();
+            sendHistoryPage(client, packet.fields);
+            Metrics.HISTORY_LATENCY.recordSince(start);
+        }
+        else if (packet.op == Op.GROUP) {
+            if (packet.fields.length == 2) {
+                sendToGroup(client, packet.fields[0], packet.fields[1]);
+            }
+        }
+        else if (packet.op == Op.ACK) {
+            // ACK:<id>:<delivered|read>
+            if (packet.fields.length == 2) {
+                try {
+                    inbox.acknowledge(username, Long.parseLong(packet.fields[0]), packet.fields[1].equals("read"));
+                } catch (NumberFormatException e) {
+                    System.out.println("Niepoprawne ACK od " + username + ": " + packet.fields[0]);
                 }
             }
+        }
+        else if (packet.op == Op.GET_ONLINE) {
+            client.send(Op.ONLINE_LIST, String.join(",", onlineUsers()));
+        }
+        else if (packet.op == Op.STATS) {
+            sendStats(client);
+        }
+        else if (packet.op == Op.SUBSCRIBE || packet.op == Op.UNSUBSCRIBE) {
+            // Przy --presence-scope=all klient i tak dostaje obecność wszystkich
+            if (interest != null && packet.fields.length == 1) {
+                subscribe(client, packet.fields[0], packet.op == Op.SUBSCRIBE);
+            }
+        }
+        else if (packet.op == Op.LOGOUT) {
+            return false;
+        }
+        else {
+            // Wszystko inne to czat - w trybie tekstowym cała linia jak dotąd
+            Metrics.ROUTED_CHAT.increment();
+            broadcast(username, Op.CHAT, username, packet.toText());
+        }
+        return true;
+    }
 
-            originalFile.delete();
-            tempFile.renameTo(originalFile);
+    // GROUP:<grupa>:<treść> - GROUP_MSG:<grupa>:<nadawca>:<treść> tylko do członków online.
+    // Koszt zależy od liczby członków grupy, nie od liczby zalogowanych.
+    private static void sendToGroup(ClientConnection client, String groupName, String text) {
+        String username = client.getUsername();
+        GroupDirectory.Group group = groups.get(groupName);
+        if (group == null || !group.isMember(username)) {
+            System.out.println(username + " nie należy do grupy " + groupName);
+            return;
+        }
 
-        } catch (IOException e) {
-            System.err.println("Błąd usuwania z online: " + e.getMessage());
+        Frame frame = Frame.of(Op.GROUP_MSG, group.name, username, text);
+        int recipients = 0;
+        for (String member : group.members) {
+            if (member.equals(username)) {
+                continue;
+            }
+            ClientConnection target = clients.get(member);
+            if (target != null) {
+                target.send(frame);
+                recipients++;
+            }
         }
+        Metrics.ROUTED_GROUP.increment();
+        Metrics.FANOUT.record(recipients);
+
+        // Każda grupa ma w dzienniku własny indeks - historia przez GET_HISTORY:#<grupa>
+        messageLog.append(username, MessageLog.GROUP_PREFIX + group.name, text.getBytes(StandardCharsets.UTF_8), null);
     }
 
-    private static synchronized List<String> getOnlineUsers() {
-        List<String> onlineUsers = new ArrayList<>();
-        File file = new File(ONLINE_FILE);
+    // STATS:<nazwa>=<wartość>,... - te same metryki co /metrics, z wartościami na sekundę
+    // i kwantylami histogramów zamiast przedziałów
+    private static void sendStats(ClientConnection client) {
+        String admins = config.get("admins", "");
+        if (!admins.isEmpty() && !Arrays.asList(admins.split(",")).contains(client.getUsername())) {
+            System.out.println("Odmowa STATS dla " + client.getUsername());
+            return;
+        }
+        StringBuilder reply = new StringBuilder();
+        for (Map.Entry<String, String> stat : Metrics.stats().entrySet()) {
+            if (reply.length() > 0) {
+                reply.append(',');
+            }
+            reply.append(stat.getKey()).append('=').append(stat.getValue());
+        }
+        reply.append(",outbound_slowest=").append(slowestConsumers(SLOWEST_CONSUMERS));
+        client.send(Op.STATS, reply.toString());
+    }
 
-        if (!file.exists()) {
-            return onlineUsers;
+    // Klienci z najdłuższą kolejką wychodzącą (przy równej - z większą liczbą odrzuconych):
+    // nazwa/głębokość/odrzucone/przelane;... - tylko ci, którzy kiedykolwiek nie nadążali
+    private static String slowestConsumers(int limit) {
+        // Kopcem min: na szczycie najmniej zaległy z dotąd wybranych
+        PriorityQueue<Lag> slowest = new PriorityQueue<>();
+        for (ClientConnection client : clients.values()) {
+            OutboundQueue queue = client.getOutboundQueue();
+            Lag lag = new Lag(client.getUsername(), queue.depth(), queue.dropped(), queue.spilled());
+            if (lag.depth == 0 && lag.dropped == 0 && lag.spilled == 0) {
+                continue;
+            }
+            slowest.add(lag);
+            if (slowest.size() > limit) {
+                slowest.poll();
+            }
         }
+        List<Lag> sorted = new ArrayList<>(slowest);
+        sorted.sort(Collections.reverseOrder());
+        StringBuilder out = new StringBuilder();
+        for (Lag lag : sorted) {
+            if (out.length() > 0) {
+                out.append(';');
+            }
+            out.append(lag.username).append('/').append(lag.depth)
+                    .append('/').append(lag.dropped).append('/').append(lag.spilled);
+        }
+        return out.toString();
+    }
 
-        try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
-            String line;
-            long currentTime = System.currentTimeMillis();
+    // Migawka kolejki jednego klienta - liczniki zmieniają się w trakcie wybierania
+    private static final class Lag implements Comparable<Lag> {
+        final String username;
+        final int depth;
+        final long dropped;
+        final long spilled;
+
+        Lag(String username, int depth, long dropped, long spilled) {
+            this.username = username;
+            this.depth = depth;
+            this.dropped = dropped;
+            this.spilled = spilled;
+        }
 
-            while ((line = reader.readLine()) != null) {
-                String[] parts = line.split("\\|");
-                if (parts.length == 2) {
-                    String username = parts[0];
-                    long timestamp = Long.parseLong(parts[1]);
+        @Override
+        public int compareTo(Lag other) {
+            if (depth != other.depth) {
+                return Integer.compare(depth, other.depth);
+            }
+            return Long.compare(dropped + spilled, other.dropped + other.spilled);
+        }
+    }
 
-                    // Jeśli aktywny w ciągu ostatnich 5 minut
-                    if (currentTime - timestamp < 300000) {
-                        onlineUsers.add(username);
-                    }
-                }
+    // GET_HISTORY:<rozmówca|*|#grupa>:<kursor>:<limit>
+    // kursor: "-" od początku, <id> wiadomości po tym id, t<ms> wiadomości po tym czasie.
+    // Odpowiedź: linie HISTORY: i na końcu HISTORY_END:<rozmówca>:<kursor>:<1 jeśli jest dalsza strona>
+    private static void sendHistoryPage(ClientConnection client, String[] parts) {
+        String conversation = parts[0].isEmpty() ? "*" : parts[0];
+        String since = parts.length > 1 && !parts[1].isEmpty() ? parts[1] : "-";
+        int limit = DEFAULT_HISTORY_PAGE;
+
+        long afterId = -1;
+        long afterTimestamp = -1;
+        try {
+            if (parts.length > 2 && !parts[2].isEmpty()) {
+                limit = Math.max(1, Math.min(MAX_HISTORY_PAGE, Integer.parseInt(parts[2])));
+            }
+            if (since.startsWith("t")) {
+                afterTimestamp = Long.parseLong(since.substring(1));
+            } else if (!since.equals("-")) {
+                afterId = Long.parseLong(since);
+            }
+        } catch (NumberFormatException e) {
+            client.send(Op.HISTORY_END, conversation, since, "0");
+            return;
+        }
+
+        MessageLog.HistoryPage page;
+        if (conversation.startsWith(MessageLog.GROUP_PREFIX)) {
+            // Historia grupy tylko dla jej obecnych członków
+            GroupDirectory.Group group = groups.get(conversation.substring(1));
+            if (group == null || !group.isMember(client.getUsername())) {
+                client.send(Op.HISTORY_END, conversation, since, "0");
+                return;
+            }
+            page = messageLog.page(conversation, null, afterId, afterTimestamp, limit);
+        } else {
+            String peer = conversation.equals("*") ? null : conversation;
+            page = messageLog.page(client.getUsername(), peer, afterId, afterTimestamp, limit);
+        }
+        for (String record : page.records) {
+            client.send(Op.HISTORY, record);
+        }
+        // Pusta strona - kursor się nie zmienia
+        String cursor = page.lastId < 0 ? since : String.valueOf(page.lastId);
+        client.send(Op.HISTORY_END, conversation, cursor, page.more ? "1" : "0");
+    }
+
+    static void logout(ClientConnection client) {
+        String username = client.getUsername();
+
+        // Usuń tylko jeśli to nadal to samo połączenie - użytkownik mógł się już zalogować ponownie
+        inbox.detach(client);
+        RateLimits.Limiter limiter = client.getRateLimiter();
+        limiter.unbindUser();
+        if (limiter.rejected() > 0 || limiter.delayed() > 0) {
+            System.out.println("Limity " + username + ": odrzucone " + limiter.rejected() + ", opóźnione " + limiter.delayed());
+        }
+        if (clients.remove(username, client)) {
+            presence.leave(username);
+            if (cluster != null) {
+                cluster.publishPresence(username, false);
+            }
+            announcePresence(username, false);
+            if (interest != null) {
+                interest.clear(username);
             }
-        } catch (IOException e) {
-            System.err.println("Błąd odczytu online: " + e.getMessage());
         }
+        System.out.println(username + " rozłączył się");
+    }
+
+    // Pilnowanie bezczynności od chwili nawiązania połączenia, także przed LOGIN
+    static void watchIdle(ClientConnection client) {
+        if (idleTimer != null) {
+            idleTimer.watch(client);
+        }
+    }
+
+    static void broadcast(String exclude, Op op, String... fields) {
+        // Kodujemy raz na tryb - wszyscy odbiorcy w tym samym trybie dostają te same bajty
+        Frame frame = clients.size() > 8 ? Frame.direct(op, fields) : Frame.of(op, fields);
+        int recipients = 0;
+        for (Map.Entry<String, ClientConnection> entry : clients.entrySet()) {
+            if (!entry.getKey().equals(exclude)) {
+                entry.getValue().send(frame);
+                recipients++;
+            }
+        }
+        Metrics.FANOUT.record(recipients);
+    }
 
-        return onlineUsers;
+    private static List<String> getMessagesForUser(String username) {
+        return messageLog.historyFor(username);
     }
 
-    private static class ClientHandler implements Runnable {
+    private static class ClientHandler implements Runnable, ClientConnection {
         private Socket socket;
-        private PrintWriter out;
-        private BufferedReader in;
+        private OutputStream out;
+        private final InboundBuffer inbound = new InboundBuffer();
+        private final Command command = new Command();
+        private final PeerCache peers = new PeerCache(this);
+        private final RateLimits.Limiter limiter = newRateLimiter();
         private String username;
-        private long lastActivity;
-        private boolean running = true;
+        private volatile long lastActivity;
+        private volatile boolean running = true;
+        private volatile boolean acknowledges;
+        private volatile boolean presenceDeltas;
+        private volatile boolean heartbeats;
+        private final OutboundQueue outbound = newOutboundQueue();
 
         public ClientHandler(Socket socket) {
             this.socket = socket;
             this.lastActivity = System.currentTimeMillis();
         }
 
-        public boolean isAlive() {
-            return (System.currentTimeMillis() - lastActivity) < 300000; // 5 minut
+        @Override
+        public String getUsername() {
+            return username;
+        }
+
+        @Override
+        public long getLastActivity() {
+            return lastActivity;
+        }
+
+        @Override
+        public boolean isClosed() {
+            return !running;
         }
 
-        public void send(String message) {
-            if (out != null) {
-                out.println(message);
-                out.flush();
+        // Nadawca tylko wrzuca do kolejki - zapis do gniazda robi wątek piszący
+        @Override
+        public void send(Frame frame) {
+            if (!outbound.offer(frame)) {
+                System.out.println("Rozłączam wolnego klienta " + username);
+                close();
             }
         }
 
         @Override
-        public void run() {
-            try {
-                // Ustaw timeout na socket (5 minut)
-                socket.setSoTimeout(300000);
+        public OutboundQueue getOutboundQueue() {
+            return outbound;
+        }
 
-                in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-                out = new PrintWriter(socket.getOutputStream(), true);
+        @Override
+        public RateLimits.Limiter getRateLimiter() {
+            return limiter;
+        }
 
-                out.println("HELLO:Podaj swój login");
+        @Override
+        public boolean acknowledges() {
+            return acknowledges;
+        }
 
-                String loginLine = in.readLine();
-                if (loginLine != null && loginLine.startsWith("LOGIN:")) {
-                    username = loginLine.substring(6);
+        @Override
+        public void setAcknowledges(boolean acknowledges) {
+            this.acknowledges = acknowledges;
+        }
 
-                    synchronized (SimpleServer.class) {
-                        clients.put(username, this);
-                        addToOnlineFile(username);
-                    }
+        @Override
+        public boolean presenceDeltas() {
+            return presenceDeltas;
+        }
 
-                    out.println("LOGIN_OK:" + username);
-                    System.out.println(username + " zalogował się");
+        @Override
+        public void setPresenceDeltas(boolean presenceDeltas) {
+            this.presenceDeltas = presenceDeltas;
+        }
 
-                    // Wyślij historię wiadomości
-                    List<String> userMessages = getMessagesForUser(username);
-                    for (String msg : userMessages) {
-                        out.println("HISTORY:" + msg);
-                    }
+        @Override
+        public boolean heartbeats() {
+            return heartbeats;
+        }
 
-                    // Wyślij listę online użytkowników
-                    List<String> onlineUsers = getOnlineUsers();
-                    StringBuilder onlineList = new StringBuilder("ONLINE_LIST:");
-                    for (String user : onlineUsers) {
-                        if (!user.equals(username)) {
-                            onlineList.append(user).append(",");
-                        }
-                    }
-                    out.println(onlineList.toString());
+        @Override
+        public void setHeartbeats(boolean heartbeats) {
+            this.heartbeats = heartbeats;
+        }
 
-                    // Powiadom innych o nowym użytkowniku
-                    broadcast("USER_ONLINE:" + username, username);
+        @Override
+        public PeerCache getPeers() {
+            return peers;
+        }
 
-                    // Główna pętla odbioru wiadomości
-                    String message;
-                    while (running && (message = in.readLine()) != null) {
-                        lastActivity = System.currentTimeMillis();
+        @Override
+        public void close() {
+            running = false;
+            try {
+                socket.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
 
-                        if (message.equals("PING")) {
-                            out.println("PONG");
-                        }
-                        else if (message.startsWith("PRIVATE:")) {
-                            String[] parts = message.split(":", 3);
-                            if (parts.length == 3) {
-                                String to = parts[1];
-                                String msg = parts[2];
-
-                                // Zapisz wiadomość
-                                saveMessageToFile(username, to, msg);
-
-                                // Wyślij do odbiorcy jeśli online
-                                sendToUser(to, "PRIVATE_MSG:" + username + ":" + msg);
-                                out.println("MSG_SENT:" + to);
+        @Override
+        public void run() {
+            Metrics.CONNECTIONS.increment();
+            try {
+                watchIdle(this);
+
+                InputStream in = socket.getInputStream();
+                out = new BufferedOutputStream(socket.getOutputStream());
+
+                // Wątek piszący tego samego rodzaju co wątek czytający
+                Thread.Builder writerBuilder = Thread.currentThread().isVirtual()
+                        ? Thread.ofVirtual() : Thread.ofPlatform().daemon(true);
+                writerBuilder.name(Thread.currentThread().getName() + "-writer").start(this::writeLoop);
+
+                // Powitanie zawsze tekstem - tryb nie jest jeszcze wynegocjowany
+                send(Frame.raw("HELLO:Podaj swój login"));
+
+                // Główna pętla odbioru wiadomości - wiadomości wycinane w miejscu z bufora
+                boolean open = true;
+                while (open && running) {
+                    ByteBuffer buffer = inbound.readable();
+                    int read = in.read(buffer.array(), buffer.position(), buffer.remaining());
+                    if (read < 0) {
+                        break;
+                    }
+                    buffer.position(buffer.position() + read);
+                    lastActivity = System.currentTimeMillis();
+
+                    // Tryb sprawdzamy przy każdej wiadomości - negocjacja zmienia go w połowie bufora
+                    while (open && inbound.next(command, outbound.isBinary())) {
+                        if (username != null) {
+                            long wait = admit(this, command);
+                            if (wait < 0) {
+                                continue;
                             }
-                        }
-                        else if (message.equals("GET_HISTORY")) {
-                            List<String> history = getMessagesForUser(username);
-                            for (String msg : history) {
-                                out.println("HISTORY:" + msg);
+                            if (wait > 0) {
+                                // Wątek czytający czeka - kolejne wiadomości zostają w gnieździe
+                                Thread.sleep(wait / 1_000_000, (int) (wait % 1_000_000));
                             }
                         }
-                        else if (message.equals("LOGOUT")) {
-                            break;
-                        }
-                        else {
-                            broadcast("CHAT:" + username + ":" + message, username);
-                        }
+                        open = handleCommand();
                     }
                 }
 
-            } catch (SocketTimeoutException e) {
-                System.out.println("Timeout dla " + username + " - brak aktywności");
             } catch (IOException e) {
                 System.out.println("Błąd połączenia z " + username + ": " + e.getMessage());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
             } finally {
                 cleanup();
             }
         }
 
+        private boolean handleCommand() throws ProtocolException {
+            if (username == null) {
+                // Przed logowaniem wolno tylko wynegocjować tryb
+                Packet packet = command.toPacket();
+                if (packet.op == Op.UPGRADE) {
+                    if (upgrade(this, packet)) {
+                        inbound.startInflating(Compression.newInflater());
+                    }
+                    return true;
+                }
+                if (packet.op != Op.LOGIN || packet.fields.length == 0) {
+                    return false;
+                }
+                username = packet.fields[0];
+                outbound.setOwner(username);
+                peers.setSelf(username);
+                return login(this);
+            }
+            return handleMessage(this, command);
+        }
+
+        private void writeLoop() {
+            Deflater deflater = null;
+            try {
+                Frame frame;
+                while ((frame = outbound.take()) != null) {
+                    // Wszystko, co już czeka, wysyłamy jednym flush (przy kompresji - jednym SYNC_FLUSH)
+                    do {
+                        frame.writeTo(out, outbound.isBinary());
+                        if (frame.startsCompression()) {
+                            out.flush();
+                            deflater = newDeflater();
+                            out = Compression.deflating(socket.getOutputStream(), deflater);
+                        }
+                    } while ((frame = outbound.poll()) != null);
+                    out.flush();
+                }
+            } catch (IOException e) {
+                close();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                if (deflater != null) {
+                    logCompression(this, "wysłane", deflater.getBytesWritten(), deflater.getBytesRead());
+                    deflater.end();
+                }
+            }
+        }
+
         private void cleanup() {
+            Metrics.CONNECTIONS.decrement();
             running = false;
+            outbound.close();
+            inbound.release(this);
             if (username != null) {
-                synchronized (SimpleServer.class) {
-                    clients.remove(username);
-                    removeFromOnlineFile(username);
-                }
-                broadcast("USER_OFFLINE:" + username, username);
-                System.out.println(username + " rozłączył się");
+                logout(this);
             }
 
             try {
@@ -307,4 +946,4 @@ public class SimpleServer {
             }
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,167 @@
+package service;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+// Ramka binarna: varint(długość reszty) | kod rodzaju (1 bajt) | pola,
+// a każde pole to varint(długość) | bajty UTF-8. Liczba pól wynika z długości ramki.
+public final class BinaryCodec {
+    public static final int MAX_FRAME = 1024 * 1024;
+
+    private BinaryCodec() {
+    }
+
+    public static byte[] encode(Packet packet) {
+        byte[][] fields = new byte[packet.fields.length][];
+        int body = 1;
+        for (int i = 0; i < fields.length; i++) {
+            fields[i] = packet.fields[i].getBytes(StandardCharsets.UTF_8);
+            body += varintSize(fields[i].length) + fields[i].length;
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(varintSize(body) + body);
+        putVarint(buffer, body);
+        buffer.put((byte) packet.op.code);
+        for (byte[] field : fields) {
+            putVarint(buffer, field.length);
+            buffer.put(field);
+        }
+        return buffer.array();
+    }
+
+    // Zwraca null, gdy w buforze nie ma jeszcze całej ramki - pozycja zostaje bez zmian
+    public static Packet decode(ByteBuffer buffer) throws ProtocolException {
+        int start = buffer.position();
+        int length = getVarint(buffer);
+        if (length < 0 || buffer.remaining() < length) {
+            buffer.position(start);
+            return null;
+        }
+        int end = buffer.position() + length;
+        Packet packet = decodeBody(buffer, end);
+        buffer.position(end);
+        return packet;
+    }
+
+    // Odczyt blokujący; null na końcu strumienia między ramkami
+    public static Packet read(InputStream in) throws IOException {
+        int length = 0;
+        for (int shift = 0; ; shift += 7) {
+            int b = in.read();
+            if (b < 0) {
+                if (shift == 0) {
+                    return null;
+                }
+                throw new EOFException("Przerwana ramka");
+            }
+            if (shift > 21) {
+                throw new ProtocolException("Zbyt długi nagłówek ramki");
+            }
+            length |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                break;
+            }
+        }
+        checkLength(length);
+
+        byte[] body = new byte[length];
+        int read = 0;
+        while (read < length) {
+            int n = in.read(body, read, length - read);
+            if (n < 0) {
+                throw new EOFException("Przerwana ramka");
+            }
+            read += n;
+        }
+        return decodeBody(ByteBuffer.wrap(body), length);
+    }
+
+    private static Packet decodeBody(ByteBuffer buffer, int end) throws ProtocolException {
+        if (buffer.position() >= end) {
+            throw new ProtocolException("Pusta ramka");
+        }
+        Op op = Op.byCode(buffer.get() & 0xff);
+        if (op == null) {
+            throw new ProtocolException("Nieznany rodzaj ramki");
+        }
+
+        // Pierwszy przebieg liczy pola, żeby od razu przydzielić tablicę właściwej długości
+        int fieldsStart = buffer.position();
+        int count = 0;
+        while (buffer.position() < end) {
+            int length = getVarint(buffer);
+            if (length < 0 || length > end - buffer.position()) {
+                throw new ProtocolException("Uszkodzone pole ramki");
+            }
+            buffer.position(buffer.position() + length);
+            count++;
+        }
+
+        buffer.position(fieldsStart);
+        String[] fields = new String[count];
+        for (int i = 0; i < count; i++) {
+            int length = getVarint(buffer);
+            fields[i] = decodeString(buffer, length);
+        }
+        return new Packet(op, fields);
+    }
+
+    private static String decodeString(ByteBuffer buffer, int length) {
+        String value;
+        if (buffer.hasArray()) {
+            value = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length, StandardCharsets.UTF_8);
+            buffer.position(buffer.position() + length);
+        } else {
+            byte[] bytes = new byte[length];
+            buffer.get(bytes);
+            value = new String(bytes, StandardCharsets.UTF_8);
+        }
+        return value;
+    }
+
+    private static void checkLength(int length) throws ProtocolException {
+        if (length <= 0 || length > MAX_FRAME) {
+            throw new ProtocolException("Niepoprawna długość ramki: " + length);
+        }
+    }
+
+    // -1, gdy varint nie jest jeszcze cały w buforze
+    private static int getVarint(ByteBuffer buffer) throws ProtocolException {
+        int value = 0;
+        for (int shift = 0; shift <= 28; shift += 7) {
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            int b = buffer.get();
+            value |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                if (value < 0 || value > MAX_FRAME) {
+                    throw new ProtocolException("Niepoprawna długość: " + value);
+                }
+                return value;
+            }
+        }
+        throw new ProtocolException("Zbyt długi varint");
+    }
+
+    private static void putVarint(ByteBuffer buffer, int value) {
+        while ((value & ~0x7f) != 0) {
+            buffer.put((byte) ((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    private static int varintSize(int value) {
+        int size = 1;
+        while ((value & ~0x7f) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+}
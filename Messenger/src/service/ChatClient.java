@@ -3,14 +3,20 @@ package service;
 import java.io.*;
 import java.net.*;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.function.BiConsumer;
 import java.util.function.Consumer;
+import java.util.zip.Deflater;
 
 public class ChatClient {
     private Socket socket;
-    private PrintWriter out;
-    private BufferedReader in;
+    private OutputStream out;
+    private PacketReader in;
+    private volatile boolean binary = false;
+    // Kompresja strumienia, przełączana dla klienta (-Dmessenger.compression=true)
+    private final boolean compression = Boolean.getBoolean("messenger.compression");
     private String username;
     private List<String> onlineUsers = new ArrayList<>();
     private Thread messageListener;
@@ -22,22 +28,18 @@ public class ChatClient {
         this.username = username;
 
         try {
-            socket = new Socket();
-            socket.connect(new InetSocketAddress(serverAddress, port), 3000);
-            socket.setSoTimeout(5000);
-
-            out = new PrintWriter(socket.getOutputStream(), true);
-            in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-
-            String response = in.readLine();
-            System.out.println("Server: " + response);
+            // Ramki binarne, jeśli serwer je obsługuje; starszy serwer zamknie połączenie po UPGRADE
+            if (!open(serverAddress, port, true)) {
+                open(serverAddress, port, false);
+            }
 
-            out.println("LOGIN:" + username + ":" + password);
+            send(Op.LOGIN, username, password);
 
-            response = in.readLine();
+            Packet response = in.read();
             System.out.println("Login response: " + response);
 
-            if (response != null && response.startsWith("LOGIN_SUCCESS")) {
+            // LOGIN_OK to odpowiedź SimpleServer, LOGIN_SUCCESS - starszego serwera
+            if (response != null && (response.op == Op.LOGIN_SUCCESS || response.op == Op.LOGIN_OK)) {
                 connected = true;
                 startMessageListener();
                 requestOnlineUsers();
@@ -52,6 +54,51 @@ public class ChatClient {
         }
     }
 
+    private boolean open(String serverAddress, int port, boolean tryBinary) throws IOException {
+        socket = new Socket();
+        socket.connect(new InetSocketAddress(serverAddress, port), 3000);
+        socket.setSoTimeout(5000);
+
+        out = new BufferedOutputStream(socket.getOutputStream());
+        in = new PacketReader(socket.getInputStream());
+        binary = false;
+
+        String response = in.readLine();
+        System.out.println("Server: " + response);
+
+        if (tryBinary) {
+            send(Op.UPGRADE, compression ? "BINARY," + Compression.CAPABILITY : "BINARY");
+            String reply = in.readLine();
+            if (reply == null) {
+                socket.close();
+                return false;
+            }
+            List<String> accepted = reply.startsWith("UPGRADE_OK:")
+                    ? Arrays.asList(reply.substring("UPGRADE_OK:".length()).split(","))
+                    : Collections.emptyList();
+            binary = accepted.contains("BINARY");
+            in.setBinary(binary);
+            if (accepted.contains(Compression.CAPABILITY)) {
+                out = Compression.deflating(socket.getOutputStream(), Compression.newDeflater(Deflater.BEST_SPEED));
+                in.startInflating(Compression.newInflater());
+            }
+        }
+        return true;
+    }
+
+    private synchronized void send(Op op, String... fields) throws IOException {
+        out.write(new Packet(op, fields).encode(binary));
+        out.flush();
+    }
+
+    private void sendQuietly(Op op, String... fields) {
+        try {
+            send(op, fields);
+        } catch (IOException e) {
+            System.out.println("Send failed: " + e.getMessage());
+        }
+    }
+
     public void setPrivateMessageCallback(BiConsumer<String, String> callback) {
         this.privateMessageCallback = callback;
     }
@@ -63,15 +110,15 @@ public class ChatClient {
     private void startMessageListener() {
         messageListener = new Thread(() -> {
             try {
-                String message;
-                while (connected && (message = in.readLine()) != null) {
+                Packet message;
+                while (connected && (message = in.read()) != null) {
                     System.out.println("Received from server: " + message);
 
-                    if (message.startsWith("PRIVATE:")) {
-                        String[] parts = message.split(":", 3);
-                        if (parts.length == 3) {
-                            String fromUser = parts[1];
-                            String content = parts[2];
+                    if (message.op == Op.PRIVATE) {
+                        String[] parts = message.fields;
+                        if (parts.length == 2) {
+                            String fromUser = parts[0];
+                            String content = parts[1];
                             saveMessageToFile(fromUser, username, content);
                             if (privateMessageCallback != null) {
                                 privateMessageCallback.accept(fromUser, content);
@@ -79,12 +126,12 @@ public class ChatClient {
                         }
                     }
                     // DODANE: Obsługa wiadomości grupowych
-                    else if (message.startsWith("GROUP_MSG:")) {
-                        String[] parts = message.split(":", 4);
-                        if (parts.length == 4) {
-                            String groupName = parts[1];
-                            String fromUser = parts[2];
-                            String content = parts[3];
+                    else if (message.op == Op.GROUP_MSG) {
+                        String[] parts = message.fields;
+                        if (parts.length == 3) {
+                            String groupName = parts[0];
+                            String fromUser = parts[1];
+                            String content = parts[2];
 
                             // Zapisz do pliku
                             saveGroupMessageToFile(fromUser, groupName, content);
@@ -95,18 +142,18 @@ public class ChatClient {
                             }
                         }
                     }
-                    else if (message.startsWith("USER_JOINED:")) {
-                        String newUser = message.substring(12);
+                    else if (message.op == Op.USER_JOINED) {
+                        String newUser = message.field(0);
                         if (!onlineUsers.contains(newUser) && !newUser.equals(username)) {
                             onlineUsers.add(newUser);
                             System.out.println("User joined: " + newUser);
                         }
-                    } else if (message.startsWith("USER_LEFT:")) {
-                        String leftUser = message.substring(10);
+                    } else if (message.op == Op.USER_LEFT) {
+                        String leftUser = message.field(0);
                         onlineUsers.remove(leftUser);
                         System.out.println("User left: " + leftUser);
-                    } else if (message.startsWith("ONLINE_USERS:")) {
-                        updateOnlineUsers(message.substring(13));
+                    } else if (message.op == Op.ONLINE_USERS || message.op == Op.ONLINE_LIST) {
+                        updateOnlineUsers(message.field(0));
                     }
                 }
             } catch (SocketTimeoutException e) {
@@ -123,7 +170,7 @@ public class ChatClient {
 
     public void sendGroupMessage(String groupName, String message) {
         if (out != null && connected) {
-            out.println("GROUP:" + groupName + ":" + message);
+            sendQuietly(Op.GROUP, groupName, message);
             System.out.println("Sent to group " + groupName + ": " + message);
             // Zapisz też lokalnie
             saveGroupMessageToFile(username, groupName, message);
@@ -132,7 +179,7 @@ public class ChatClient {
 
     public void sendPrivateMessage(String toUser, String message) {
         if (out != null && connected) {
-            out.println("PRIVATE:" + toUser + ":" + message);
+            sendQuietly(Op.PRIVATE, toUser, message);
             System.out.println("Sent to " + toUser + ": " + message);
             saveMessageToFile(username, toUser, message);
         }
@@ -187,7 +234,7 @@ public class ChatClient {
 
     private void requestOnlineUsers() {
         if (out != null && connected) {
-            out.println("GET_ONLINE");
+            sendQuietly(Op.GET_ONLINE);
         }
     }
 
@@ -197,7 +244,7 @@ public class ChatClient {
 
     public void logout() {
         if (out != null && connected) {
-            out.println("LOGOUT");
+            sendQuietly(Op.LOGOUT);
         }
         closeConnection();
     }
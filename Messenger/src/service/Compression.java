@@ -0,0 +1,49 @@
+package service;
+
+import java.io.BufferedOutputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+
+// Kompresja strumienia połączenia wynegocjowana przez UPGRADE:...,DEFLATE.
+// Surowy deflate (bez nagłówka zlib) ze wspólnym słownikiem tokenów protokołu,
+// ustawianym po obu stronach przed pierwszym bajtem - krótkie wiadomości
+// kompresują się od początku połączenia. Nadawca robi SYNC_FLUSH na granicy
+// wiadomości (albo paczki wiadomości), więc odbiorca nie czeka na więcej danych.
+public final class Compression {
+    public static final String CAPABILITY = "DEFLATE";
+
+    // Najczęstsze tokeny na końcu - deflate koduje bliższe odległości krócej
+    private static final byte[] DICTIONARY = (
+            "LOGIN_OK:LOGOUT\nGET_ONLINE\n"
+            + "ONLINE_LIST:USER_OFFLINE:USER_ONLINE:GET_HISTORY:HISTORY_END:-:0:"
+            + "GROUP:GROUP_MSG:#CHAT:SAY:HISTORY:17|PONG\nPING\nMSG_SENT:PRIVATE:PRIVATE_MSG:")
+            .getBytes(StandardCharsets.UTF_8);
+
+    private Compression() {
+    }
+
+    public static Deflater newDeflater(int level) {
+        Deflater deflater = new Deflater(level, true);
+        deflater.setDictionary(DICTIONARY);
+        return deflater;
+    }
+
+    public static Inflater newInflater() {
+        Inflater inflater = new Inflater(true);
+        inflater.setDictionary(DICTIONARY);
+        return inflater;
+    }
+
+    // Strumień pakujący: flush() kończy blok SYNC_FLUSH
+    public static OutputStream deflating(OutputStream out, Deflater deflater) {
+        return new BufferedOutputStream(new DeflaterOutputStream(out, deflater, 8192, true));
+    }
+
+    // "spakowane / przed spakowaniem" w procentach, do logów
+    public static String ratio(long compressed, long raw) {
+        return raw == 0 ? "-" : String.format("%.1f%%", 100.0 * compressed / raw);
+    }
+}
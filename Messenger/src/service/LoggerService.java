@@ -10,9 +10,15 @@ import java.time.format.DateTimeFormatter;
 public class LoggerService {
 
     private static final String REPORT_FILE = "Messenger/data/raport.txt";
+    private static volatile String reportFile = REPORT_FILE;
+
+    // Inny plik raportu - np. katalog tymczasowy w benchmarkach
+    public static void setReportFile(String path) {
+        reportFile = path;
+    }
 
     public static void write(String message) {
-        File file = new File(REPORT_FILE);
+        File file = new File(reportFile);
 
         try (BufferedWriter bw = new BufferedWriter(new FileWriter(file, true))) {
             String timeStamp = LocalDateTime.now()
@@ -0,0 +1,84 @@
+package service;
+
+import java.util.HashMap;
+import java.util.Map;
+
+// Rodzaje wiadomości protokołu. W trybie tekstowym nazwa jest prefiksem linii
+// ("PRIVATE:bob:cześć"), w trybie binarnym jednobajtowym kodem ramki.
+// arity to liczba pól - w trybie tekstowym ostatnie pole może zawierać ':'.
+public enum Op {
+    // Zwykła wiadomość czatu - w trybie tekstowym linia bez znanego prefiksu
+    SAY(0, 1),
+    HELLO(1, 1),
+    UPGRADE(2, 1),
+    UPGRADE_OK(3, 1),
+    LOGIN(4, 2),
+    LOGIN_OK(5, 1),
+    ONLINE_LIST(6, 1),
+    USER_ONLINE(7, 1),
+    USER_OFFLINE(8, 1),
+    PING(9, 0),
+    PONG(10, 0),
+    PRIVATE(11, 2),
+    PRIVATE_MSG(12, 2),
+    MSG_SENT(13, 1),
+    CHAT(14, 2),
+    GET_HISTORY(15, 3),
+    HISTORY(16, 1),
+    HISTORY_END(17, 3),
+    LOGOUT(18, 0),
+    GROUP(19, 2),
+    GROUP_MSG(20, 3),
+    // Słownictwo starszego klienta ChatClient
+    LOGIN_SUCCESS(21, 1),
+    GET_ONLINE(22, 0),
+    ONLINE_USERS(23, 1),
+    USER_JOINED(24, 1),
+    USER_LEFT(25, 1),
+    // Łącza między węzłami klastra (server.ClusterNode), nie od klientów
+    NODE_HELLO(26, 1),
+    NODE_PRESENCE(27, 2),
+    NODE_PRIVATE(28, 3),
+    // Skrzynka odbiorcza z potwierdzeniami (UPGRADE:...,ACK): MSG:<id>:<od>:<treść>,
+    // ACK:<id>:<delivered|read>, INBOX_END:<liczba>:<przeczytane do>
+    MSG(29, 3),
+    ACK(30, 2),
+    INBOX_END(31, 2),
+    // Wiadomość odrzucona przez limit (--rate-policy=reject): RATE_LIMITED:<ms do zwolnienia miejsca>
+    RATE_LIMITED(32, 1),
+    // Metryki serwera: klient wysyła STATS, odpowiedź STATS:<nazwa>=<wartość>,...
+    STATS(33, 1),
+    // Zmiany obecności z jednego okna (UPGRADE:...,DELTA): PRESENCE_DELTA:+a,+b,-c
+    PRESENCE_DELTA(34, 1),
+    // Obserwowanie obecności (--presence-scope=interest): SUBSCRIBE:a,b i UNSUBSCRIBE:a,b
+    SUBSCRIBE(35, 1),
+    UNSUBSCRIBE(36, 1),
+    // Odstęp heartbeatu w sekundach, po LOGIN_OK (UPGRADE:...,HEARTBEAT): HEARTBEAT:<sekundy>
+    HEARTBEAT(37, 1);
+
+    private static final Op[] BY_CODE = new Op[256];
+    private static final Map<String, Op> BY_NAME = new HashMap<>();
+
+    static {
+        for (Op op : values()) {
+            BY_CODE[op.code] = op;
+            BY_NAME.put(op.name(), op);
+        }
+    }
+
+    public final int code;
+    public final int arity;
+
+    Op(int code, int arity) {
+        this.code = code;
+        this.arity = arity;
+    }
+
+    public static Op byCode(int code) {
+        return code >= 0 && code < BY_CODE.length ? BY_CODE[code] : null;
+    }
+
+    public static Op byName(String name) {
+        return BY_NAME.get(name);
+    }
+}
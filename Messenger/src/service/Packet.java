@@ -0,0 +1,66 @@
+package service;
+
+import java.nio.charset.StandardCharsets;
+
+// Jedna wiadomość protokołu niezależnie od kodowania: rodzaj i pola.
+// W trybie binarnym pola mogą zawierać dowolne znaki, także ':' i '\n'.
+public final class Packet {
+    public final Op op;
+    public final String[] fields;
+
+    public Packet(Op op, String... fields) {
+        this.op = op;
+        this.fields = fields;
+    }
+
+    public String field(int i) {
+        return i < fields.length ? fields[i] : "";
+    }
+
+    // Linia bez znanego prefiksu (albo z polami tam, gdzie ich nie ma) to zwykły czat.
+    // Brakujących pól nie uzupełniamy - obsługa sprawdza ich liczbę jak dotąd.
+    public static Packet parseText(String line) {
+        int colon = line.indexOf(':');
+        Op op = Op.byName(colon < 0 ? line : line.substring(0, colon));
+        if (op == null || op == Op.SAY) {
+            return new Packet(Op.SAY, line);
+        }
+        if (colon < 0) {
+            return new Packet(op);
+        }
+        if (op.arity == 0) {
+            return new Packet(Op.SAY, line);
+        }
+        return new Packet(op, line.substring(colon + 1).split(":", op.arity));
+    }
+
+    // Postać tekstowa bez '\n' - dla linii odczytanej przez parseText to ta sama linia
+    public String toText() {
+        if (op == Op.SAY) {
+            return field(0);
+        }
+        StringBuilder line = new StringBuilder(op.name());
+        for (int i = 0; i < fields.length; i++) {
+            line.append(':').append(fields[i]);
+        }
+        return line.toString();
+    }
+
+    // Gotowe bajty do wysłania w wybranym trybie
+    public byte[] encode(boolean binary) {
+        if (binary) {
+            return BinaryCodec.encode(this);
+        }
+        // Linia nie może zawierać nowej linii - klient tekstowy dostaje spację
+        byte[] text = toText().replace('\n', ' ').replace('\r', ' ').getBytes(StandardCharsets.UTF_8);
+        byte[] bytes = new byte[text.length + 1];
+        System.arraycopy(text, 0, bytes, 0, text.length);
+        bytes[text.length] = '\n';
+        return bytes;
+    }
+
+    @Override
+    public String toString() {
+        return toText();
+    }
+}
@@ -0,0 +1,74 @@
+package service;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ProtocolException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+// Odczyt wiadomości ze strumienia bajtów w trybie tekstowym albo binarnym.
+// Ten sam bufor obsługuje linie przed negocjacją i ramki po niej, więc
+// przełączenie trybu nie gubi bajtów, które już przyszły.
+public class PacketReader {
+    private InputStream in;
+    private byte[] line = new byte[256];
+    private volatile boolean binary = false;
+
+    public PacketReader(InputStream in) {
+        this.in = new BufferedInputStream(in);
+    }
+
+    public void setBinary(boolean binary) {
+        this.binary = binary;
+    }
+
+    public boolean isBinary() {
+        return binary;
+    }
+
+    // Po wynegocjowaniu kompresji dalsze bajty, także te już zbuforowane,
+    // idą przez Inflater. Wołać między wiadomościami, z wątku czytającego.
+    public void startInflating(Inflater inflater) {
+        in = new BufferedInputStream(new InflaterInputStream(in, inflater, 8192));
+    }
+
+    // null na końcu strumienia
+    public Packet read() throws IOException {
+        if (binary) {
+            return BinaryCodec.read(in);
+        }
+        String text = readLine();
+        return text == null ? null : Packet.parseText(text);
+    }
+
+    // Linia UTF-8 bez '\n' i ewentualnego '\r'; null na końcu strumienia
+    public String readLine() throws IOException {
+        int length = 0;
+        while (true) {
+            int b = in.read();
+            if (b < 0) {
+                if (length == 0) {
+                    return null;
+                }
+                break;
+            }
+            if (b == '\n') {
+                break;
+            }
+            if (length == line.length) {
+                if (length >= BinaryCodec.MAX_FRAME) {
+                    throw new ProtocolException("Zbyt długa linia");
+                }
+                line = Arrays.copyOf(line, length * 2);
+            }
+            line[length++] = (byte) b;
+        }
+        if (length > 0 && line[length - 1] == '\r') {
+            length--;
+        }
+        return new String(line, 0, length, StandardCharsets.UTF_8);
+    }
+}
@@ -7,14 +7,21 @@ import java.util.*;
 public class UserService {
     private static final String FILE = "Messenger/data/users.txt";
     private static final String ONLINE_DIR = "Messenger/data/online/";
+    private final String file;
     private List<User> users = new ArrayList<>();
 
     public UserService() {
+        this(FILE);
+    }
+
+    // Inny plik użytkowników - np. wygenerowany do benchmarków
+    public UserService(String file) {
+        this.file = file;
         load();
     }
 
     public void load() {
-        try (BufferedReader br = new BufferedReader(new FileReader(FILE))) {
+        try (BufferedReader br = new BufferedReader(new FileReader(file))) {
             String line;
             while ((line = br.readLine()) != null) {
                 if (!line.startsWith("group:")) {
@@ -35,7 +42,7 @@ public class UserService {
         User user = new User(u, p);
         users.add(user);
 
-        try (PrintWriter pw = new PrintWriter(new FileWriter(FILE, true))) {
+        try (PrintWriter pw = new PrintWriter(new FileWriter(file, true))) {
             pw.println(user.toFileString());
         } catch (IOException e) {
             e.printStackTrace();
@@ -0,0 +1,309 @@
+package tools;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import server.SimpleServer;
+import service.Op;
+import service.Packet;
+
+// Ile bajtów alokuje serwer na jedną obsłużoną wiadomość w stanie ustalonym.
+// Dla każdego trybu uruchamia osobny proces (w katalogu tymczasowym, bo serwer
+// usuwa swoje pliki przy starcie), a w nim serwer i dwóch klientów. Liczone są
+// tylko wątki serwera, przez ThreadMXBean.getThreadAllocatedBytes.
+//
+// Ostatni pomiar (JDK 21, 200k wiadomości, B na wiadomość):
+//   PRIVATE  platform 304-312, nio 491-501
+//   PING     platform 0.5-0.7, nio 56
+// Blisko zera jest tylko PING w trybie platform. PRIVATE alokuje kopię treści
+// i wpis dla dziennika oraz bajty ramki wychodzącej, a w trybie nio także widok
+// ByteBuffer na każdą zapisywaną ramkę.
+//
+// java -cp out tools.AllocationProbe --messages=200000 --modes=platform,nio --framing=text,binary
+public class AllocationProbe {
+    private static final int PROBE_PORT = 12398;
+    private static final int CHUNK = 200;
+
+    public static void main(String[] args) throws Exception {
+        String[] modes = {"platform", "nio"};
+        String[] framings = {"text", "binary"};
+        int messages = 200000;
+        boolean child = false;
+
+        for (String arg : args) {
+            if (arg.startsWith("--modes=")) {
+                modes = arg.substring(8).split(",");
+            } else if (arg.startsWith("--framing=")) {
+                framings = arg.substring(10).split(",");
+            } else if (arg.startsWith("--messages=")) {
+                messages = Integer.parseInt(arg.substring(11));
+            } else if (arg.equals("--child")) {
+                child = true;
+            }
+        }
+
+        if (child) {
+            measure(modes[0], framings[0], messages);
+            return;
+        }
+
+        for (String mode : modes) {
+            for (String framing : framings) {
+                List<String> command = new ArrayList<>();
+                command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+                command.add("-cp");
+                command.add(System.getProperty("java.class.path"));
+                command.add(AllocationProbe.class.getName());
+                command.add("--child");
+                command.add("--modes=" + mode);
+                command.add("--framing=" + framing);
+                command.add("--messages=" + messages);
+
+                File workDir = Files.createTempDirectory("alloc-" + mode).toFile();
+                Process process = new ProcessBuilder(command)
+                        .directory(workDir)
+                        .redirectOutput(ProcessBuilder.Redirect.INHERIT)
+                        .redirectError(ProcessBuilder.Redirect.INHERIT)
+                        .start();
+                process.waitFor();
+            }
+        }
+    }
+
+    private static void measure(String mode, String framing, int messages) throws Exception {
+        List<String> serverArgs = new ArrayList<>();
+        serverArgs.add("--port=" + PROBE_PORT);
+        serverArgs.add(mode.equals("nio") ? "--mode=nio" : "--threads=" + mode);
+        serverArgs.add("--event-loops=1");
+        serverArgs.add("--outbound-queue=100000");
+        serverArgs.add("--idle-timeout-seconds=0");
+        serverArgs.add("--presence-dump-seconds=0");
+        // USER_ONLINE drugiego klienta ma przyjść przed pomiarem, nie w jego trakcie
+        serverArgs.add("--presence-window-ms=0");
+        serverArgs.add("--presence-scope=all");
+
+        // Wyjście serwera (logowania) nie jest tu potrzebne
+        PrintStream console = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        Thread server = new Thread(() -> {
+            try {
+                SimpleServer.main(serverArgs.toArray(new String[0]));
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }, "probe-server-main");
+        server.setDaemon(true);
+        server.start();
+
+        boolean binary = framing.equals("binary");
+        Client sender = new Client("nadawca", binary);
+        Client receiver = new Client("odbiorca", binary);
+
+        byte[] privateMessage = sender.encode(11, "odbiorca", "wiadomość testowa o typowej długości");
+        byte[] ping = sender.encode(9);
+
+        // Rozgrzewka: JIT i bufory połączeń
+        run(sender, receiver, privateMessage, messages / 4, true);
+        run(sender, null, ping, messages / 4, false);
+
+        Map<String, Long> before = serverAllocations();
+        run(sender, receiver, privateMessage, messages, true);
+        Map<String, Long> afterPrivate = serverAllocations();
+        run(sender, null, ping, messages, false);
+        Map<String, Long> afterPing = serverAllocations();
+
+        System.setOut(console);
+        report(mode, framing, "PRIVATE", before, afterPrivate, messages);
+        report(mode, framing, "PING", afterPrivate, afterPing, messages);
+        System.exit(0);
+    }
+
+    // Wysyła count wiadomości paczkami i czeka na wszystkie odpowiedzi: przy PRIVATE
+    // na MSG_SENT u nadawcy i PRIVATE_MSG u odbiorcy, przy PING na PONG
+    private static void run(Client sender, Client receiver, byte[] message, int count, boolean routed) throws IOException {
+        int sent = 0;
+        while (sent < count) {
+            int chunk = Math.min(CHUNK, count - sent);
+            ByteBuffer out = ByteBuffer.allocate(message.length * chunk);
+            for (int i = 0; i < chunk; i++) {
+                out.put(message);
+            }
+            out.flip();
+            while (out.hasRemaining()) {
+                sender.channel.write(out);
+            }
+            sent += chunk;
+            sender.await(sent);
+            if (routed) {
+                receiver.await(sent);
+            }
+        }
+        sender.reset();
+        if (receiver != null) {
+            receiver.reset();
+        }
+    }
+
+    private static Map<String, Long> serverAllocations() {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        Map<String, Long> result = new TreeMap<>();
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            String name = thread.getName();
+            if (name.equals(Thread.currentThread().getName()) || name.startsWith("probe-")) {
+                continue;
+            }
+            long bytes = threads.getThreadAllocatedBytes(thread.threadId());
+            if (bytes > 0) {
+                result.merge(name.replaceAll("[0-9]+", "N"), bytes, Long::sum);
+            }
+        }
+        return result;
+    }
+
+    private static void report(String mode, String framing, String command,
+                               Map<String, Long> before, Map<String, Long> after, int messages) {
+        StringBuilder detail = new StringBuilder();
+        long total = 0;
+        for (Map.Entry<String, Long> entry : after.entrySet()) {
+            long bytes = entry.getValue() - before.getOrDefault(entry.getKey(), 0L);
+            if (bytes <= 0) {
+                continue;
+            }
+            total += bytes;
+            detail.append(String.format("  %s=%.1f", entry.getKey(), bytes / (double) messages));
+        }
+        System.out.println(String.format("%-9s %-7s %-8s %8.1f B/wiadomość%s",
+                mode, framing, command, total / (double) messages, detail));
+    }
+
+    // Prosty klient blokujący, który tylko liczy odebrane wiadomości
+    private static final class Client {
+        final SocketChannel channel;
+        final boolean binary;
+        final ByteBuffer in = ByteBuffer.allocate(1 << 20);
+        long received = 0;
+        int pendingFrameBytes = 0;
+
+        Client(String name, boolean binary) throws IOException, InterruptedException {
+            this.binary = binary;
+            this.channel = connect();
+            readUntilLines(1);
+            if (binary) {
+                write(("UPGRADE:BINARY\n").getBytes(StandardCharsets.UTF_8));
+                readUntilLines(1);
+            }
+            write(encode(4, name));
+            // LOGIN_OK i ONLINE_LIST
+            await(2);
+            reset();
+        }
+
+        private static SocketChannel connect() throws InterruptedException {
+            for (int attempt = 0; attempt < 100; attempt++) {
+                try {
+                    return SocketChannel.open(new InetSocketAddress("127.0.0.1", PROBE_PORT));
+                } catch (IOException e) {
+                    Thread.sleep(100);
+                }
+            }
+            throw new IllegalStateException("Serwer nie wystartował na porcie " + PROBE_PORT);
+        }
+
+        byte[] encode(int opcode, String... fields) {
+            return new Packet(Op.byCode(opcode), fields).encode(binary);
+        }
+
+        void write(byte[] bytes) throws IOException {
+            ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+
+        // Linie tekstowe przed negocjacją
+        private void readUntilLines(int lines) throws IOException {
+            int seen = 0;
+            while (seen < lines) {
+                int b = readByte();
+                if (b == '\n') {
+                    seen++;
+                }
+            }
+        }
+
+        private int readByte() throws IOException {
+            ByteBuffer one = ByteBuffer.allocate(1);
+            while (one.hasRemaining()) {
+                if (channel.read(one) < 0) {
+                    throw new IOException("Serwer zamknął połączenie");
+                }
+            }
+            return one.get(0) & 0xff;
+        }
+
+        // Czeka, aż liczba odebranych wiadomości osiągnie count
+        void await(long count) throws IOException {
+            while (received < count) {
+                if (channel.read(in) < 0) {
+                    throw new IOException("Serwer zamknął połączenie");
+                }
+                in.flip();
+                if (binary) {
+                    countFrames();
+                } else {
+                    while (in.hasRemaining()) {
+                        if (in.get() == '\n') {
+                            received++;
+                        }
+                    }
+                }
+                in.compact();
+            }
+        }
+
+        private void countFrames() {
+            while (in.hasRemaining()) {
+                if (pendingFrameBytes > 0) {
+                    int skip = Math.min(pendingFrameBytes, in.remaining());
+                    in.position(in.position() + skip);
+                    pendingFrameBytes -= skip;
+                    if (pendingFrameBytes == 0) {
+                        received++;
+                    }
+                    continue;
+                }
+                int start = in.position();
+                int length = 0;
+                boolean complete = false;
+                for (int shift = 0; in.hasRemaining(); shift += 7) {
+                    int b = in.get();
+                    length |= (b & 0x7f) << shift;
+                    if ((b & 0x80) == 0) {
+                        complete = true;
+                        break;
+                    }
+                }
+                if (!complete) {
+                    in.position(start);
+                    return;
+                }
+                pendingFrameBytes = length;
+            }
+        }
+
+        void reset() {
+            received = 0;
+        }
+    }
+}
@@ -0,0 +1,128 @@
+package tools;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+// Porównanie pamięci serwera na jedno bezczynne połączenie w różnych trybach.
+// Dla każdego trybu uruchamia osobny proces SimpleServer, otwiera N połączeń
+// i odczytuje VmRSS oraz liczbę wątków z /proc (tylko Linux).
+//
+// java -cp out tools.IdleConnectionProbe --connections=10000 --modes=platform,virtual,nio
+public class IdleConnectionProbe {
+    private static final int PROBE_PORT = 12399;
+
+    public static void main(String[] args) throws Exception {
+        int connections = 10000;
+        String[] modes = {"platform", "virtual", "nio"};
+        boolean login = false;
+
+        for (String arg : args) {
+            if (arg.startsWith("--connections=")) {
+                connections = Integer.parseInt(arg.substring(14));
+            } else if (arg.startsWith("--modes=")) {
+                modes = arg.substring(8).split(",");
+            } else if (arg.equals("--login")) {
+                login = true;
+            }
+        }
+
+        List<String> results = new ArrayList<>();
+        for (String mode : modes) {
+            results.add(probe(mode, connections, login));
+        }
+
+        System.out.println();
+        System.out.println("tryb       połączeń  RSS przed [MB]  RSS po [MB]  KB/połączenie  wątki");
+        for (String row : results) {
+            System.out.println(row);
+        }
+    }
+
+    private static String probe(String mode, int connections, boolean login) throws Exception {
+        List<String> command = new ArrayList<>();
+        command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add("server.SimpleServer");
+        command.add("--port=" + PROBE_PORT);
+        if (mode.equals("nio")) {
+            command.add("--mode=nio");
+        } else {
+            command.add("--threads=" + mode);
+        }
+
+        // Serwer usuwa swoje pliki przy starcie, więc dajemy mu osobny katalog
+        File workDir = Files.createTempDirectory("probe-" + mode).toFile();
+        Process server = new ProcessBuilder(command)
+                .directory(workDir)
+                .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+                .redirectError(ProcessBuilder.Redirect.INHERIT)
+                .start();
+
+        List<SocketChannel> channels = new ArrayList<>();
+        try {
+            waitForServer();
+            Thread.sleep(1000);
+            long rssBefore = readStatus(server.pid(), "VmRSS:");
+
+            System.out.println("[" + mode + "] otwieram " + connections + " połączeń...");
+            for (int i = 0; i < connections; i++) {
+                SocketChannel channel = SocketChannel.open(new InetSocketAddress("127.0.0.1", PROBE_PORT));
+                if (login) {
+                    // Uwaga: przy --presence-scope=all i --presence-window-ms=0 każde logowanie
+                    // rozgłasza USER_ONLINE do wszystkich (O(N^2) ramek); domyślnie obecność
+                    // dostają tylko obserwujący, a i tak paczką raz na okno
+                    channel.write(ByteBuffer.wrap(("LOGIN:probe" + i + "\n").getBytes(StandardCharsets.UTF_8)));
+                }
+                channels.add(channel);
+            }
+
+            // Czekamy aż serwer obsłuży wszystkie połączenia i pamięć się ustabilizuje
+            Thread.sleep(5000);
+            long rssAfter = readStatus(server.pid(), "VmRSS:");
+            long threads = readStatus(server.pid(), "Threads:");
+
+            double perConnectionKb = (rssAfter - rssBefore) / (double) connections;
+            return String.format("%-10s %8d  %14.1f  %11.1f  %13.1f  %5d",
+                    mode, connections, rssBefore / 1024.0, rssAfter / 1024.0, perConnectionKb, threads);
+        } finally {
+            for (SocketChannel channel : channels) {
+                try {
+                    channel.close();
+                } catch (IOException ignored) {
+                }
+            }
+            server.destroy();
+            server.waitFor();
+        }
+    }
+
+    private static void waitForServer() throws InterruptedException {
+        for (int attempt = 0; attempt < 100; attempt++) {
+            try {
+                SocketChannel.open(new InetSocketAddress("127.0.0.1", PROBE_PORT)).close();
+                return;
+            } catch (IOException e) {
+                Thread.sleep(100);
+            }
+        }
+        throw new IllegalStateException("Serwer nie wystartował na porcie " + PROBE_PORT);
+    }
+
+    // Wartość z /proc/<pid>/status, np. VmRSS w kB albo liczba wątków
+    private static long readStatus(long pid, String field) throws IOException {
+        for (String line : Files.readAllLines(new File("/proc/" + pid + "/status").toPath())) {
+            if (line.startsWith(field)) {
+                return Long.parseLong(line.substring(field.length()).trim().split("\\s+")[0]);
+            }
+        }
+        return -1;
+    }
+}
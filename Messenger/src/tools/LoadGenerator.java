@@ -0,0 +1,690 @@
+package tools;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import server.SimpleServer;
+
+// Obciążenie serwera tysiącami klientów bez GUI i bez discovery: łączy się
+// prosto z host:port, loguje wszystkich, a potem wysyła PRIVATE do losowych
+// odbiorców z zadaną łączną częstotliwością i rozkładem rozmiarów, z PING-iem
+// co --ping-seconds. Klienci są obsługiwani przez kilka selektorów, nie wątek na połączenie.
+//
+// Treść wiadomości zaczyna się od czasu wysłania (System.nanoTime), więc odbiorca
+// w tym samym procesie liczy opóźnienie doręczenia od końca do końca. Liczą się
+// tylko wiadomości wysłane po rozgrzewce; po --duration sekundach czekamy jeszcze
+// na spóźnione i wypisujemy przepustowość oraz p50/p99/p999.
+//
+// java -cp out tools.LoadGenerator --clients=5000 --rate=20000 --size=exp:120 --duration=30
+// java -cp out tools.LoadGenerator --local --clients=2000 --server-arg=--event-loops=2
+//
+// --host=127.0.0.1 --port=12345 --clients=N --rate=N (wiadomości/s łącznie)
+// --size=fixed:N | uniform:min-max | exp:średnia (bajty treści, razem ze znacznikiem czasu)
+// --ping-seconds=N (0 wyłącza) --warmup=N --duration=N --selectors=N
+// --delta: klienci negocjują UPGRADE:DELTA (obecność jako PRESENCE_DELTA)
+// --local: serwer NIO w tym procesie na loopback (dziennik w katalogu tymczasowym),
+// --server-arg=... dodatkowa opcja dla niego, można powtarzać
+public class LoadGenerator {
+    private static final int MAX_BODY = 8000;
+    // Łącznie dla wszystkich selektorów - więcej niż kolejka accept serwera (domyślnie 50)
+    // kończy się zgubionymi SYN i ponowieniem po sekundzie
+    private static final int CONNECTS_IN_FLIGHT = 32;
+    private static final long DRAIN_NANOS = 3_000_000_000L;
+    // Wyniki generatora - System.out serwera lokalnego jest wyciszony
+    private static final PrintStream console = System.out;
+
+    private final String host;
+    private final int port;
+    private final int clients;
+    private final double rate;
+    private final SizeDistribution sizes;
+    private final long pingNanos;
+    private final boolean delta;
+
+    private final AtomicInteger loggedIn = new AtomicInteger();
+    private final AtomicInteger failed = new AtomicInteger();
+    // Fazy: wysyłanie od sendStart do sendEnd, pomiar wiadomości wysłanych od measureStart
+    private volatile long sendStart = Long.MAX_VALUE;
+    private volatile long measureStart = Long.MAX_VALUE;
+    private volatile long sendEnd = Long.MAX_VALUE;
+    private volatile boolean running = true;
+
+    LoadGenerator(String host, int port, int clients, double rate, SizeDistribution sizes, int pingSeconds,
+                  boolean delta) {
+        this.host = host;
+        this.port = port;
+        this.clients = clients;
+        this.rate = rate;
+        this.sizes = sizes;
+        this.pingNanos = pingSeconds * 1_000_000_000L;
+        this.delta = delta;
+    }
+
+    public static void main(String[] args) throws Exception {
+        String host = "127.0.0.1";
+        int port = 12345;
+        int clients = 1000;
+        double rate = 5000;
+        String size = "fixed:64";
+        int pingSeconds = 30;
+        int warmup = 5;
+        int duration = 30;
+        int selectors = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+        boolean local = false;
+        boolean delta = false;
+        List<String> serverArgs = new ArrayList<>();
+
+        for (String arg : args) {
+            if (arg.startsWith("--host=")) {
+                host = arg.substring(7);
+            } else if (arg.startsWith("--port=")) {
+                port = Integer.parseInt(arg.substring(7));
+            } else if (arg.startsWith("--clients=")) {
+                clients = Integer.parseInt(arg.substring(10));
+            } else if (arg.startsWith("--rate=")) {
+                rate = Double.parseDouble(arg.substring(7));
+            } else if (arg.startsWith("--size=")) {
+                size = arg.substring(7);
+            } else if (arg.startsWith("--ping-seconds=")) {
+                pingSeconds = Integer.parseInt(arg.substring(15));
+            } else if (arg.startsWith("--warmup=")) {
+                warmup = Integer.parseInt(arg.substring(9));
+            } else if (arg.startsWith("--duration=")) {
+                duration = Integer.parseInt(arg.substring(11));
+            } else if (arg.startsWith("--selectors=")) {
+                selectors = Integer.parseInt(arg.substring(12));
+            } else if (arg.equals("--delta")) {
+                delta = true;
+            } else if (arg.equals("--local")) {
+                local = true;
+            } else if (arg.startsWith("--server-arg=")) {
+                serverArgs.add(arg.substring(13));
+            } else {
+                System.err.println("Nieznana opcja: " + arg);
+                return;
+            }
+        }
+
+        if (local) {
+            host = "127.0.0.1";
+            startLocalServer(port, serverArgs);
+        }
+
+        SizeDistribution sizes = SizeDistribution.parse(size);
+        LoadGenerator generator = new LoadGenerator(host, port, clients, rate, sizes, pingSeconds, delta);
+        generator.run(selectors, warmup, duration);
+        System.exit(0);
+    }
+
+    // Serwer NIO w tym procesie - dziennik i skrzynki w katalogu tymczasowym, bez logu logowań
+    private static void startLocalServer(int port, List<String> extra) throws IOException {
+        File dir = Files.createTempDirectory("loadgen").toFile();
+        List<String> serverArgs = new ArrayList<>();
+        serverArgs.add("--port=" + port);
+        serverArgs.add("--mode=nio");
+        serverArgs.add("--discovery=off");
+        serverArgs.add("--idle-timeout-seconds=0");
+        serverArgs.add("--presence-dump-seconds=0");
+        serverArgs.add("--metrics-port=0");
+        serverArgs.add("--messages-dir=" + new File(dir, "messages"));
+        serverArgs.add("--inbox-file=" + new File(dir, "inbox.txt"));
+        serverArgs.add("--spill-dir=" + new File(dir, "spill"));
+        // Późniejsze wystąpienie opcji wygrywa - --server-arg nadpisuje powyższe
+        serverArgs.addAll(extra);
+
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        Thread server = new Thread(() -> {
+            try {
+                SimpleServer.main(serverArgs.toArray(new String[0]));
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }, "local-server-main");
+        server.setDaemon(true);
+        server.start();
+        waitForPort(port);
+        console.println("Serwer lokalny: " + String.join(" ", serverArgs));
+    }
+
+    private static void waitForPort(int port) throws IOException {
+        for (int attempt = 0; attempt < 100; attempt++) {
+            try {
+                SocketChannel.open(new InetSocketAddress("127.0.0.1", port)).close();
+                return;
+            } catch (IOException e) {
+                try {
+                    Thread.sleep(100);
+                } catch (InterruptedException interrupted) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+        throw new IOException("Serwer nie wystartował na porcie " + port);
+    }
+
+    private void run(int selectorCount, int warmup, int duration) throws Exception {
+        console.println("Klienci: " + clients + ", " + rate + " wiad./s, rozmiar " + sizes
+                + ", PING co " + pingNanos / 1_000_000_000L + " s, selektory: " + selectorCount
+                + (delta ? ", obecność przez PRESENCE_DELTA" : ""));
+
+        Worker[] workers = new Worker[selectorCount];
+        for (int i = 0; i < selectorCount; i++) {
+            workers[i] = new Worker(i, selectorCount);
+        }
+        for (int i = 0; i < clients; i++) {
+            workers[i % selectorCount].pending.add(new Client(i));
+        }
+        long connectStart = System.nanoTime();
+        for (Worker worker : workers) {
+            worker.start();
+        }
+
+        // Logowanie wszystkich, zanim ruszy ruch - LOGIN_OK od każdego albo błąd
+        while (loggedIn.get() + failed.get() < clients) {
+            Thread.sleep(50);
+        }
+        console.println(String.format("Zalogowani: %d w %.1f s, nieudane połączenia: %d",
+                loggedIn.get(), (System.nanoTime() - connectStart) / 1e9, failed.get()));
+        if (loggedIn.get() < 2) {
+            console.println("Za mało zalogowanych klientów do wysyłania");
+            return;
+        }
+
+        long now = System.nanoTime();
+        sendStart = now;
+        measureStart = now + warmup * 1_000_000_000L;
+        sendEnd = measureStart + duration * 1_000_000_000L;
+        Thread.sleep((warmup + duration) * 1000L);
+
+        // Spóźnione doręczenia wysłanych przed sendEnd
+        long drainUntil = System.nanoTime() + DRAIN_NANOS;
+        while (System.nanoTime() < drainUntil && delivered(workers) < sent(workers)) {
+            Thread.sleep(50);
+        }
+        running = false;
+        for (Worker worker : workers) {
+            worker.selector.wakeup();
+            worker.join();
+        }
+        report(workers, duration);
+    }
+
+    private static long sent(Worker[] workers) {
+        long total = 0;
+        for (Worker worker : workers) {
+            total += worker.sent;
+        }
+        return total;
+    }
+
+    private static long delivered(Worker[] workers) {
+        long total = 0;
+        for (Worker worker : workers) {
+            total += worker.delivered;
+        }
+        return total;
+    }
+
+    private void report(Worker[] workers, int duration) {
+        Histogram latency = new Histogram();
+        Histogram pings = new Histogram();
+        long skipped = 0;
+        long bytes = 0;
+        for (Worker worker : workers) {
+            latency.add(worker.latency);
+            pings.add(worker.pings);
+            skipped += worker.skipped;
+            bytes += worker.bytesSent;
+        }
+        long sent = sent(workers);
+        long delivered = delivered(workers);
+        console.println(String.format("Wysłane: %d (%.0f/s, %.2f MB/s), doręczone: %d (%.0f/s), niedoręczone: %d",
+                sent, sent / (double) duration, bytes / (double) duration / 1e6,
+                delivered, delivered / (double) duration, sent - delivered));
+        if (skipped > 0) {
+            console.println("Pominięte (bufor połączenia pełny, serwer nie nadąża czytać): " + skipped);
+        }
+        console.println("Opóźnienie doręczenia [ms]: " + latency.summary());
+        if (pings.count() > 0) {
+            console.println("PING -> PONG [ms]: " + pings.summary());
+        }
+    }
+
+    // Rozkład długości treści wiadomości
+    static final class SizeDistribution {
+        private final String kind;
+        private final int a;
+        private final int b;
+
+        private SizeDistribution(String kind, int a, int b) {
+            this.kind = kind;
+            this.a = a;
+            this.b = b;
+        }
+
+        static SizeDistribution parse(String spec) {
+            String[] parts = spec.split(":", 2);
+            String kind = parts[0];
+            String value = parts.length > 1 ? parts[1] : "64";
+            switch (kind) {
+                case "uniform": {
+                    String[] range = value.split("-", 2);
+                    int min = Integer.parseInt(range[0]);
+                    int max = range.length > 1 ? Integer.parseInt(range[1]) : min;
+                    return new SizeDistribution(kind, min, Math.max(min, max));
+                }
+                case "exp":
+                    return new SizeDistribution(kind, Integer.parseInt(value), 0);
+                default:
+                    return new SizeDistribution("fixed", Integer.parseInt(value), 0);
+            }
+        }
+
+        int next(Random random) {
+            int size;
+            switch (kind) {
+                case "uniform":
+                    size = a + random.nextInt(b - a + 1);
+                    break;
+                case "exp":
+                    size = (int) (-a * Math.log(1 - random.nextDouble()));
+                    break;
+                default:
+                    size = a;
+            }
+            return Math.min(MAX_BODY, size);
+        }
+
+        @Override
+        public String toString() {
+            return kind.equals("uniform") ? kind + ":" + a + "-" + b : kind + ":" + a;
+        }
+    }
+
+    // Histogram czasu w µs: dokładnie do 32 µs, dalej 16 przedziałów na każdą
+    // potęgę dwójki (błąd do ~6%). Każdy selektor ma własny - łączone na końcu.
+    static final class Histogram {
+        private static final int LINEAR = 32;
+        private static final int SUB = 16;
+        private final long[] counts = new long[LINEAR + (64 - 5) * SUB];
+        private long total;
+        private long max;
+
+        void record(long nanos) {
+            long micros = Math.max(0, nanos / 1000);
+            counts[index(micros)]++;
+            total++;
+            max = Math.max(max, micros);
+        }
+
+        private static int index(long micros) {
+            if (micros < LINEAR) {
+                return (int) micros;
+            }
+            int exponent = 63 - Long.numberOfLeadingZeros(micros);
+            int shift = exponent - 4;
+            int mantissa = (int) (micros >>> shift);
+            return LINEAR + (exponent - 5) * SUB + mantissa - SUB;
+        }
+
+        // Górna granica przedziału w µs
+        private static long upper(int index) {
+            if (index < LINEAR) {
+                return index;
+            }
+            int exponent = (index - LINEAR) / SUB + 5;
+            int mantissa = (index - LINEAR) % SUB + SUB;
+            int shift = exponent - 4;
+            return ((long) (mantissa + 1) << shift) - 1;
+        }
+
+        void add(Histogram other) {
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] += other.counts[i];
+            }
+            total += other.total;
+            max = Math.max(max, other.max);
+        }
+
+        long count() {
+            return total;
+        }
+
+        long percentile(double q) {
+            long rank = Math.max(1, (long) Math.ceil(q * total));
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return Math.min(upper(i), max);
+                }
+            }
+            return max;
+        }
+
+        String summary() {
+            if (total == 0) {
+                return "brak danych";
+            }
+            return String.format("p50=%.2f p90=%.2f p99=%.2f p999=%.2f max=%.2f (n=%d)",
+                    percentile(0.5) / 1000.0, percentile(0.9) / 1000.0, percentile(0.99) / 1000.0,
+                    percentile(0.999) / 1000.0, max / 1000.0, total);
+        }
+    }
+
+    private static final class Client {
+        final int id;
+        final byte[] name;
+        SocketChannel channel;
+        SelectionKey key;
+        final ByteBuffer in = ByteBuffer.allocate(1 << 16);
+        final ByteBuffer out = ByteBuffer.allocate(1 << 15);
+        boolean connecting;
+        boolean loggedIn;
+        boolean dead;
+        long nextPing;
+        // Czasy wysłania PING-ów czekających na PONG
+        final ArrayDeque<Long> pings = new ArrayDeque<>();
+        int attempts;
+
+        Client(int id) {
+            this.id = id;
+            this.name = ("lg" + id).getBytes(StandardCharsets.US_ASCII);
+        }
+    }
+
+    // Jeden selektor z częścią klientów: łączenie, odczyt linii, wysyłanie według harmonogramu
+    private final class Worker extends Thread {
+        private static final byte[] PRIVATE_MSG = "PRIVATE_MSG:".getBytes(StandardCharsets.US_ASCII);
+        private static final byte[] LOGIN_OK = "LOGIN_OK:".getBytes(StandardCharsets.US_ASCII);
+        private static final byte[] PONG = "PONG".getBytes(StandardCharsets.US_ASCII);
+
+        final Selector selector;
+        final ArrayDeque<Client> pending = new ArrayDeque<>();
+        private final List<Client> ready = new ArrayList<>();
+        private final double share;
+        private final int connectLimit;
+        private final Random random;
+        private int connecting;
+        private int nextSender;
+        private long issued;
+        private long nextPingScan;
+
+        final Histogram latency = new Histogram();
+        final Histogram pings = new Histogram();
+        // Czytane przez wątek główny tylko do oceny postępu - dokładne po join()
+        volatile long sent;
+        volatile long delivered;
+        long skipped;
+        long bytesSent;
+
+        Worker(int index, int count) throws IOException {
+            super("loadgen-" + index);
+            this.selector = Selector.open();
+            this.share = rate / count;
+            this.connectLimit = Math.max(1, CONNECTS_IN_FLIGHT / count);
+            this.random = new Random(index);
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (running) {
+                    startConnects();
+                    selector.select(1);
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        Client client = (Client) key.attachment();
+                        try {
+                            if (key.isConnectable()) {
+                                connected(client);
+                            } else {
+                                if (key.isReadable()) {
+                                    read(client);
+                                }
+                                if (key.isValid() && key.isWritable()) {
+                                    flush(client);
+                                }
+                            }
+                        } catch (IOException e) {
+                            lost(client, e);
+                        }
+                    }
+                    if (ready.removeIf(client -> client.dead)) {
+                        nextSender = 0;
+                    }
+                    long now = System.nanoTime();
+                    if (now >= sendStart && now < sendEnd) {
+                        sendDue(now);
+                    }
+                    if (pingNanos > 0 && now >= nextPingScan) {
+                        pingDue(now);
+                        nextPingScan = now + 100_000_000L;
+                    }
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            } finally {
+                for (SelectionKey key : selector.keys()) {
+                    try {
+                        key.channel().close();
+                    } catch (IOException ignored) {
+                        // Zamykamy wszystko na koniec - błąd jednego gniazda nie ma znaczenia
+                    }
+                }
+            }
+        }
+
+        private void startConnects() throws IOException {
+            while (connecting < connectLimit && !pending.isEmpty()) {
+                Client client = pending.poll();
+                client.channel = SocketChannel.open();
+                client.channel.configureBlocking(false);
+                client.channel.connect(new InetSocketAddress(host, port));
+                client.key = client.channel.register(selector, SelectionKey.OP_CONNECT, client);
+                client.connecting = true;
+                connecting++;
+            }
+        }
+
+        private void connected(Client client) throws IOException {
+            client.channel.finishConnect();
+            client.connecting = false;
+            connecting--;
+            client.key.interestOps(SelectionKey.OP_READ);
+            if (delta) {
+                client.out.put("UPGRADE:DELTA\n".getBytes(StandardCharsets.US_ASCII));
+            }
+            client.out.put(("LOGIN:lg" + client.id + "\n").getBytes(StandardCharsets.US_ASCII));
+            flush(client);
+        }
+
+        // Błąd gniazda: nieudane połączenie próbujemy jeszcze raz, zalogowany klient
+        // wypada z listy nadawców (po bieżącym przebiegu pętli)
+        private void lost(Client client, IOException e) {
+            if (client.dead) {
+                return;
+            }
+            if (client.connecting) {
+                client.connecting = false;
+                connecting--;
+            }
+            client.key.cancel();
+            try {
+                client.channel.close();
+            } catch (IOException ignored) {
+                // Połączenie i tak jest stracone
+            }
+            if (!client.loggedIn && ++client.attempts < 5) {
+                // Odrzucone połączenie (np. przepełniona kolejka serwera) - jeszcze raz
+                client.out.clear();
+                client.in.clear();
+                pending.add(client);
+                return;
+            }
+            client.dead = true;
+            if (client.loggedIn) {
+                System.err.println("Rozłączono lg" + client.id + ": " + e.getMessage());
+            } else {
+                failed.incrementAndGet();
+                System.err.println("Nie udało się połączyć lg" + client.id + ": " + e.getMessage());
+            }
+        }
+
+        private void read(Client client) throws IOException {
+            if (client.channel.read(client.in) < 0) {
+                throw new IOException("Serwer zamknął połączenie");
+            }
+            ByteBuffer in = client.in;
+            byte[] data = in.array();
+            int start = 0;
+            int limit = in.position();
+            for (int i = 0; i < limit; i++) {
+                if (data[i] == '\n') {
+                    line(client, data, start, i);
+                    start = i + 1;
+                }
+            }
+            if (start == 0 && limit == in.capacity()) {
+                // Linia dłuższa niż bufor (np. ONLINE_LIST przy wielu klientach) - pomijamy jej początek
+                in.clear();
+                return;
+            }
+            in.flip();
+            in.position(start);
+            in.compact();
+        }
+
+        private void line(Client client, byte[] data, int from, int to) {
+            if (startsWith(data, from, to, PRIVATE_MSG)) {
+                // PRIVATE_MSG:<od>:<nanoTime wysłania>|wypełnienie
+                int position = from + PRIVATE_MSG.length;
+                while (position < to && data[position] != ':') {
+                    position++;
+                }
+                long sentAt = 0;
+                for (position++; position < to && data[position] >= '0' && data[position] <= '9'; position++) {
+                    sentAt = sentAt * 10 + (data[position] - '0');
+                }
+                if (sentAt >= measureStart) {
+                    latency.record(System.nanoTime() - sentAt);
+                    delivered++;
+                }
+            } else if (startsWith(data, from, to, PONG) && to - from == PONG.length) {
+                Long pingedAt = client.pings.poll();
+                if (pingedAt != null && pingedAt >= measureStart) {
+                    pings.record(System.nanoTime() - pingedAt);
+                }
+            } else if (!client.loggedIn && startsWith(data, from, to, LOGIN_OK)) {
+                client.loggedIn = true;
+                // PING-i rozłożone równo w czasie, nie wszystkie naraz
+                client.nextPing = System.nanoTime() + (pingNanos > 0 ? (long) (random.nextDouble() * pingNanos) : 0);
+                ready.add(client);
+                loggedIn.incrementAndGet();
+            }
+        }
+
+        private boolean startsWith(byte[] data, int from, int to, byte[] prefix) {
+            if (to - from < prefix.length) {
+                return false;
+            }
+            for (int i = 0; i < prefix.length; i++) {
+                if (data[from + i] != prefix[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        // Tyle wiadomości, ile wynika z harmonogramu od sendStart; nadawcy po kolei
+        private void sendDue(long now) {
+            if (ready.isEmpty()) {
+                return;
+            }
+            long due = (long) ((now - sendStart) / 1e9 * share) - issued;
+            for (long i = 0; i < due; i++) {
+                issued++;
+                Client sender = ready.get(nextSender++ % ready.size());
+                if (sender.dead) {
+                    skipped++;
+                    continue;
+                }
+                int target = (sender.id + 1 + random.nextInt(clients - 1)) % clients;
+                if (!writePrivate(sender, target, System.nanoTime())) {
+                    skipped++;
+                }
+            }
+        }
+
+        private boolean writePrivate(Client sender, int target, long sentAt) {
+            String header = "PRIVATE:lg" + target + ":" + sentAt + "|";
+            int body = Math.max(0, sizes.next(random) - (header.length() - ("PRIVATE:lg" + target + ":").length()));
+            ByteBuffer out = sender.out;
+            if (out.remaining() < header.length() + body + 1) {
+                return false;
+            }
+            int start = out.position();
+            out.put(header.getBytes(StandardCharsets.US_ASCII));
+            for (int i = 0; i < body; i++) {
+                out.put((byte) 'x');
+            }
+            out.put((byte) '\n');
+            if (sentAt >= measureStart) {
+                sent++;
+                bytesSent += out.position() - start;
+            }
+            flushQuietly(sender);
+            return true;
+        }
+
+        private void pingDue(long now) {
+            for (Client client : ready) {
+                if (!client.dead && client.nextPing <= now && client.out.remaining() >= 5) {
+                    client.out.put("PING\n".getBytes(StandardCharsets.US_ASCII));
+                    client.pings.add(now);
+                    client.nextPing = now + pingNanos;
+                    flushQuietly(client);
+                }
+            }
+        }
+
+        private void flushQuietly(Client client) {
+            try {
+                flush(client);
+            } catch (IOException e) {
+                lost(client, e);
+            }
+        }
+
+        private void flush(Client client) throws IOException {
+            ByteBuffer out = client.out;
+            out.flip();
+            try {
+                client.channel.write(out);
+            } finally {
+                out.compact();
+            }
+            int ops = out.position() > 0 ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ;
+            if (client.key.interestOps() != ops) {
+                client.key.interestOps(ops);
+            }
+        }
+    }
+}
@@ -0,0 +1,245 @@
+package tools;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+import server.SimpleServer;
+
+// Przepustowość PRIVATE serwera NIO przy różnej liczbie pętli zdarzeń (shardów).
+// Klienci tworzą pierścień: każdy wysyła do następnego, więc większość wiadomości
+// przechodzi między shardami przez skrzynki SPSC. Dla każdego N osobny proces
+// (świeży JIT, własny katalog na dziennik); wynik to odebrane PRIVATE_MSG na
+// sekundę i przyspieszenie względem pierwszego N z listy. Skalowanie widać
+// tylko przy co najmniej N wolnych rdzeniach - klienci działają na tej samej maszynie,
+// więc wynik dla N większego niż liczba rdzeni jest oznaczony jako niemiarodajny.
+//
+// Ostatni pomiar był na maszynie z 1 rdzeniem: 109k/s (1 pętla), 188k/s (2), 199k/s (4).
+// Zysk przy 2 pętlach to głównie nakładanie się pętli z wątkami klientów, nie praca
+// równoległa; skalowania powyżej 2 pętli ten pomiar nie pokazuje - wymaga maszyny
+// z co najmniej 8 rdzeniami.
+//
+// java -cp out tools.ShardScaling --loops=1,2,4,8 --clients=64 --messages=20000
+public class ShardScaling {
+    private static final int PROBE_PORT = 12397;
+    private static final int CHUNK = 100;
+    private static final String RESULT = "wynik:";
+
+    public static void main(String[] args) throws Exception {
+        String[] loops = {"1", "2", "4"};
+        int clients = 64;
+        int messages = 20000;
+        boolean child = false;
+
+        for (String arg : args) {
+            if (arg.startsWith("--loops=")) {
+                loops = arg.substring(8).split(",");
+            } else if (arg.startsWith("--clients=")) {
+                clients = Integer.parseInt(arg.substring(10));
+            } else if (arg.startsWith("--messages=")) {
+                messages = Integer.parseInt(arg.substring(11));
+            } else if (arg.equals("--child")) {
+                child = true;
+            }
+        }
+
+        if (child) {
+            measure(Integer.parseInt(loops[0]), clients, messages);
+            return;
+        }
+
+        int cores = Runtime.getRuntime().availableProcessors();
+        System.out.println("Rdzenie: " + cores
+                + ", klienci: " + clients + ", wiadomości na klienta: " + messages);
+        double baseline = 0;
+        for (String n : loops) {
+            List<String> command = new ArrayList<>();
+            command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+            command.add("-cp");
+            command.add(System.getProperty("java.class.path"));
+            command.add(ShardScaling.class.getName());
+            command.add("--child");
+            command.add("--loops=" + n);
+            command.add("--clients=" + clients);
+            command.add("--messages=" + messages);
+
+            File workDir = Files.createTempDirectory("shards-" + n).toFile();
+            Process process = new ProcessBuilder(command)
+                    .directory(workDir)
+                    .redirectError(ProcessBuilder.Redirect.INHERIT)
+                    .start();
+            double rate = 0;
+            try (BufferedReader out = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = out.readLine()) != null) {
+                    if (line.startsWith(RESULT)) {
+                        rate = Double.parseDouble(line.substring(RESULT.length()));
+                    } else {
+                        System.out.println(line);
+                    }
+                }
+            }
+            process.waitFor();
+            if (baseline == 0) {
+                baseline = rate;
+            }
+            System.out.println(String.format("pętle=%-3s %12.0f wiad./s  x%.2f%s", n, rate, baseline == 0 ? 0 : rate / baseline,
+                    Integer.parseInt(n) > cores ? "  (niemiarodajne: więcej pętli niż rdzeni)" : ""));
+        }
+    }
+
+    private static void measure(int loops, int clients, int messages) throws Exception {
+        List<String> serverArgs = new ArrayList<>();
+        serverArgs.add("--port=" + PROBE_PORT);
+        serverArgs.add("--mode=nio");
+        serverArgs.add("--event-loops=" + loops);
+        serverArgs.add("--outbound-queue=100000");
+        serverArgs.add("--idle-timeout-seconds=0");
+        serverArgs.add("--presence-dump-seconds=0");
+        serverArgs.add("--discovery=off");
+        // Liczymy linie - USER_ONLINE muszą przyjść od razu, po jednej na logowanie, do wszystkich
+        serverArgs.add("--presence-window-ms=0");
+        serverArgs.add("--presence-scope=all");
+
+        // Wyjście serwera (logowania) nie jest tu potrzebne
+        PrintStream console = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        Thread server = new Thread(() -> {
+            try {
+                SimpleServer.main(serverArgs.toArray(new String[0]));
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }, "probe-server-main");
+        server.setDaemon(true);
+        server.start();
+
+        Client[] ring = new Client[clients];
+        for (int i = 0; i < clients; i++) {
+            ring[i] = new Client("u" + i);
+        }
+        for (int i = 0; i < clients; i++) {
+            // USER_ONLINE o każdym później zalogowanym
+            ring[i].expect(clients - 1 - i);
+            ring[i].message = ("PRIVATE:u" + ((i + 1) % clients) + ":wiadomość testowa o typowej długości\n")
+                    .getBytes(StandardCharsets.UTF_8);
+        }
+
+        // Rozgrzewka: JIT i bufory połączeń
+        run(ring, messages / 4);
+        long start = System.nanoTime();
+        run(ring, messages);
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        System.setOut(console);
+        System.out.println(RESULT + (long) clients * messages / seconds);
+        System.exit(0);
+    }
+
+    // Każdy klient we własnym wątku wysyła paczkę i czeka na MSG_SENT za nią oraz
+    // na tyle samo PRIVATE_MSG od poprzednika w pierścieniu
+    private static void run(Client[] ring, int messages) throws Exception {
+        CountDownLatch done = new CountDownLatch(ring.length);
+        AtomicReference<Exception> failure = new AtomicReference<>();
+        for (Client client : ring) {
+            Thread thread = new Thread(() -> {
+                try {
+                    client.run(messages);
+                } catch (IOException e) {
+                    failure.compareAndSet(null, e);
+                } finally {
+                    done.countDown();
+                }
+            }, "probe-" + client.name);
+            thread.start();
+        }
+        done.await();
+        if (failure.get() != null) {
+            throw failure.get();
+        }
+    }
+
+    private static final class Client {
+        final String name;
+        final SocketChannel channel;
+        final ByteBuffer in = ByteBuffer.allocate(1 << 16);
+        byte[] message;
+        // Linie odebrane i oczekiwane od początku połączenia
+        long received = 0;
+        long expected = 0;
+
+        Client(String name) throws IOException, InterruptedException {
+            this.name = name;
+            this.channel = connect();
+            // HELLO, potem LOGIN_OK i ONLINE_LIST
+            expect(1);
+            write(("LOGIN:" + name + "\n").getBytes(StandardCharsets.UTF_8));
+            expect(2);
+        }
+
+        private static SocketChannel connect() throws InterruptedException {
+            for (int attempt = 0; attempt < 100; attempt++) {
+                try {
+                    return SocketChannel.open(new InetSocketAddress("127.0.0.1", PROBE_PORT));
+                } catch (IOException e) {
+                    Thread.sleep(100);
+                }
+            }
+            throw new IllegalStateException("Serwer nie wystartował na porcie " + PROBE_PORT);
+        }
+
+        void run(int messages) throws IOException {
+            ByteBuffer chunk = ByteBuffer.allocate(message.length * CHUNK);
+            int sent = 0;
+            while (sent < messages) {
+                int count = Math.min(CHUNK, messages - sent);
+                chunk.clear();
+                for (int i = 0; i < count; i++) {
+                    chunk.put(message);
+                }
+                chunk.flip();
+                while (chunk.hasRemaining()) {
+                    channel.write(chunk);
+                }
+                sent += count;
+                // MSG_SENT za własne i PRIVATE_MSG od poprzednika
+                expect(2 * count);
+            }
+        }
+
+        void write(byte[] bytes) throws IOException {
+            ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+
+        // Czeka na kolejne lines linii
+        void expect(int lines) throws IOException {
+            expected += lines;
+            while (received < expected) {
+                in.clear();
+                if (channel.read(in) < 0) {
+                    throw new IOException("Serwer zamknął połączenie");
+                }
+                in.flip();
+                while (in.hasRemaining()) {
+                    if (in.get() == '\n') {
+                        received++;
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package server;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.charset.StandardCharsets;
+import org.junit.jupiter.api.Test;
+import service.BinaryCodec;
+import service.Op;
+import service.Packet;
+
+class CommandTest {
+
+    private static String field(Command command, int i) {
+        return new String(command.data, command.start[i], command.length(i), StandardCharsets.UTF_8);
+    }
+
+    private static Command text(String line) {
+        byte[] data = line.getBytes(StandardCharsets.UTF_8);
+        Command command = new Command();
+        command.parseText(data, 0, data.length);
+        return command;
+    }
+
+    @Test
+    void textLastFieldKeepsColons() {
+        Command command = text("PRIVATE:bob:godzina 12:30");
+        assertEquals(Op.PRIVATE, command.op);
+        assertEquals(2, command.fieldCount);
+        assertEquals("bob", field(command, 0));
+        assertEquals("godzina 12:30", field(command, 1));
+    }
+
+    @Test
+    void textUnknownPrefixIsChat() {
+        Command command = text("NIEZNANE:coś");
+        assertEquals(Op.SAY, command.op);
+        assertEquals(1, command.fieldCount);
+        assertEquals("NIEZNANE:coś", field(command, 0));
+    }
+
+    @Test
+    void textOpWithoutArgumentsButWithColonIsChat() {
+        Command command = text("PING:x");
+        assertEquals(Op.SAY, command.op);
+        assertEquals("PING:x", field(command, 0));
+    }
+
+    @Test
+    void textParsesInsideLargerBuffer() {
+        // Linia w środku bufora odczytu, jak w InboundBuffer
+        byte[] data = "LOGIN:alice\nPRIVATE:bob:hej\n".getBytes(StandardCharsets.UTF_8);
+        Command command = new Command();
+        command.parseText(data, 12, data.length - 1);
+        assertEquals(Op.PRIVATE, command.op);
+        assertEquals("bob", field(command, 0));
+        assertEquals("hej", field(command, 1));
+        assertEquals("PRIVATE:bob:hej".length() + 1, command.size());
+    }
+
+    @Test
+    void textAgreesWithPacketParseText() throws ProtocolException {
+        for (String line : new String[] {"PRIVATE:bob:a:b", "PING", "zwykły czat", "GET_HISTORY:*:-:50", "LOGOUT"}) {
+            Packet expected = Packet.parseText(line);
+            Packet actual = text(line).toPacket();
+            assertEquals(expected.op, actual.op, line);
+            assertArrayEquals(expected.fields, actual.fields, line);
+        }
+    }
+
+    @Test
+    void binaryMatchesCodec() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(BinaryCodec.encode(new Packet(Op.LOGIN, "alice")));
+        byte[] second = BinaryCodec.encode(new Packet(Op.PRIVATE, "bob", "z\nnową linią"));
+        out.write(second);
+        byte[] data = out.toByteArray();
+
+        Command command = new Command();
+        int next = command.parseBinary(data, 0, data.length);
+        assertEquals(Op.LOGIN, command.op);
+        assertEquals("alice", field(command, 0));
+
+        assertEquals(data.length, command.parseBinary(data, next, data.length));
+        assertEquals(Op.PRIVATE, command.op);
+        assertEquals(2, command.fieldCount);
+        assertEquals("bob", field(command, 0));
+        assertEquals("z\nnową linią", field(command, 1));
+        assertEquals(second.length, command.size());
+
+        Packet packet = command.toPacket();
+        assertArrayEquals(new String[] {"bob", "z\nnową linią"}, packet.fields);
+    }
+
+    @Test
+    void binaryPartialFrameNeedsMoreBytes() throws ProtocolException {
+        byte[] data = BinaryCodec.encode(new Packet(Op.PRIVATE, "bob", "wiadomość"));
+        Command command = new Command();
+        for (int limit = 0; limit < data.length; limit++) {
+            assertEquals(-1, command.parseBinary(data, 0, limit), "limit " + limit);
+        }
+    }
+
+    @Test
+    void binaryRejectsCorruptField() {
+        // długość 3: kod PRIVATE, pole deklaruje 9 B
+        byte[] data = {3, (byte) Op.PRIVATE.code, 9, 'x'};
+        assertThrows(ProtocolException.class, () -> new Command().parseBinary(data, 0, data.length));
+    }
+}
@@ -0,0 +1,226 @@
+package server;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class MessageLogRecoveryTest {
+    private static final long SEGMENT = 64L * 1024 * 1024;
+
+    @TempDir
+    File dir;
+
+    private MessageLog open(long segmentBytes) throws IOException {
+        return new MessageLog(dir, new MessageIndex(), MessageLog.Durability.ALWAYS, 100, segmentBytes);
+    }
+
+    // Każdy wpis osobno, po potwierdzeniu poprzedniego - przy małych segmentach każdy może zacząć nowy
+    private static void append(MessageLog log, String from, String to, String message) throws InterruptedException {
+        CountDownLatch durable = new CountDownLatch(1);
+        log.append(from, to, message.getBytes(StandardCharsets.UTF_8), durable::countDown);
+        assertTrue(durable.await(5, TimeUnit.SECONDS), "wpis utrwalony");
+    }
+
+    private static List<String> texts(List<String> records) {
+        List<String> texts = new ArrayList<>();
+        for (String record : records) {
+            texts.add(record.split("\\|", 4)[3]);
+        }
+        return texts;
+    }
+
+    private static List<String> messages(int from, int to) {
+        List<String> texts = new ArrayList<>();
+        for (int i = from; i < to; i++) {
+            texts.add("wiadomość " + i);
+        }
+        return texts;
+    }
+
+    private void writeConversation(long segmentBytes, int count) throws IOException, InterruptedException {
+        MessageLog log = open(segmentBytes);
+        try {
+            for (int i = 0; i < count; i++) {
+                append(log, i % 2 == 0 ? "alice" : "bob", i % 2 == 0 ? "bob" : "alice", "wiadomość " + i);
+            }
+        } finally {
+            log.close();
+        }
+    }
+
+    private File[] segments() {
+        File[] files = dir.listFiles((d, name) -> name.endsWith(".log"));
+        Arrays.sort(files);
+        return files;
+    }
+
+    @Test
+    void historySurvivesRestart() throws Exception {
+        writeConversation(SEGMENT, 20);
+
+        MessageLog log = open(SEGMENT);
+        try {
+            assertEquals(messages(0, 20), texts(log.historyFor("alice")));
+            assertEquals(messages(0, 20), texts(log.historyFor("bob")));
+            assertEquals(segments()[0].length(), log.recoveredEnd());
+        } finally {
+            log.close();
+        }
+    }
+
+    @Test
+    void recoversAcrossSegments() throws Exception {
+        writeConversation(200, 30);
+        assertTrue(segments().length > 3, "dziennik podzielony na segmenty");
+
+        MessageLog log = open(200);
+        try {
+            assertEquals(messages(0, 30), texts(log.historyFor("alice")));
+
+            // Strony po kursorze przechodzą przez granice segmentów bez powtórzeń i luk
+            List<String> paged = new ArrayList<>();
+            long cursor = -1;
+            MessageLog.HistoryPage page;
+            do {
+                page = log.page("alice", "bob", cursor, -1, 7);
+                paged.addAll(texts(page.records));
+                cursor = page.lastId;
+            } while (page.more);
+            assertEquals(messages(0, 30), paged);
+        } finally {
+            log.close();
+        }
+    }
+
+    @Test
+    void tornTailIsTruncatedAndLogKeepsAppending() throws Exception {
+        writeConversation(SEGMENT, 5);
+        File segment = segments()[0];
+        long valid = segment.length();
+        // Wpis przerwany w trakcie zapisu: nagłówek obiecuje 100 B, na dysku jest 10
+        try (RandomAccessFile file = new RandomAccessFile(segment, "rw")) {
+            file.seek(valid);
+            file.writeInt(100);
+            file.writeInt(0);
+            file.write(new byte[10]);
+        }
+
+        MessageLog log = open(SEGMENT);
+        try {
+            assertEquals(valid, segment.length(), "uszkodzony koniec obcięty");
+            assertEquals(valid, log.recoveredEnd());
+            assertEquals(messages(0, 5), texts(log.historyFor("alice")));
+
+            append(log, "alice", "bob", "wiadomość 5");
+            assertEquals(messages(0, 6), texts(log.historyFor("bob")));
+        } finally {
+            log.close();
+        }
+
+        MessageLog reopened = open(SEGMENT);
+        try {
+            assertEquals(messages(0, 6), texts(reopened.historyFor("alice")));
+        } finally {
+            reopened.close();
+        }
+    }
+
+    @Test
+    void lastRecordWithBadChecksumIsDropped() throws Exception {
+        writeConversation(SEGMENT, 5);
+        File segment = segments()[0];
+        try (RandomAccessFile file = new RandomAccessFile(segment, "rw")) {
+            // Ostatni bajt to ostatni znak treści ostatniego wpisu
+            file.seek(file.length() - 1);
+            int last = file.read();
+            file.seek(file.length() - 1);
+            file.write(last ^ 0x01);
+        }
+
+        MessageLog log = open(SEGMENT);
+        try {
+            assertEquals(messages(0, 4), texts(log.historyFor("alice")));
+            assertEquals(log.recoveredEnd(), segment.length());
+        } finally {
+            log.close();
+        }
+    }
+
+    @Test
+    void corruptOlderSegmentLosesOnlyItsOwnTail() throws Exception {
+        // Jeden wpis na segment - uszkodzenie w drugim segmencie nie rusza pozostałych
+        writeConversation(1, 6);
+        File[] files = segments();
+        assertEquals(6, files.length);
+        try (RandomAccessFile file = new RandomAccessFile(files[1], "rw")) {
+            file.seek(file.length() - 1);
+            file.write('#');
+        }
+
+        MessageLog log = open(1);
+        try {
+            List<String> expected = new ArrayList<>(messages(0, 6));
+            expected.remove(1);
+            assertEquals(expected, texts(log.historyFor("alice")));
+        } finally {
+            log.close();
+        }
+    }
+
+    @Test
+    void groupMessagesStayOutOfSenderHistory() throws Exception {
+        MessageLog log = open(SEGMENT);
+        try {
+            append(log, "alice", MessageLog.GROUP_PREFIX + "team", "do grupy");
+            append(log, "alice", "bob", "prywatna");
+        } finally {
+            log.close();
+        }
+
+        MessageLog reopened = open(SEGMENT);
+        try {
+            assertEquals(List.of("prywatna"), texts(reopened.historyFor("alice")));
+            assertEquals(List.of("do grupy"), texts(reopened.historyFor(MessageLog.GROUP_PREFIX + "team")));
+        } finally {
+            reopened.close();
+        }
+    }
+
+    @Test
+    void closeStopsWriterThread() throws Exception {
+        long before = writerThreads();
+        MessageLog log = open(SEGMENT);
+        append(log, "alice", "bob", "ostatnia");
+        assertEquals(before + 1, writerThreads());
+        log.close();
+        assertEquals(before, writerThreads());
+
+        // Wpis zgłoszony po zamknięciu nie czeka na zapis, który nigdy nie nastąpi
+        log.append("alice", "bob", "po zamknięciu".getBytes(StandardCharsets.UTF_8), null);
+        MessageLog reopened = open(SEGMENT);
+        try {
+            assertEquals(List.of("ostatnia"), texts(reopened.historyFor("alice")));
+        } finally {
+            reopened.close();
+        }
+        assertFalse(writerThreads() > before);
+    }
+
+    private static long writerThreads() {
+        return Thread.getAllStackTraces().keySet().stream()
+                .filter(thread -> thread.getName().equals("message-log") && thread.isAlive())
+                .count();
+    }
+}
@@ -0,0 +1,130 @@
+package server;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class OutboundQueueTest {
+    @TempDir
+    File spillDir;
+
+    private OutboundQueue queue(int capacity, OutboundQueue.Policy policy) {
+        return new OutboundQueue(capacity, policy, spillDir);
+    }
+
+    private static Frame frame(int i) {
+        return Frame.raw("m" + i);
+    }
+
+    // Treść ramek w kolejności wyjścia, aż kolejka będzie pusta
+    private static List<String> drain(OutboundQueue queue) {
+        List<String> lines = new ArrayList<>();
+        Frame frame;
+        while ((frame = queue.poll()) != null) {
+            lines.add(new String(frame.bytes(false), StandardCharsets.UTF_8).trim());
+        }
+        return lines;
+    }
+
+    private static List<String> names(int from, int to) {
+        List<String> lines = new ArrayList<>();
+        for (int i = from; i < to; i++) {
+            lines.add("m" + i);
+        }
+        return lines;
+    }
+
+    @Test
+    void dropOldestKeepsNewestFrames() {
+        OutboundQueue queue = queue(3, OutboundQueue.Policy.DROP_OLDEST);
+        for (int i = 0; i < 5; i++) {
+            assertTrue(queue.offer(frame(i)));
+        }
+        assertEquals(3, queue.depth());
+        assertEquals(2, queue.dropped());
+        assertEquals(names(2, 5), drain(queue));
+        assertEquals(0, queue.depth());
+    }
+
+    @Test
+    void disconnectRefusesFrameWhenFull() {
+        OutboundQueue queue = queue(2, OutboundQueue.Policy.DISCONNECT);
+        assertTrue(queue.offer(frame(0)));
+        assertTrue(queue.offer(frame(1)));
+        assertFalse(queue.offer(frame(2)));
+        assertEquals(1, queue.dropped());
+        assertEquals(names(0, 2), drain(queue));
+    }
+
+    @Test
+    void spillKeepsOrderAcrossMemoryAndDisk() {
+        OutboundQueue queue = queue(2, OutboundQueue.Policy.SPILL);
+        for (int i = 0; i < 10; i++) {
+            assertTrue(queue.offer(frame(i)));
+        }
+        assertEquals(10, queue.depth());
+        assertEquals(8, queue.spilled());
+        assertEquals(0, queue.dropped());
+        assertEquals(names(0, 10), drain(queue));
+        assertEquals(0, queue.depth());
+        assertEquals(0, spillFiles(), "plik przelewowy usunięty po opróżnieniu");
+    }
+
+    @Test
+    void spillQueuesBehindDiskEvenWhenMemoryFrees() {
+        // Dopóki coś czeka na dysku, nowe ramki też idą na dysk - inaczej wyprzedziłyby starsze
+        OutboundQueue queue = queue(2, OutboundQueue.Policy.SPILL);
+        for (int i = 0; i < 5; i++) {
+            queue.offer(frame(i));
+        }
+        List<String> out = new ArrayList<>();
+        out.add(new String(queue.poll().bytes(false), StandardCharsets.UTF_8).trim());
+        queue.offer(frame(5));
+        out.addAll(drain(queue));
+        assertEquals(names(0, 6), out);
+    }
+
+    @Test
+    void closeDiscardsQueuedAndSpilledFrames() {
+        OutboundQueue queue = queue(1, OutboundQueue.Policy.SPILL);
+        for (int i = 0; i < 4; i++) {
+            queue.offer(frame(i));
+        }
+        assertEquals(1, spillFiles());
+        queue.close();
+        assertEquals(0, queue.depth());
+        assertNull(queue.poll());
+        assertEquals(0, spillFiles());
+        // Po zamknięciu ramki są ignorowane, ale połączenie nie jest rozłączane drugi raz
+        assertTrue(queue.offer(frame(9)));
+        assertNull(queue.poll());
+    }
+
+    @Test
+    void takeReturnsNullAfterClose() throws InterruptedException {
+        OutboundQueue queue = queue(4, OutboundQueue.Policy.DROP_OLDEST);
+        Thread closer = new Thread(() -> {
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException ignored) {
+            }
+            queue.close();
+        });
+        closer.start();
+        assertNull(queue.take());
+        closer.join();
+    }
+
+    private int spillFiles() {
+        File[] files = spillDir.listFiles((dir, name) -> name.endsWith(".spill"));
+        return files == null ? 0 : files.length;
+    }
+}
@@ -0,0 +1,78 @@
+package server;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+class RateLimitsBucketTest {
+    private static final long SECOND = 1_000_000_000L;
+    // Dowolny punkt startu - kubełek zna tylko różnice czasu
+    private static final long T0 = 1_000 * SECOND;
+
+    @Test
+    void fullBucketLetsWholeBurstThrough() {
+        // 10 wiadomości na sekundę, zapas na 2 sekundy
+        RateLimits.Bucket bucket = new RateLimits.Bucket(10, 2);
+        for (int i = 0; i < 20; i++) {
+            assertEquals(0, bucket.delay(T0, 1), "wiadomość " + i);
+            bucket.take(T0, 1);
+        }
+        assertEquals(SECOND / 10, bucket.delay(T0, 1));
+    }
+
+    @Test
+    void bucketRefillsAtConfiguredRate() {
+        RateLimits.Bucket bucket = new RateLimits.Bucket(10, 2);
+        for (int i = 0; i < 20; i++) {
+            bucket.take(T0, 1);
+        }
+        long later = T0 + SECOND;
+        for (int i = 0; i < 10; i++) {
+            assertEquals(0, bucket.delay(later, 1), "po sekundzie, wiadomość " + i);
+            bucket.take(later, 1);
+        }
+        assertEquals(SECOND / 10, bucket.delay(later, 1));
+    }
+
+    @Test
+    void waitingLongerDoesNotGrowBurstBeyondCapacity() {
+        RateLimits.Bucket bucket = new RateLimits.Bucket(10, 2);
+        long muchLater = T0 + 3600 * SECOND;
+        for (int i = 0; i < 20; i++) {
+            bucket.take(muchLater, 1);
+        }
+        assertTrue(bucket.delay(muchLater, 1) > 0);
+    }
+
+    @Test
+    void byteCostScalesWithAmount() {
+        // 1000 B/s, zapas na sekundę: 600 B przechodzi, kolejne 600 B czeka 200 ms
+        RateLimits.Bucket bucket = new RateLimits.Bucket(1000, 1);
+        assertEquals(0, bucket.delay(T0, 600));
+        bucket.take(T0, 600);
+        assertEquals(200_000_000L, bucket.delay(T0, 600));
+    }
+
+    @Test
+    void oversizedCostIsCappedAtCapacity() {
+        // Wiadomość większa niż cały zapas przechodzi przy pełnym kubełku, zamiast czekać w nieskończoność
+        RateLimits.Bucket bucket = new RateLimits.Bucket(1000, 1);
+        assertEquals(0, bucket.delay(T0, 1_000_000));
+        bucket.take(T0, 1_000_000);
+        assertEquals(SECOND, bucket.delay(T0, 1_000_000));
+    }
+
+    @Test
+    void bucketIsFullAgainOnlyAfterDebtIsRepaid() {
+        RateLimits.Bucket bucket = new RateLimits.Bucket(10, 2);
+        assertTrue(bucket.isFull(T0));
+        for (int i = 0; i < 5; i++) {
+            bucket.take(T0, 1);
+        }
+        assertFalse(bucket.isFull(T0));
+        assertFalse(bucket.isFull(T0 + SECOND / 2 - 1));
+        assertTrue(bucket.isFull(T0 + SECOND / 2));
+    }
+}
@@ -0,0 +1,149 @@
+package service;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import org.junit.jupiter.api.Test;
+
+class BinaryCodecTest {
+
+    private static Packet roundTrip(Packet packet) throws ProtocolException {
+        ByteBuffer buffer = ByteBuffer.wrap(BinaryCodec.encode(packet));
+        Packet decoded = BinaryCodec.decode(buffer);
+        assertEquals(0, buffer.remaining(), "ramka odczytana do końca");
+        return decoded;
+    }
+
+    private static void assertSamePacket(Packet expected, Packet actual) {
+        assertEquals(expected.op, actual.op);
+        assertArrayEquals(expected.fields, actual.fields);
+    }
+
+    @Test
+    void roundTripKeepsSeparatorsInsideFields() throws ProtocolException {
+        // W trybie tekstowym ':' i '\n' rozcięłyby wiadomość - binarnie są zwykłymi bajtami
+        Packet packet = new Packet(Op.PRIVATE, "bob", "a:b\nc|d\r\n");
+        assertSamePacket(packet, roundTrip(packet));
+    }
+
+    @Test
+    void roundTripKeepsUnicodeAndEmptyFields() throws ProtocolException {
+        Packet packet = new Packet(Op.GET_HISTORY, "żółw", "", "🙂 ąę");
+        assertSamePacket(packet, roundTrip(packet));
+    }
+
+    @Test
+    void roundTripWithoutFields() throws ProtocolException {
+        Packet packet = new Packet(Op.PING);
+        Packet decoded = roundTrip(packet);
+        assertEquals(Op.PING, decoded.op);
+        assertEquals(0, decoded.fields.length);
+    }
+
+    @Test
+    void roundTripMultiByteVarintLengths() throws ProtocolException {
+        // 127 mieści się w jednym bajcie varint, 128 i 20000 już nie
+        for (int length : new int[] {127, 128, 16383, 16384, 20000}) {
+            char[] text = new char[length];
+            Arrays.fill(text, 'x');
+            Packet packet = new Packet(Op.SAY, new String(text));
+            assertSamePacket(packet, roundTrip(packet));
+        }
+    }
+
+    @Test
+    void everyOpRoundTrips() throws ProtocolException {
+        for (Op op : Op.values()) {
+            String[] fields = new String[op.arity];
+            for (int i = 0; i < fields.length; i++) {
+                fields[i] = "pole" + i;
+            }
+            Packet packet = new Packet(op, fields);
+            assertSamePacket(packet, roundTrip(packet));
+        }
+    }
+
+    @Test
+    void decodeWaitsForWholeFrameWithoutMovingPosition() throws ProtocolException {
+        byte[] bytes = BinaryCodec.encode(new Packet(Op.PRIVATE, "bob", "wiadomość"));
+        for (int cut = 0; cut < bytes.length; cut++) {
+            ByteBuffer partial = ByteBuffer.wrap(Arrays.copyOf(bytes, cut));
+            assertNull(BinaryCodec.decode(partial), "przycięte do " + cut + " B");
+            assertEquals(0, partial.position());
+        }
+    }
+
+    @Test
+    void decodeReadsConsecutiveFramesFromOneBuffer() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(BinaryCodec.encode(new Packet(Op.LOGIN, "alice")));
+        out.write(BinaryCodec.encode(new Packet(Op.PRIVATE, "bob", "hej")));
+        ByteBuffer buffer = ByteBuffer.wrap(out.toByteArray());
+
+        assertSamePacket(new Packet(Op.LOGIN, "alice"), BinaryCodec.decode(buffer));
+        assertSamePacket(new Packet(Op.PRIVATE, "bob", "hej"), BinaryCodec.decode(buffer));
+        assertNull(BinaryCodec.decode(buffer));
+    }
+
+    @Test
+    void readFromStreamStopsCleanlyBetweenFrames() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(BinaryCodec.encode(new Packet(Op.SAY, "pierwsza")));
+        out.write(BinaryCodec.encode(new Packet(Op.SAY, "druga")));
+        ByteArrayInputStream in = new ByteArrayInputStream(out.toByteArray());
+
+        assertEquals("pierwsza", BinaryCodec.read(in).field(0));
+        assertEquals("druga", BinaryCodec.read(in).field(0));
+        assertNull(BinaryCodec.read(in));
+    }
+
+    @Test
+    void readRejectsTruncatedFrame() {
+        byte[] bytes = BinaryCodec.encode(new Packet(Op.SAY, "przerwana"));
+        ByteArrayInputStream in = new ByteArrayInputStream(Arrays.copyOf(bytes, bytes.length - 1));
+        assertThrows(EOFException.class, () -> BinaryCodec.read(in));
+    }
+
+    @Test
+    void decodeRejectsUnknownOp() {
+        // długość 1, kod rodzaju 255
+        ByteBuffer buffer = ByteBuffer.wrap(new byte[] {1, (byte) 255});
+        assertThrows(ProtocolException.class, () -> BinaryCodec.decode(buffer));
+    }
+
+    @Test
+    void decodeRejectsFieldLongerThanFrame() {
+        // długość 3: kod SAY, pole deklaruje 5 B, a zostaje 1 B
+        ByteBuffer buffer = ByteBuffer.wrap(new byte[] {3, (byte) Op.SAY.code, 5, 'x'});
+        assertThrows(ProtocolException.class, () -> BinaryCodec.decode(buffer));
+    }
+
+    @Test
+    void readRejectsOversizedFrame() {
+        ByteBuffer header = ByteBuffer.allocate(8);
+        int length = BinaryCodec.MAX_FRAME + 1;
+        while ((length & ~0x7f) != 0) {
+            header.put((byte) ((length & 0x7f) | 0x80));
+            length >>>= 7;
+        }
+        header.put((byte) length);
+        ByteArrayInputStream in = new ByteArrayInputStream(Arrays.copyOf(header.array(), header.position()));
+        assertThrows(ProtocolException.class, () -> BinaryCodec.read(in));
+    }
+
+    @Test
+    void textRoundTripMatchesParseText() {
+        Packet packet = new Packet(Op.PRIVATE, "bob", "treść: z dwukropkiem");
+        Packet parsed = Packet.parseText(packet.toText());
+        assertSamePacket(packet, parsed);
+    }
+}